@@ -23,6 +23,7 @@ import fr.igred.omero.annotations.TagAnnotationWrapper;
 import fr.igred.omero.exception.AccessException;
 import fr.igred.omero.exception.OMEROServerError;
 import fr.igred.omero.exception.ServiceException;
+import fr.igred.omero.exception.UncheckedOMEROException;
 import fr.igred.omero.meta.ExperimenterWrapper;
 import fr.igred.omero.meta.GroupWrapper;
 import fr.igred.omero.repository.DatasetWrapper;
@@ -33,11 +34,18 @@ import fr.igred.omero.repository.ProjectWrapper;
 import fr.igred.omero.repository.ScreenWrapper;
 import fr.igred.omero.repository.WellWrapper;
 import omero.RLong;
+import omero.RString;
+import omero.RTime;
+import omero.RType;
 import omero.ServerError;
+import omero.api.SearchPrx;
+import omero.cmd.CmdCallbackI;
 import omero.gateway.Gateway;
+import omero.gateway.LoginCredentials;
 import omero.gateway.SecurityContext;
 import omero.gateway.exception.DSAccessException;
 import omero.gateway.exception.DSOutOfServiceException;
+import omero.gateway.model.DataObject;
 import omero.gateway.model.DatasetData;
 import omero.gateway.model.ExperimenterData;
 import omero.gateway.model.GroupData;
@@ -50,21 +58,36 @@ import omero.gateway.model.WellData;
 import omero.log.SimpleLogger;
 import omero.model.IObject;
 import omero.model.TagAnnotation;
+import omero.rtypes;
+import omero.sys.ParametersI;
 
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.NoSuchElementException;
 import java.util.Objects;
+import java.util.Spliterator;
+import java.util.Spliterators;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 import static fr.igred.omero.GenericObjectWrapper.wrap;
+import static fr.igred.omero.exception.ExceptionHandler.handleServerAsServiceOrAccess;
 import static fr.igred.omero.exception.ExceptionHandler.handleServiceOrAccess;
 import static fr.igred.omero.exception.ExceptionHandler.handleServiceOrServer;
+import static omero.rtypes.rstring;
+import static omero.rtypes.rtime;
 
 
 /**
@@ -74,6 +97,24 @@ import static fr.igred.omero.exception.ExceptionHandler.handleServiceOrServer;
  */
 public class Client extends GatewayWrapper {
 
+    /** Default number of objects retrieved at once when streaming. */
+    public static final int DEFAULT_PAGE_SIZE = 1000;
+
+    /** OMERO entities corresponding to the wrapper classes. */
+    private static final Map<Class<?>, String> ENTITIES = new HashMap<>(6);
+
+    /** Pattern of the fields which can be projected. */
+    private static final Pattern FIELD = Pattern.compile("[A-Za-z]\\w*(\\.[A-Za-z]\\w*)*");
+
+    static {
+        ENTITIES.put(ProjectWrapper.class, "Project");
+        ENTITIES.put(DatasetWrapper.class, "Dataset");
+        ENTITIES.put(ImageWrapper.class, "Image");
+        ENTITIES.put(ScreenWrapper.class, "Screen");
+        ENTITIES.put(PlateWrapper.class, "Plate");
+        ENTITIES.put(WellWrapper.class, "Well");
+    }
+
 
     /**
      * Constructor of the Client class. Initializes the gateway.
@@ -95,6 +136,125 @@ public class Client extends GatewayWrapper {
     }
 
 
+    /**
+     * Creates a sequential stream from an iterator.
+     *
+     * @param iterator The iterator.
+     * @param <T>      The type of the elements.
+     *
+     * @return See above.
+     */
+    private static <T> Stream<T> stream(Iterator<T> iterator) {
+        int characteristics = Spliterator.ORDERED | Spliterator.DISTINCT | Spliterator.NONNULL;
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(iterator, characteristics), false);
+    }
+
+
+    /**
+     * Loads objects from their IDs in the current security context, using the metadata cache if it is enabled.
+     * <p> Only the objects which are not cached are retrieved, in a single call.
+     *
+     * @param type   The object type, used in the cache keys.
+     * @param ids    The object IDs.
+     * @param loader Function retrieving the objects which are not cached.
+     * @param error  Error message.
+     * @param <U>    The type of the objects.
+     *
+     * @return The objects.
+     *
+     * @throws ServiceException   Cannot connect to OMERO.
+     * @throws AccessException    Cannot access data.
+     * @throws ExecutionException A Facility can't be retrieved or instantiated.
+     */
+    private <U extends DataObject> Collection<U> load(String type, Long[] ids, IdLoader<U> loader, String error)
+    throws ServiceException, AccessException, ExecutionException {
+        return load(getCtx(), type, ids, loader, error);
+    }
+
+
+    /**
+     * Loads objects from their IDs, using the metadata cache if it is enabled and the security context is the current
+     * one: cached objects are not shared between groups.
+     * <p> Only the objects which are not cached are retrieved, in a single call.
+     *
+     * @param context The security context used by the loader.
+     * @param type    The object type, used in the cache keys.
+     * @param ids     The object IDs.
+     * @param loader  Function retrieving the objects which are not cached.
+     * @param error   Error message.
+     * @param <U>     The type of the objects.
+     *
+     * @return The objects.
+     *
+     * @throws ServiceException   Cannot connect to OMERO.
+     * @throws AccessException    Cannot access data.
+     * @throws ExecutionException A Facility can't be retrieved or instantiated.
+     */
+    private <U extends DataObject> Collection<U> load(SecurityContext context, String type, Long[] ids,
+                                                      IdLoader<U> loader, String error)
+    throws ServiceException, AccessException, ExecutionException {
+        MetadataCache cache = context == getCtx() ? getCache() : null;
+
+        Collection<U> objects = new ArrayList<>(ids.length);
+        List<Long>    missing = new ArrayList<>(ids.length);
+        for (Long id : new LinkedHashSet<>(Arrays.asList(ids))) {
+            U object = cache != null ? cache.getObject(MetadataCache.key(type, id)) : null;
+            if (object != null) {
+                objects.add(object);
+            } else {
+                missing.add(id);
+            }
+        }
+        if (!missing.isEmpty()) {
+            try {
+                Collection<U> loaded = loader.load(missing);
+                if (cache != null) {
+                    loaded.forEach(o -> cache.putObject(MetadataCache.key(type, o.getId()), o));
+                }
+                objects.addAll(loaded);
+            } catch (DSOutOfServiceException | DSAccessException e) {
+                handleServiceOrAccess(e, error);
+            }
+        }
+        return objects;
+    }
+
+
+    /**
+     * Loads a list of objects, using the metadata cache if it is enabled.
+     *
+     * @param name   The list name, used in the cache key.
+     * @param loader Function retrieving the list.
+     * @param error  Error message.
+     * @param <U>    The type of the objects.
+     *
+     * @return The objects.
+     *
+     * @throws ServiceException   Cannot connect to OMERO.
+     * @throws AccessException    Cannot access data.
+     * @throws ExecutionException A Facility can't be retrieved or instantiated.
+     */
+    private <U extends DataObject> Collection<U> loadList(String name, Loader<U> loader, String error)
+    throws ServiceException, AccessException, ExecutionException {
+        MetadataCache cache = getCache();
+        String        key   = MetadataCache.listKey(name);
+
+        Collection<U> objects = cache != null ? cache.getList(key) : null;
+        if (objects == null) {
+            objects = new ArrayList<>(0);
+            try {
+                objects = loader.load();
+            } catch (DSOutOfServiceException | DSAccessException e) {
+                handleServiceOrAccess(e, error);
+            }
+            if (cache != null) {
+                cache.putList(key, objects);
+            }
+        }
+        return objects;
+    }
+
+
     /**
      * Gets the project with the specified id from OMERO.
      *
@@ -129,12 +289,9 @@ public class Client extends GatewayWrapper {
      * @throws ExecutionException A Facility can't be retrieved or instantiated.
      */
     public List<ProjectWrapper> getProjects(Long... ids) throws ServiceException, AccessException, ExecutionException {
-        Collection<ProjectData> projects = new ArrayList<>(0);
-        try {
-            projects = getBrowseFacility().getProjects(getCtx(), Arrays.asList(ids));
-        } catch (DSOutOfServiceException | DSAccessException e) {
-            handleServiceOrAccess(e, "Cannot get projects");
-        }
+        Collection<ProjectData> projects = load("Project", ids,
+                                                missing -> getBrowseFacility().getProjects(getCtx(), missing),
+                                                "Cannot get projects");
         return wrap(projects, ProjectWrapper::new);
     }
 
@@ -149,12 +306,9 @@ public class Client extends GatewayWrapper {
      * @throws ExecutionException A Facility can't be retrieved or instantiated.
      */
     public List<ProjectWrapper> getProjects() throws ServiceException, AccessException, ExecutionException {
-        Collection<ProjectData> projects = new ArrayList<>(0);
-        try {
-            projects = getBrowseFacility().getProjects(getCtx());
-        } catch (DSOutOfServiceException | DSAccessException e) {
-            handleServiceOrAccess(e, "Cannot get projects");
-        }
+        Collection<ProjectData> projects = loadList("Project",
+                                                    () -> getBrowseFacility().getProjects(getCtx()),
+                                                    "Cannot get projects");
         return wrap(projects, ProjectWrapper::new);
     }
 
@@ -216,12 +370,9 @@ public class Client extends GatewayWrapper {
      */
     public List<DatasetWrapper> getDatasets(Long... ids)
     throws ServiceException, AccessException, ExecutionException {
-        Collection<DatasetData> datasets = new ArrayList<>(0);
-        try {
-            datasets = getBrowseFacility().getDatasets(getCtx(), Arrays.asList(ids));
-        } catch (DSOutOfServiceException | DSAccessException e) {
-            handleServiceOrAccess(e, "Cannot get datasets");
-        }
+        Collection<DatasetData> datasets = load("Dataset", ids,
+                                                missing -> getBrowseFacility().getDatasets(getCtx(), missing),
+                                                "Cannot get datasets");
         return wrap(datasets, DatasetWrapper::new);
     }
 
@@ -238,12 +389,35 @@ public class Client extends GatewayWrapper {
      */
     public List<DatasetWrapper> getDatasets()
     throws ServiceException, AccessException, OMEROServerError, ExecutionException {
-        Long[] ids = this.findByQuery("select d from Dataset d")
-                         .stream()
-                         .map(IObject::getId)
-                         .map(RLong::getValue)
-                         .toArray(Long[]::new);
-        return getDatasets(ids);
+        return getDatasets(findIds("select d.id from Dataset d", null));
+    }
+
+
+    /**
+     * Streams all datasets available from OMERO, retrieving them in pages of {@link #DEFAULT_PAGE_SIZE}.
+     *
+     * @return A stream of DatasetWrappers, ordered by ID.
+     *
+     * @throws UncheckedOMEROException If a page cannot be retrieved while the stream is consumed.
+     */
+    public Stream<DatasetWrapper> streamDatasets() {
+        return streamDatasets(DEFAULT_PAGE_SIZE);
+    }
+
+
+    /**
+     * Streams all datasets available from OMERO.
+     * <p> Datasets are retrieved lazily, one page at a time, so that only one page is kept in memory.
+     *
+     * @param pageSize Number of datasets retrieved at once.
+     *
+     * @return A stream of DatasetWrappers, ordered by ID.
+     *
+     * @throws UncheckedOMEROException If a page cannot be retrieved while the stream is consumed.
+     */
+    public Stream<DatasetWrapper> streamDatasets(int pageSize) {
+        String query = "select d.id from Dataset d where d.id > :last order by d.id";
+        return stream(new KeysetIterator<>(this, query, null, pageSize, this::getDatasets));
     }
 
 
@@ -283,11 +457,19 @@ public class Client extends GatewayWrapper {
      */
     public ImageWrapper getImage(Long id)
     throws ServiceException, AccessException, ExecutionException {
-        ImageData image = null;
-        try {
-            image = getBrowseFacility().getImage(getCtx(), id);
-        } catch (DSOutOfServiceException | DSAccessException e) {
-            handleServiceOrAccess(e, "Cannot get image with ID: " + id);
+        MetadataCache cache = getCache();
+        String        key   = MetadataCache.key("Image", id);
+
+        ImageData image = cache != null ? cache.getObject(key) : null;
+        if (image == null) {
+            try {
+                image = getBrowseFacility().getImage(getCtx(), id);
+            } catch (DSOutOfServiceException | DSAccessException e) {
+                handleServiceOrAccess(e, "Cannot get image with ID: " + id);
+            }
+            if (cache != null && image != null) {
+                cache.putObject(key, image);
+            }
         }
         if (image == null) {
             throw new NoSuchElementException(String.format("Image %d doesn't exist in this context", id));
@@ -308,12 +490,9 @@ public class Client extends GatewayWrapper {
      * @throws ExecutionException A Facility can't be retrieved or instantiated.
      */
     public List<ImageWrapper> getImages(Long... ids) throws ServiceException, AccessException, ExecutionException {
-        Collection<ImageData> images = new ArrayList<>(0);
-        try {
-            images = getBrowseFacility().getImages(getCtx(), Arrays.asList(ids));
-        } catch (DSOutOfServiceException | DSAccessException e) {
-            handleServiceOrAccess(e, "Cannot get images");
-        }
+        Collection<ImageData> images = load("Image", ids,
+                                            missing -> getBrowseFacility().getImages(getCtx(), missing),
+                                            "Cannot get images");
         return wrap(images, ImageWrapper::new);
     }
 
@@ -328,16 +507,43 @@ public class Client extends GatewayWrapper {
      * @throws ExecutionException A Facility can't be retrieved or instantiated.
      */
     public List<ImageWrapper> getImages() throws ServiceException, AccessException, ExecutionException {
-        Collection<ImageData> images = new ArrayList<>(0);
-        try {
-            images = getBrowseFacility().getUserImages(getCtx());
-        } catch (DSOutOfServiceException | DSAccessException e) {
-            handleServiceOrAccess(e, "Cannot get images");
-        }
+        Collection<ImageData> images = loadList("Image:user",
+                                                () -> getBrowseFacility().getUserImages(getCtx()),
+                                                "Cannot get images");
         return wrap(images, ImageWrapper::new);
     }
 
 
+    /**
+     * Streams all images owned by the current user, retrieving them in pages of {@link #DEFAULT_PAGE_SIZE}.
+     *
+     * @return A stream of ImageWrappers, ordered by ID.
+     *
+     * @throws UncheckedOMEROException If a page cannot be retrieved while the stream is consumed.
+     */
+    public Stream<ImageWrapper> streamImages() {
+        return streamImages(DEFAULT_PAGE_SIZE);
+    }
+
+
+    /**
+     * Streams all images owned by the current user.
+     * <p> Images are retrieved lazily, one page at a time, so that only one page is kept in memory.
+     *
+     * @param pageSize Number of images retrieved at once.
+     *
+     * @return A stream of ImageWrappers, ordered by ID.
+     *
+     * @throws UncheckedOMEROException If a page cannot be retrieved while the stream is consumed.
+     */
+    public Stream<ImageWrapper> streamImages(int pageSize) {
+        ParametersI params = new ParametersI();
+        params.addId(getId());
+        String query = "select i.id from Image i where i.details.owner.id = :id and i.id > :last order by i.id";
+        return stream(new KeysetIterator<>(this, query, params, pageSize, this::getImages));
+    }
+
+
     /**
      * Gets all images with a certain from OMERO.
      *
@@ -376,20 +582,62 @@ public class Client extends GatewayWrapper {
      */
     public List<ImageWrapper> getImages(String projectName, String datasetName, String imageName)
     throws ServiceException, AccessException, ExecutionException {
-        List<ImageWrapper>   images   = new ArrayList<>();
-        List<ProjectWrapper> projects = getProjects(projectName);
-        for (ProjectWrapper project : projects) {
-            List<DatasetWrapper> datasets = project.getDatasets(datasetName);
-            for (DatasetWrapper dataset : datasets) {
-                images.addAll(dataset.getImages(this, imageName));
-            }
+        ParametersI params = new ParametersI();
+        params.add("project", rstring(projectName));
+        params.add("dataset", rstring(datasetName));
+        params.add("image", rstring(imageName));
+        String query = "select distinct i.id from Image i" +
+                       " join i.datasetLinks dl join dl.parent d" +
+                       " join d.projectLinks pl join pl.parent p" +
+                       " where p.name = :project and d.name = :dataset and i.name = :image" +
+                       " order by i.id";
+        Long[] ids = new Long[0];
+        try {
+            ids = findIds(query, params);
+        } catch (OMEROServerError e) {
+            handleServerAsServiceOrAccess(e, "Cannot get images named " + imageName);
         }
-        return images;
+        return getImages(ids);
+    }
+
+
+    /**
+     * Creates the parameters for a search on the names of the images owned by the current user.
+     *
+     * @param motif  Motif searched in an image name.
+     * @param offset Number of matching images to skip.
+     * @param limit  Maximum number of images to return (no limit if negative).
+     *
+     * @return See above.
+     */
+    private ParametersI likeParameters(String motif, int offset, int limit) {
+        ParametersI params = new ParametersI();
+        params.addId(getId());
+        params.add("pattern", rstring(QueryBuilder.likePattern(motif)));
+        if (limit >= 0) {
+            params.page(offset, limit);
+        }
+        return params;
+    }
+
+
+    /**
+     * Creates the condition of a search on the names of the images owned by the current user.
+     *
+     * @param caseSensitive Whether the search is case-sensitive.
+     *
+     * @return See above.
+     */
+    private static String likeCondition(boolean caseSensitive) {
+        return caseSensitive ?
+               " where i.details.owner.id = :id and i.name like :pattern escape '!'" :
+               " where i.details.owner.id = :id and lower(i.name) like lower(:pattern) escape '!'";
     }
 
 
     /**
-     * Gets all images with a certain motif in their name from OMERO.
+     * Gets all images owned by the current user with a certain motif in their name from OMERO.
+     * <p> The search is case-sensitive and the motif is matched literally.
      *
      * @param motif Motif searched in an image name.
      *
@@ -400,13 +648,308 @@ public class Client extends GatewayWrapper {
      * @throws ExecutionException A Facility can't be retrieved or instantiated.
      */
     public List<ImageWrapper> getImagesLike(String motif) throws ServiceException, AccessException, ExecutionException {
-        List<ImageWrapper> images = getImages();
-        String             regexp = ".*" + motif + ".*";
-        images.removeIf(image -> !image.getName().matches(regexp));
+        List<ImageWrapper> images = new ArrayList<>(0);
+        try {
+            images = getImagesLike(motif, true, 0, -1);
+        } catch (OMEROServerError e) {
+            handleServerAsServiceOrAccess(e, "Cannot get images like " + motif);
+        }
         return images;
     }
 
 
+    /**
+     * Gets a page of the images owned by the current user with a certain motif in their name, ordered by ID.
+     * <p> The names are matched on the server, and the motif is matched literally.
+     *
+     * @param motif         Motif searched in an image name.
+     * @param caseSensitive Whether the search is case-sensitive.
+     * @param offset        Number of matching images to skip.
+     * @param limit         Maximum number of images to return (no limit if negative).
+     *
+     * @return ImageWrapper list.
+     *
+     * @throws ServiceException   Cannot connect to OMERO.
+     * @throws AccessException    Cannot access data.
+     * @throws OMEROServerError   Server error.
+     * @throws ExecutionException A Facility can't be retrieved or instantiated.
+     */
+    public List<ImageWrapper> getImagesLike(String motif, boolean caseSensitive, int offset, int limit)
+    throws ServiceException, AccessException, OMEROServerError, ExecutionException {
+        String query = "select i.id from Image i" + likeCondition(caseSensitive) + " order by i.id";
+        return getImages(findIds(query, likeParameters(motif, offset, limit)));
+    }
+
+
+    /**
+     * Gets the IDs and names of the images owned by the current user with a certain motif in their name, ordered by ID.
+     * <p> Only the IDs and names are retrieved, which is much lighter than loading the images.
+     *
+     * @param motif         Motif searched in an image name.
+     * @param caseSensitive Whether the search is case-sensitive.
+     * @param offset        Number of matching images to skip.
+     * @param limit         Maximum number of images to return (no limit if negative).
+     *
+     * @return A map associating the image IDs to their names.
+     *
+     * @throws ServiceException Cannot connect to OMERO.
+     * @throws OMEROServerError Server error.
+     */
+    public Map<Long, String> getImageNamesLike(String motif, boolean caseSensitive, int offset, int limit)
+    throws ServiceException, OMEROServerError {
+        String query = "select i.id, i.name from Image i" + likeCondition(caseSensitive) + " order by i.id";
+
+        Map<Long, String> names = new LinkedHashMap<>();
+        for (List<RType> row : projection(query, likeParameters(motif, offset, limit))) {
+            names.put(((RLong) row.get(0)).getValue(), ((RString) row.get(1)).getValue());
+        }
+        return names;
+    }
+
+
+    /**
+     * Returns the name of the OMERO entity corresponding to a wrapper class.
+     *
+     * @param type The wrapper class.
+     *
+     * @return See above.
+     *
+     * @throws IllegalArgumentException If the class does not correspond to a supported entity.
+     */
+    static String entity(Class<?> type) {
+        String entity = ENTITIES.get(type);
+        if (entity == null) {
+            throw new IllegalArgumentException("Unsupported type: " + type.getSimpleName());
+        }
+        return entity;
+    }
+
+
+    /**
+     * Counts the objects of a given type available to the user, without retrieving them.
+     *
+     * @param type The type of objects (e.g. ImageWrapper.class).
+     *
+     * @return See above.
+     *
+     * @throws ServiceException Cannot connect to OMERO.
+     * @throws OMEROServerError Server error.
+     */
+    public long count(Class<? extends GenericObjectWrapper<?>> type) throws ServiceException, OMEROServerError {
+        return new QueryBuilder(entity(type), "o").count(this);
+    }
+
+
+    /**
+     * Checks if an object of a given type with the specified ID is available to the user, without retrieving it.
+     *
+     * @param type The type of object (e.g. ImageWrapper.class).
+     * @param id   The object ID.
+     *
+     * @return See above.
+     *
+     * @throws ServiceException Cannot connect to OMERO.
+     * @throws OMEROServerError Server error.
+     */
+    public boolean exists(Class<? extends GenericObjectWrapper<?>> type, long id)
+    throws ServiceException, OMEROServerError {
+        return new QueryBuilder(entity(type), "o").where("o.id = :id").bind("id", id).exists(this);
+    }
+
+
+    /**
+     * Returns a function loading objects of the specified type in a security context.
+     *
+     * @param type    The type of objects (project, dataset, image, screen or plate).
+     * @param context The security context.
+     * @param <T>     The type of objects.
+     *
+     * @return See above.
+     *
+     * @throws IllegalArgumentException If the type is not supported.
+     */
+    @SuppressWarnings("unchecked")
+    private <T extends GenericObjectWrapper<?>> KeysetIterator.Loader<T> loader(Class<T> type,
+                                                                             SecurityContext context) {
+        KeysetIterator.Loader<?> loader;
+        if (type == ProjectWrapper.class) {
+            KeysetIterator.Loader<ProjectWrapper> projects = ids -> wrap(
+                    load(context, "Project", ids, m -> getBrowseFacility().getProjects(context, m),
+                         "Cannot get projects"),
+                    ProjectWrapper::new);
+            loader = projects;
+        } else if (type == DatasetWrapper.class) {
+            KeysetIterator.Loader<DatasetWrapper> datasets = ids -> wrap(
+                    load(context, "Dataset", ids, m -> getBrowseFacility().getDatasets(context, m),
+                         "Cannot get datasets"),
+                    DatasetWrapper::new);
+            loader = datasets;
+        } else if (type == ImageWrapper.class) {
+            KeysetIterator.Loader<ImageWrapper> images = ids -> wrap(
+                    load(context, "Image", ids, m -> getBrowseFacility().getImages(context, m), "Cannot get images"),
+                    ImageWrapper::new);
+            loader = images;
+        } else if (type == ScreenWrapper.class) {
+            KeysetIterator.Loader<ScreenWrapper> screens = ids -> wrap(
+                    load(context, "Screen", ids, m -> getBrowseFacility().getScreens(context, m), "Cannot get screens"),
+                    ScreenWrapper::new);
+            loader = screens;
+        } else if (type == PlateWrapper.class) {
+            KeysetIterator.Loader<PlateWrapper> plates = ids -> wrap(
+                    load(context, "Plate", ids, m -> getBrowseFacility().getPlates(context, m), "Cannot get plates"),
+                    PlateWrapper::new);
+            loader = plates;
+        } else {
+            throw new IllegalArgumentException("Unsupported type: " + type.getSimpleName());
+        }
+        return (KeysetIterator.Loader<T>) loader;
+    }
+
+
+    /**
+     * Runs a full-text search on OMERO and streams the matching objects.
+     * <p> The search covers names, descriptions, tags and other annotations (including key/value pairs), unless
+     * restricted by the options. Results are retrieved lazily, one batch at a time; the stream should be closed if it
+     * is not fully consumed, to release the search service.
+     *
+     * @param type    The type of objects searched (project, dataset, image, screen or plate).
+     * @param text    The searched text, using the server full-text syntax.
+     * @param options The search options (can be null).
+     * @param <T>     The type of objects.
+     *
+     * @return A stream of the matching objects, in batches ordered by relevance.
+     *
+     * @throws ServiceException         Cannot connect to OMERO.
+     * @throws OMEROServerError         Server error.
+     * @throws IllegalArgumentException If the type is not supported.
+     * @throws UncheckedOMEROException  If a batch cannot be retrieved while the stream is consumed.
+     */
+    public <T extends GenericObjectWrapper<?>> Stream<T> search(Class<T> type, String text, SearchOptions options)
+    throws ServiceException, OMEROServerError {
+        SearchOptions opts = options != null ? options : new SearchOptions();
+
+        SecurityContext context = opts.getGroupId() != null ? new SecurityContext(opts.getGroupId()) : getCtx();
+        if (opts.getGroupId() != null) {
+            context.setExperimenter(getUser().asExperimenterData());
+        }
+        KeysetIterator.Loader<T> loader = loader(type, context);
+
+        SearchPrx search = null;
+        try {
+            search = getGateway().getSearchService(context);
+            search.onlyType(entity(type) + "I");
+            search.setBatchSize(opts.getBatchSize());
+            search.setMergedBatches(false);
+            search.setCaseSentivice(false);
+            if (opts.getFrom() != null || opts.getTo() != null) {
+                RTime from = opts.getFrom() != null ? rtime(opts.getFrom().getTime()) : null;
+                RTime to   = opts.getTo() != null ? rtime(opts.getTo().getTime()) : null;
+                search.onlyCreatedBetween(from, to);
+            }
+            search.byFullText(opts.buildQuery(text));
+        } catch (DSOutOfServiceException | ServerError e) {
+            if (search != null) {
+                try {
+                    search.close();
+                } catch (ServerError se) {
+                    e.addSuppressed(se);
+                }
+            }
+            handleServiceOrServer(e, "Cannot search for: " + text);
+        }
+
+        SearchIterator<T> iterator = new SearchIterator<>(search, loader);
+        return stream(iterator).onClose(iterator::close);
+    }
+
+
+    /**
+     * Runs a full-text search on OMERO and returns a page of the matching objects.
+     *
+     * @param type    The type of objects searched (project, dataset, image, screen or plate).
+     * @param text    The searched text, using the server full-text syntax.
+     * @param options The search options (can be null).
+     * @param offset  Number of matching objects to skip.
+     * @param limit   Maximum number of objects to return.
+     * @param <T>     The type of objects.
+     *
+     * @return The matching objects, ordered by relevance.
+     *
+     * @throws ServiceException         Cannot connect to OMERO.
+     * @throws OMEROServerError         Server error.
+     * @throws IllegalArgumentException If the type is not supported.
+     * @throws UncheckedOMEROException  If the results cannot be retrieved.
+     */
+    public <T extends GenericObjectWrapper<?>> List<T> search(Class<T> type, String text, SearchOptions options,
+                                                              int offset, int limit)
+    throws ServiceException, OMEROServerError {
+        try (Stream<T> results = search(type, text, options)) {
+            return results.skip(offset).limit(limit).collect(Collectors.toList());
+        }
+    }
+
+
+    /**
+     * Gets the specified fields of all objects of a given type, without loading the objects.
+     *
+     * @param type   The type of objects (e.g. ImageWrapper.class).
+     * @param fields The fields to retrieve (e.g. "name", "details.owner.id").
+     *
+     * @return The projected objects, ordered by ID.
+     *
+     * @throws ServiceException Cannot connect to OMERO.
+     * @throws OMEROServerError Server error.
+     */
+    public List<ProjectedObject> getProjections(Class<? extends GenericObjectWrapper<?>> type, String... fields)
+    throws ServiceException, OMEROServerError {
+        return getProjections(type, 0, -1, fields);
+    }
+
+
+    /**
+     * Gets the specified fields of a page of objects of a given type, without loading the objects.
+     * <p> Only the requested values are transferred, through a single projection query.
+     *
+     * @param type   The type of objects (e.g. ImageWrapper.class).
+     * @param offset Number of objects to skip.
+     * @param limit  Maximum number of objects to return (no limit if negative).
+     * @param fields The fields to retrieve (e.g. "name", "details.owner.id").
+     *
+     * @return The projected objects, ordered by ID.
+     *
+     * @throws ServiceException         Cannot connect to OMERO.
+     * @throws OMEROServerError         Server error.
+     * @throws IllegalArgumentException If the type is not supported or a field is invalid.
+     */
+    public List<ProjectedObject> getProjections(Class<? extends GenericObjectWrapper<?>> type,
+                                                int offset, int limit, String... fields)
+    throws ServiceException, OMEROServerError {
+        String entity = entity(type);
+
+        QueryBuilder query = new QueryBuilder(entity, "o").select("o.id").orderBy("o.id");
+        for (String field : fields) {
+            if (!FIELD.matcher(field).matches()) {
+                throw new IllegalArgumentException("Invalid field: " + field);
+            }
+            query.select("o." + field);
+        }
+        if (limit >= 0) {
+            query.page(offset, limit);
+        }
+
+        List<List<RType>>     rows    = query.project(this);
+        List<ProjectedObject> results = new ArrayList<>(rows.size());
+        for (List<RType> row : rows) {
+            Map<String, Object> values = new LinkedHashMap<>(fields.length);
+            for (int k = 0; k < fields.length; k++) {
+                values.put(fields[k], rtypes.unwrap(row.get(k + 1)));
+            }
+            results.add(new ProjectedObject(entity, ((RLong) row.get(0)).getValue(), values));
+        }
+        return results;
+    }
+
+
     /**
      * Gets all images tagged with a specified tag from OMERO.
      *
@@ -444,7 +987,7 @@ public class Client extends GatewayWrapper {
 
 
     /**
-     * Gets all images with a certain key
+     * Gets all images owned by the current user with a certain key.
      *
      * @param key Name of the key researched.
      *
@@ -456,21 +999,48 @@ public class Client extends GatewayWrapper {
      */
     public List<ImageWrapper> getImagesKey(String key)
     throws ServiceException, AccessException, ExecutionException {
-        List<ImageWrapper> images   = getImages();
-        List<ImageWrapper> selected = new ArrayList<>();
-        for (ImageWrapper image : images) {
-            Map<String, String> pairsKeyValue = image.getKeyValuePairs(this);
-            if (pairsKeyValue.get(key) != null) {
-                selected.add(image);
-            }
-        }
+        return getImagesKey(key, 0, -1);
+    }
+
 
-        return selected;
+    /**
+     * Gets a page of the images owned by the current user with a certain key, ordered by ID.
+     * <p> The images are selected on the server by a single query on the key/value pairs.
+     *
+     * @param key    Name of the key researched.
+     * @param offset Number of matching images to skip.
+     * @param limit  Maximum number of images to return (no limit if negative).
+     *
+     * @return ImageWrapper list.
+     *
+     * @throws ServiceException   Cannot connect to OMERO.
+     * @throws AccessException    Cannot access data.
+     * @throws ExecutionException A Facility can't be retrieved or instantiated.
+     */
+    public List<ImageWrapper> getImagesKey(String key, int offset, int limit)
+    throws ServiceException, AccessException, ExecutionException {
+        ParametersI params = new ParametersI();
+        params.addId(getId());
+        params.add("key", rstring(key));
+        if (limit >= 0) {
+            params.page(offset, limit);
+        }
+        String query = "select distinct l.parent.id from ImageAnnotationLink l" +
+                       " where l.parent.details.owner.id = :id and l.child.id in" +
+                       " (select a.id from MapAnnotation a join a.mapValue mv where mv.name = :key)" +
+                       " order by l.parent.id";
+        Long[] ids = new Long[0];
+        try {
+            ids = findIds(query, params);
+        } catch (OMEROServerError e) {
+            handleServerAsServiceOrAccess(e, "Cannot retrieve images with key " + key);
+        }
+        return getImages(ids);
     }
 
 
     /**
-     * Gets all images with a certain key value pair from OMERO
+     * Gets all images owned by the current user with a certain key value pair from OMERO.
      *
      * @param key   Name of the key researched.
      * @param value Value associated with the key.
@@ -483,15 +1053,46 @@ public class Client extends GatewayWrapper {
      */
     public List<ImageWrapper> getImagesPairKeyValue(String key, String value)
     throws ServiceException, AccessException, ExecutionException {
-        List<ImageWrapper> images   = getImages();
-        List<ImageWrapper> selected = new ArrayList<>();
-        for (ImageWrapper image : images) {
-            Map<String, String> pairsKeyValue = image.getKeyValuePairs(this);
-            if (pairsKeyValue.get(key) != null && pairsKeyValue.get(key).equals(value)) {
-                selected.add(image);
-            }
+        return getImagesPairKeyValue(key, value, 0, -1);
+    }
+
+
+    /**
+     * Gets a page of the images owned by the current user with a certain key value pair, ordered by ID.
+     * <p> The images are selected on the server by a single query on the key/value pairs.
+     *
+     * @param key    Name of the key researched.
+     * @param value  Value associated with the key.
+     * @param offset Number of matching images to skip.
+     * @param limit  Maximum number of images to return (no limit if negative).
+     *
+     * @return ImageWrapper list.
+     *
+     * @throws ServiceException   Cannot connect to OMERO.
+     * @throws AccessException    Cannot access data.
+     * @throws ExecutionException A Facility can't be retrieved or instantiated.
+     */
+    public List<ImageWrapper> getImagesPairKeyValue(String key, String value, int offset, int limit)
+    throws ServiceException, AccessException, ExecutionException {
+        ParametersI params = new ParametersI();
+        params.addId(getId());
+        params.add("key", rstring(key));
+        params.add("value", rstring(value));
+        if (limit >= 0) {
+            params.page(offset, limit);
+        }
+        String query = "select distinct l.parent.id from ImageAnnotationLink l" +
+                       " where l.parent.details.owner.id = :id and l.child.id in" +
+                       " (select a.id from MapAnnotation a join a.mapValue mv" +
+                       " where mv.name = :key and mv.value = :value)" +
+                       " order by l.parent.id";
+        Long[] ids = new Long[0];
+        try {
+            ids = findIds(query, params);
+        } catch (OMEROServerError e) {
+            handleServerAsServiceOrAccess(e, "Cannot retrieve images with pair " + key + "=" + value);
         }
-        return selected;
+        return getImages(ids);
     }
 
 
@@ -680,12 +1281,35 @@ public class Client extends GatewayWrapper {
      */
     public List<WellWrapper> getWells()
     throws ServiceException, AccessException, ExecutionException, OMEROServerError {
-        Long[] ids = this.findByQuery("select w from Well w")
-                         .stream()
-                         .map(IObject::getId)
-                         .map(RLong::getValue)
-                         .toArray(Long[]::new);
-        return getWells(ids);
+        return getWells(findIds("select w.id from Well w", null));
+    }
+
+
+    /**
+     * Streams all wells available from OMERO, retrieving them in pages of {@link #DEFAULT_PAGE_SIZE}.
+     *
+     * @return A stream of WellWrappers, ordered by ID.
+     *
+     * @throws UncheckedOMEROException If a page cannot be retrieved while the stream is consumed.
+     */
+    public Stream<WellWrapper> streamWells() {
+        return streamWells(DEFAULT_PAGE_SIZE);
+    }
+
+
+    /**
+     * Streams all wells available from OMERO.
+     * <p> Wells are retrieved lazily, one page at a time, so that only one page is kept in memory.
+     *
+     * @param pageSize Number of wells retrieved at once.
+     *
+     * @return A stream of WellWrappers, ordered by ID.
+     *
+     * @throws UncheckedOMEROException If a page cannot be retrieved while the stream is consumed.
+     */
+    public Stream<WellWrapper> streamWells(int pageSize) {
+        String query = "select w.id from Well w where w.id > :last order by w.id";
+        return stream(new KeysetIterator<>(this, query, null, pageSize, this::getWells));
     }
 
 
@@ -724,10 +1348,15 @@ public class Client extends GatewayWrapper {
      * @throws ServiceException Cannot connect to OMERO.
      */
     public List<TagAnnotationWrapper> getTags(String name) throws OMEROServerError, ServiceException {
-        List<TagAnnotationWrapper> tags = getTags();
-        tags.removeIf(tag -> !tag.getName().equals(name));
-        tags.sort(Comparator.comparing(GenericObjectWrapper::getId));
-        return tags;
+        return new QueryBuilder("TagAnnotation", "t").where("t.textValue = :name")
+                                                     .bind("name", name)
+                                                     .orderBy("t.id")
+                                                     .find(this)
+                                                     .stream()
+                                                     .map(TagAnnotation.class::cast)
+                                                     .map(TagAnnotationData::new)
+                                                     .map(TagAnnotationWrapper::new)
+                                                     .collect(Collectors.toList());
     }
 
 
@@ -776,6 +1405,53 @@ public class Client extends GatewayWrapper {
     }
 
 
+    /**
+     * Deletes several objects from OMERO with a single request.
+     *
+     * @param objects The OMERO objects.
+     *
+     * @throws ServiceException     Cannot connect to OMERO.
+     * @throws AccessException      Cannot access data.
+     * @throws ExecutionException   A Facility can't be retrieved or instantiated.
+     * @throws OMEROServerError     If the thread was interrupted.
+     * @throws InterruptedException If block(long) does not return.
+     */
+    public void delete(Collection<? extends GenericObjectWrapper<?>> objects)
+    throws ServiceException, AccessException, ExecutionException, OMEROServerError, InterruptedException {
+        for (GenericObjectWrapper<?> object : objects) {
+            if (object instanceof FolderWrapper) {
+                ((FolderWrapper) object).unlinkAllROI(this);
+            }
+        }
+        deleteObjects(objects.stream().map(GenericObjectWrapper::asIObject).collect(Collectors.toList()));
+    }
+
+
+    /**
+     * Submits the deletion of several objects from OMERO with a single request, and returns without waiting for the
+     * server to complete it.
+     * <p> The returned callback can be used to wait for the deletion (e.g. with {@code loop} or {@code block}), and
+     * should be closed once it is no longer needed.
+     *
+     * @param objects The OMERO objects.
+     *
+     * @return The callback of the request, or null if there is nothing to delete.
+     *
+     * @throws ServiceException   Cannot connect to OMERO.
+     * @throws AccessException    Cannot access data.
+     * @throws ExecutionException A Facility can't be retrieved or instantiated.
+     */
+    public CmdCallbackI deleteAsync(Collection<? extends GenericObjectWrapper<?>> objects)
+    throws ServiceException, AccessException, ExecutionException {
+        for (GenericObjectWrapper<?> object : objects) {
+            if (object instanceof FolderWrapper) {
+                ((FolderWrapper) object).unlinkAllROI(this);
+            }
+        }
+        return submitDelete(objects.stream().map(GenericObjectWrapper::asIObject).collect(Collectors.toList()));
+    }
+
+
     /**
      * Deletes a table from OMERO
      *
@@ -873,5 +1549,137 @@ public class Client extends GatewayWrapper {
         return new Client(this.getGateway(), context, sudoUser);
     }
 
-}
 
+    /**
+     * Returns a view of this client working in the specified group.
+     * <p> The view shares the gateway, and therefore the connection, of this client, but has its own security context:
+     * several views can be used concurrently from different threads, each in its own group, without switching the
+     * group of this client. Views cannot connect, disconnect or switch group, and do not use the metadata cache: the
+     * objects they save, link or delete are invalidated in the cache of this client instead.
+     *
+     * @param groupId The group ID.
+     *
+     * @return See above.
+     *
+     * @throws IllegalStateException The client is not connected.
+     */
+    public Client withGroup(long groupId) {
+        if (!isConnected()) {
+            throw new IllegalStateException("Client is not connected");
+        }
+        return new GroupView(this, createContext(groupId));
+    }
+
+
+    /**
+     * Retrieves a list of objects from OMERO.
+     *
+     * @param <U> The type of the objects.
+     */
+    @FunctionalInterface
+    private interface Loader<U> {
+
+        /**
+         * Retrieves the objects.
+         *
+         * @return The objects.
+         *
+         * @throws DSOutOfServiceException Cannot connect to OMERO.
+         * @throws DSAccessException       Cannot access data.
+         * @throws ExecutionException      A Facility can't be retrieved or instantiated.
+         */
+        Collection<U> load() throws DSOutOfServiceException, DSAccessException, ExecutionException;
+
+    }
+
+
+    /**
+     * Retrieves objects from OMERO from their IDs.
+     *
+     * @param <U> The type of the objects.
+     */
+    @FunctionalInterface
+    private interface IdLoader<U> {
+
+        /**
+         * Retrieves the objects with the specified IDs.
+         *
+         * @param ids The IDs.
+         *
+         * @return The objects.
+         *
+         * @throws DSOutOfServiceException Cannot connect to OMERO.
+         * @throws DSAccessException       Cannot access data.
+         * @throws ExecutionException      A Facility can't be retrieved or instantiated.
+         */
+        Collection<U> load(List<Long> ids) throws DSOutOfServiceException, DSAccessException, ExecutionException;
+
+    }
+
+
+
+    /**
+     * Client working in a fixed group, sharing the connection of another client.
+     */
+    private static final class GroupView extends Client {
+
+        /** Client sharing its connection, whose metadata cache is kept up to date. */
+        private final Client parent;
+
+
+        /**
+         * Constructor of the GroupView class.
+         *
+         * @param parent The client sharing its connection.
+         * @param ctx    The security context of the group.
+         */
+        private GroupView(Client parent, SecurityContext ctx) {
+            super(parent.getGateway(), ctx, parent.getUser());
+            this.parent = parent;
+        }
+
+
+        @Override
+        public void connect(LoginCredentials cred) {
+            throw new UnsupportedOperationException("Cannot connect a group view");
+        }
+
+
+        @Override
+        public void disconnect() {
+            throw new UnsupportedOperationException("Cannot disconnect a group view");
+        }
+
+
+        @Override
+        public void switchGroup(long groupId) {
+            throw new UnsupportedOperationException("Cannot switch the group of a group view");
+        }
+
+
+        @Override
+        public void setCache(MetadataCache cache) {
+            throw new UnsupportedOperationException("Cannot cache metadata in a group view");
+        }
+
+
+        @Override
+        public void enableCache(long ttl, TimeUnit unit, int maxSize) {
+            throw new UnsupportedOperationException("Cannot cache metadata in a group view");
+        }
+
+
+        @Override
+        void invalidate(IObject object) {
+            parent.invalidate(object);
+        }
+
+
+        @Override
+        void clearCache() {
+            parent.clearCache();
+        }
+
+    }
+
+}
@@ -0,0 +1,358 @@
+/*
+ *  Copyright (C) 2020-2022 GReD
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 51 Franklin
+ * Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+
+package fr.igred.omero;
+
+
+import fr.igred.omero.exception.ServiceException;
+import omero.gateway.exception.DSOutOfServiceException;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+
+/**
+ * Pool of connected clients, for multi-threaded workloads.
+ * <p> All the clients are connected when the pool is created, either by logging in once per client, or by joining an
+ * existing session. Clients are then borrowed through leases, which return them to the pool when closed:
+ * <pre>{@code
+ * try (ClientPool pool = ClientPool.join(host, port, sessionId, 8);
+ *      ClientPool.Lease lease = pool.borrow()) {
+ *     Client client = lease.getClient();
+ *     ...
+ * }
+ * }</pre>
+ * Each client is checked when it is borrowed and reconnected if its session is no longer alive. Clients are switched
+ * back to their original group when they are returned.
+ */
+public class ClientPool implements AutoCloseable {
+
+    /** Logger */
+    private static final Logger LOGGER = Logger.getLogger(ClientPool.class.getName());
+
+    /** All the clients of the pool. */
+    private final List<Client> clients;
+
+    /** Clients available for borrowing. */
+    private final BlockingQueue<Client> idle;
+
+    /** Method used to connect and reconnect the clients. */
+    private final Connector connector;
+
+    /** Whether the pool was closed. */
+    private volatile boolean closed = false;
+
+
+    /**
+     * Constructor of the ClientPool class. Creates and connects all the clients.
+     *
+     * @param size      Number of clients.
+     * @param connector Method used to connect and reconnect the clients.
+     *
+     * @throws ServiceException Cannot connect to OMERO.
+     */
+    public ClientPool(int size, Connector connector) throws ServiceException {
+        if (size <= 0) {
+            throw new IllegalArgumentException("Pool size must be positive: " + size);
+        }
+        this.connector = connector;
+        this.clients = new ArrayList<>(size);
+        this.idle = new ArrayBlockingQueue<>(size);
+        try {
+            for (int i = 0; i < size; i++) {
+                Client client = new Client();
+                clients.add(client);
+                connector.connect(client);
+                idle.add(client);
+            }
+        } catch (ServiceException | RuntimeException e) {
+            close();
+            throw e;
+        }
+    }
+
+
+    /**
+     * Creates a pool of clients, each logging in to OMERO with the specified credentials.
+     *
+     * @param hostname Name of the host.
+     * @param port     Port used by OMERO.
+     * @param username Username of the user.
+     * @param password Password of the user.
+     * @param groupID  ID of the group to connect (null for the default group).
+     * @param size     Number of clients.
+     *
+     * @return See above.
+     *
+     * @throws ServiceException Cannot connect to OMERO.
+     */
+    public static ClientPool connect(String hostname, int port, String username, char[] password, Long groupID,
+                                     int size)
+    throws ServiceException {
+        char[] secret = password.clone();
+        return new ClientPool(size, client -> {
+            if (groupID != null) {
+                client.connect(hostname, port, username, secret, groupID);
+            } else {
+                client.connect(hostname, port, username, secret);
+            }
+        });
+    }
+
+
+    /**
+     * Creates a pool of clients joining an existing session, without logging in again.
+     *
+     * @param hostname  Name of the host.
+     * @param port      Port used by OMERO.
+     * @param sessionId The session ID.
+     * @param size      Number of clients.
+     *
+     * @return See above.
+     *
+     * @throws ServiceException Cannot connect to OMERO.
+     */
+    public static ClientPool join(String hostname, int port, String sessionId, int size) throws ServiceException {
+        return new ClientPool(size, client -> client.connect(hostname, port, sessionId));
+    }
+
+
+    /**
+     * Checks if a client is still connected to a live session.
+     *
+     * @param client The client.
+     *
+     * @return See above.
+     */
+    private static boolean isAlive(Client client) {
+        boolean alive = false;
+        try {
+            alive = client.isConnected() && client.getGateway().isAlive(client.getCtx());
+        } catch (DSOutOfServiceException | RuntimeException e) {
+            LOGGER.log(Level.FINE, "Pooled client is not alive", e);
+        }
+        return alive;
+    }
+
+
+    /**
+     * Returns the number of clients in the pool.
+     *
+     * @return See above.
+     */
+    public int getSize() {
+        return clients.size();
+    }
+
+
+    /**
+     * Returns the number of clients currently available.
+     *
+     * @return See above.
+     */
+    public int getIdleCount() {
+        return idle.size();
+    }
+
+
+    /**
+     * Checks if the pool was closed.
+     *
+     * @return See above.
+     */
+    public boolean isClosed() {
+        return closed;
+    }
+
+
+    /**
+     * Borrows a client, waiting until one is available.
+     *
+     * @return A lease on a connected client, to be closed when the client is no longer needed.
+     *
+     * @throws ServiceException     The client could not be reconnected.
+     * @throws InterruptedException The thread was interrupted while waiting.
+     */
+    public Lease borrow() throws ServiceException, InterruptedException {
+        checkOpen();
+        return lease(idle.take());
+    }
+
+
+    /**
+     * Borrows a client, waiting up to the specified time until one is available.
+     *
+     * @param timeout Maximum time to wait.
+     * @param unit    Unit of the timeout.
+     *
+     * @return A lease on a connected client, to be closed when the client is no longer needed, or null if no client
+     * became available in time.
+     *
+     * @throws ServiceException     The client could not be reconnected.
+     * @throws InterruptedException The thread was interrupted while waiting.
+     */
+    public Lease borrow(long timeout, TimeUnit unit) throws ServiceException, InterruptedException {
+        checkOpen();
+        Client client = idle.poll(timeout, unit);
+        return client != null ? lease(client) : null;
+    }
+
+
+    /**
+     * Throws an exception if the pool was closed.
+     */
+    private void checkOpen() {
+        if (closed) {
+            throw new IllegalStateException("Client pool is closed");
+        }
+    }
+
+
+    /**
+     * Validates a client taken from the idle queue, reconnecting it if needed, and creates the lease.
+     *
+     * @param client The client.
+     *
+     * @return See above.
+     *
+     * @throws ServiceException The client could not be reconnected.
+     */
+    private Lease lease(Client client) throws ServiceException {
+        try {
+            checkOpen();
+            if (!isAlive(client)) {
+                LOGGER.info("Reconnecting pooled client");
+                connector.connect(client);
+            }
+        } catch (ServiceException | RuntimeException e) {
+            release(client, -1L);
+            throw e;
+        }
+        return new Lease(client);
+    }
+
+
+    /**
+     * Returns a client to the pool.
+     *
+     * @param client  The client.
+     * @param groupId The group to restore, or a negative value to leave the client as is.
+     */
+    private synchronized void release(Client client, long groupId) {
+        if (closed) {
+            return;
+        }
+        if (groupId >= 0 && client.isConnected() && client.getCurrentGroupId() != groupId) {
+            client.switchGroup(groupId);
+        }
+        idle.add(client);
+    }
+
+
+    /**
+     * Closes the pool and disconnects all the clients, including borrowed ones.
+     */
+    @Override
+    public synchronized void close() {
+        closed = true;
+        idle.clear();
+        for (Client client : clients) {
+            try {
+                client.disconnect();
+            } catch (RuntimeException e) {
+                LOGGER.log(Level.WARNING, "Could not disconnect pooled client", e);
+            }
+        }
+    }
+
+
+    /**
+     * Method used to connect a client of the pool.
+     */
+    @FunctionalInterface
+    public interface Connector {
+
+        /**
+         * Connects the client to OMERO.
+         *
+         * @param client The client.
+         *
+         * @throws ServiceException Cannot connect to OMERO.
+         */
+        void connect(Client client) throws ServiceException;
+
+    }
+
+
+    /**
+     * Lease on a client of the pool. Closing the lease returns the client to the pool.
+     */
+    public final class Lease implements AutoCloseable {
+
+        /** The borrowed client. */
+        private final Client client;
+
+        /** Group of the client when it was borrowed. */
+        private final long groupId;
+
+        /** Whether the client was returned. */
+        private boolean released = false;
+
+
+        /**
+         * Constructor of the Lease class.
+         *
+         * @param client The borrowed client.
+         */
+        private Lease(Client client) {
+            this.client = client;
+            this.groupId = client.getCurrentGroupId();
+        }
+
+
+        /**
+         * Returns the borrowed client.
+         *
+         * @return See above.
+         */
+        public Client getClient() {
+            if (released) {
+                throw new IllegalStateException("Lease was already closed");
+            }
+            return client;
+        }
+
+
+        /**
+         * Returns the client to the pool. Further calls have no effect.
+         */
+        @Override
+        public void close() {
+            if (!released) {
+                released = true;
+                release(client, groupId);
+            }
+        }
+
+    }
+
+}
@@ -16,13 +16,18 @@
 package fr.igred.omero;
 
 
+import fr.igred.omero.annotations.FileAnnotationWrapper;
 import fr.igred.omero.exception.AccessException;
 import fr.igred.omero.exception.OMEROServerError;
 import fr.igred.omero.exception.ServiceException;
 import fr.igred.omero.meta.ExperimenterWrapper;
 import ome.formats.OMEROMetadataStoreClient;
 import omero.LockTimeout;
+import omero.RLong;
+import omero.RType;
 import omero.ServerError;
+import omero.api.RawFileStorePrx;
+import omero.cmd.CmdCallbackI;
 import omero.gateway.Gateway;
 import omero.gateway.JoinSessionCredentials;
 import omero.gateway.LoginCredentials;
@@ -37,10 +42,15 @@ import omero.gateway.facility.ROIFacility;
 import omero.gateway.facility.TablesFacility;
 import omero.model.FileAnnotationI;
 import omero.model.IObject;
+import omero.sys.Parameters;
 
+import java.io.IOException;
+import java.io.OutputStream;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.List;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
 
 import static fr.igred.omero.exception.ExceptionHandler.handleException;
 import static fr.igred.omero.exception.ExceptionHandler.handleServiceOrAccess;
@@ -58,10 +68,13 @@ public abstract class GatewayWrapper {
     private final Gateway gateway;
 
     /** Security context of the user, contains the permissions of the user in this group. */
-    private SecurityContext ctx;
+    private volatile SecurityContext ctx;
 
     /** User */
-    private ExperimenterWrapper user;
+    private volatile ExperimenterWrapper user;
+
+    /** Metadata cache, null if disabled. */
+    private volatile MetadataCache cache;
 
 
     /**
@@ -250,6 +263,7 @@ public abstract class GatewayWrapper {
             }
             ctx = null;
             user = null;
+            clearCache();
             gateway.disconnect();
         }
     }
@@ -261,10 +275,80 @@ public abstract class GatewayWrapper {
      * @param groupId The group ID.
      */
     public void switchGroup(long groupId) {
-        boolean sudo = ctx.isSudo();
-        ctx = new SecurityContext(groupId);
-        ctx.setExperimenter(user.asExperimenterData());
-        if (sudo) ctx.sudo();
+        ctx = createContext(groupId);
+        clearCache();
+    }
+
+
+    /**
+     * Creates a security context for the current user in the specified group, keeping the sudo status.
+     *
+     * @param groupId The group ID.
+     *
+     * @return See above.
+     */
+    protected SecurityContext createContext(long groupId) {
+        SecurityContext current = ctx;
+        SecurityContext context = new SecurityContext(groupId);
+        context.setExperimenter(user.asExperimenterData());
+        if (current.isSudo()) context.sudo();
+        return context;
+    }
+
+
+    /**
+     * Returns the metadata cache used by this client.
+     *
+     * @return The cache, or null if caching is disabled.
+     */
+    public MetadataCache getCache() {
+        return cache;
+    }
+
+
+    /**
+     * Sets the metadata cache used by this client.
+     *
+     * @param cache The cache (null to disable caching).
+     */
+    public void setCache(MetadataCache cache) {
+        this.cache = cache;
+    }
+
+
+    /**
+     * Enables caching of the metadata retrieved by this client, replacing the current cache if any.
+     *
+     * @param ttl     Time-to-live of the cached entries.
+     * @param unit    Unit of the time-to-live.
+     * @param maxSize Maximum number of cached entries.
+     */
+    public void enableCache(long ttl, TimeUnit unit, int maxSize) {
+        this.cache = new MetadataCache(ttl, unit, maxSize);
+    }
+
+
+    /**
+     * Removes an object from the metadata cache, if enabled, after it was modified through this client.
+     *
+     * @param object The OMERO object.
+     */
+    void invalidate(IObject object) {
+        MetadataCache metadataCache = cache;
+        if (metadataCache != null && object != null) {
+            metadataCache.invalidate(object);
+        }
+    }
+
+
+    /**
+     * Clears the metadata cache, if enabled.
+     */
+    void clearCache() {
+        MetadataCache metadataCache = cache;
+        if (metadataCache != null) {
+            metadataCache.clear();
+        }
     }
 
 
@@ -358,6 +442,28 @@ public abstract class GatewayWrapper {
     }
 
 
+    /**
+     * Creates a new import store using the current session, with its own services.
+     * <p> Unlike {@link #getImportStore()}, which returns the store shared by all the imports of the gateway, the store
+     * returned is not shared: it can be used for the whole lifetime of an import worker, and logging it out only closes
+     * its own services.
+     *
+     * @return See above.
+     *
+     * @throws ServiceException Cannot connect to OMERO.
+     * @throws OMEROServerError Server error.
+     */
+    public OMEROMetadataStoreClient createImportStore() throws ServiceException, OMEROServerError {
+        OMEROMetadataStoreClient store = new OMEROMetadataStoreClient();
+        try {
+            store.initialize(getImportStore().getServiceFactory());
+        } catch (ServerError e) {
+            throw new OMEROServerError("Could not create import store", e);
+        }
+        return store;
+    }
+
+
     /**
      * Finds objects on OMERO through a database query.
      *
@@ -369,9 +475,49 @@ public abstract class GatewayWrapper {
      * @throws OMEROServerError Server error.
      */
     public List<IObject> findByQuery(String query) throws ServiceException, OMEROServerError {
+        return findByQuery(query, null);
+    }
+
+
+    /**
+     * Finds objects on OMERO through a parameterized database query.
+     *
+     * @param query  The database query.
+     * @param params The query parameters (can be null).
+     *
+     * @return A list of OMERO objects.
+     *
+     * @throws ServiceException Cannot connect to OMERO.
+     * @throws OMEROServerError Server error.
+     */
+    public List<IObject> findByQuery(String query, Parameters params) throws ServiceException, OMEROServerError {
         List<IObject> results = new ArrayList<>(0);
         try {
-            results = gateway.getQueryService(ctx).findAllByQuery(query, null);
+            results = gateway.getQueryService(ctx).findAllByQuery(query, params);
+        } catch (DSOutOfServiceException | ServerError e) {
+            handleServiceOrServer(e, "Query failed: " + query);
+        }
+
+        return results;
+    }
+
+
+    /**
+     * Runs a projection query on OMERO, returning the selected values instead of objects.
+     *
+     * @param query  The database query.
+     * @param params The query parameters (can be null).
+     *
+     * @return A list of rows, each containing the selected values.
+     *
+     * @throws ServiceException Cannot connect to OMERO.
+     * @throws OMEROServerError Server error.
+     */
+    public List<List<RType>> projection(String query, Parameters params)
+    throws ServiceException, OMEROServerError {
+        List<List<RType>> results = new ArrayList<>(0);
+        try {
+            results = gateway.getQueryService(ctx).projection(query, params);
         } catch (DSOutOfServiceException | ServerError e) {
             handleServiceOrServer(e, "Query failed: " + query);
         }
@@ -380,6 +526,57 @@ public abstract class GatewayWrapper {
     }
 
 
+    /**
+     * Runs a projection query on OMERO selecting IDs, and returns the IDs from the first column.
+     *
+     * @param query  The database query.
+     * @param params The query parameters (can be null).
+     *
+     * @return The IDs, in the order returned by the query.
+     *
+     * @throws ServiceException Cannot connect to OMERO.
+     * @throws OMEROServerError Server error.
+     */
+    public Long[] findIds(String query, Parameters params) throws ServiceException, OMEROServerError {
+        return projection(query, params).stream()
+                                        .map(row -> ((RLong) row.get(0)).getValue())
+                                        .toArray(Long[]::new);
+    }
+
+
+    /**
+     * Writes the content of an original file to a stream, reading blocks of
+     * {@link FileAnnotationWrapper#DEFAULT_BUFFER_SIZE} bytes with its own raw file store.
+     *
+     * @param fileId The original file ID.
+     * @param size   The file size.
+     * @param stream The destination stream.
+     *
+     * @throws ServiceException Cannot connect to OMERO.
+     * @throws OMEROServerError Server error.
+     * @throws IOException      Cannot write to the stream.
+     */
+    public void download(long fileId, long size, OutputStream stream)
+    throws ServiceException, OMEROServerError, IOException {
+        final int inc = FileAnnotationWrapper.DEFAULT_BUFFER_SIZE;
+        try {
+            RawFileStorePrx store = gateway.getRawFileService(ctx);
+            try {
+                store.setFileId(fileId);
+                long offset;
+                for (offset = 0; offset + inc < size; offset += inc) {
+                    stream.write(store.read(offset, inc));
+                }
+                stream.write(store.read(offset, (int) (size - offset)));
+            } finally {
+                store.close();
+            }
+        } catch (DSOutOfServiceException | ServerError e) {
+            handleServiceOrServer(e, "Cannot download file " + fileId);
+        }
+    }
+
+
     /**
      * Saves an object on OMERO.
      *
@@ -398,10 +595,39 @@ public abstract class GatewayWrapper {
         } catch (DSOutOfServiceException | DSAccessException e) {
             handleServiceOrAccess(e, "Cannot save object");
         }
+        invalidate(object);
+        invalidate(result);
         return result;
     }
 
 
+    /**
+     * Saves several objects on OMERO in a single call.
+     *
+     * @param objects The OMERO objects.
+     *
+     * @return The saved OMERO objects.
+     *
+     * @throws ServiceException   Cannot connect to OMERO.
+     * @throws AccessException    Cannot access data.
+     * @throws ExecutionException A Facility can't be retrieved or instantiated.
+     */
+    public List<IObject> save(Collection<? extends IObject> objects)
+    throws ServiceException, AccessException, ExecutionException {
+        List<IObject> results = new ArrayList<>(objects);
+        if (!objects.isEmpty()) {
+            try {
+                results = getDm().saveAndReturnObject(ctx, results, null, null);
+            } catch (DSOutOfServiceException | DSAccessException e) {
+                handleServiceOrAccess(e, "Cannot save objects");
+            }
+        }
+        objects.forEach(this::invalidate);
+        results.forEach(this::invalidate);
+        return results;
+    }
+
+
     /**
      * Deletes an object from OMERO.
      *
@@ -420,7 +646,63 @@ public abstract class GatewayWrapper {
             getDm().delete(ctx, object).loop(10, ms);
         } catch (DSOutOfServiceException | DSAccessException | LockTimeout e) {
             handleException(e, "Cannot delete object");
+        } finally {
+            clearCache();
+        }
+    }
+
+
+    /**
+     * Deletes several objects from OMERO with a single request.
+     *
+     * @param objects The OMERO objects.
+     *
+     * @throws ServiceException     Cannot connect to OMERO.
+     * @throws AccessException      Cannot access data.
+     * @throws ExecutionException   A Facility can't be retrieved or instantiated.
+     * @throws OMEROServerError     If the thread was interrupted.
+     * @throws InterruptedException If block(long) does not return.
+     */
+    void deleteObjects(Collection<? extends IObject> objects)
+    throws ServiceException, AccessException, ExecutionException, OMEROServerError, InterruptedException {
+        final int ms = 500;
+        if (!objects.isEmpty()) {
+            try {
+                getDm().delete(ctx, new ArrayList<>(objects)).loop(10 + objects.size(), ms);
+            } catch (DSOutOfServiceException | DSAccessException | LockTimeout e) {
+                handleException(e, "Cannot delete objects");
+            } finally {
+                clearCache();
+            }
+        }
+    }
+
+
+    /**
+     * Submits the deletion of several objects from OMERO with a single request, without waiting for the server to
+     * complete it.
+     *
+     * @param objects The OMERO objects.
+     *
+     * @return The callback of the request, or null if there is nothing to delete.
+     *
+     * @throws ServiceException   Cannot connect to OMERO.
+     * @throws AccessException    Cannot access data.
+     * @throws ExecutionException A Facility can't be retrieved or instantiated.
+     */
+    CmdCallbackI submitDelete(Collection<? extends IObject> objects)
+    throws ServiceException, AccessException, ExecutionException {
+        CmdCallbackI callback = null;
+        if (!objects.isEmpty()) {
+            try {
+                callback = getDm().delete(ctx, new ArrayList<>(objects));
+            } catch (DSOutOfServiceException | DSAccessException e) {
+                handleServiceOrAccess(e, "Cannot delete objects");
+            } finally {
+                clearCache();
+            }
         }
+        return callback;
     }
 
 
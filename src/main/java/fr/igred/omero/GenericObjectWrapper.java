@@ -113,6 +113,17 @@ public abstract class GenericObjectWrapper<T extends DataObject> {
     }
 
 
+    /**
+     * Removes an object modified outside of the save methods (e.g. by an import) from the client metadata cache.
+     *
+     * @param client The client handling the connection.
+     * @param object The OMERO object.
+     */
+    protected static void invalidate(Client client, IObject object) {
+        client.invalidate(object);
+    }
+
+
     /**
      * Returns the contained DataObject as IObject.
      *
@@ -188,6 +199,7 @@ public abstract class GenericObjectWrapper<T extends DataObject> {
         } catch (DSOutOfServiceException | DSAccessException e) {
             handleServiceOrAccess(e, "Cannot save and update object.");
         }
+        client.invalidate(asIObject());
     }
 
 
@@ -0,0 +1,160 @@
+/*
+ *  Copyright (C) 2020-2022 GReD
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 51 Franklin
+ * Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+
+package fr.igred.omero;
+
+
+import fr.igred.omero.exception.AccessException;
+import fr.igred.omero.exception.OMEROServerError;
+import fr.igred.omero.exception.ServiceException;
+import fr.igred.omero.exception.UncheckedOMEROException;
+import omero.sys.ParametersI;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ExecutionException;
+
+import static omero.rtypes.rlong;
+
+
+/**
+ * Iterator loading objects page by page, using keyset pagination on their IDs.
+ * <p> The query must select IDs, filter them with {@code id > :last} and order them by ID. Each page is retrieved with
+ * the last ID of the previous one, so that the cost of a page does not depend on its position and only one page is
+ * kept in memory.
+ *
+ * @param <T> Subclass of {@link GenericObjectWrapper}
+ */
+class KeysetIterator<T extends GenericObjectWrapper<?>> implements Iterator<T> {
+
+    /** The client handling the connection. */
+    private final Client client;
+
+    /** Query selecting the IDs. */
+    private final String query;
+
+    /** Query parameters, including the page. */
+    private final ParametersI params;
+
+    /** Number of IDs per page. */
+    private final int pageSize;
+
+    /** Function loading the objects from their IDs. */
+    private final Loader<T> loader;
+
+    /** Objects of the current page. */
+    private Iterator<T> page = Collections.emptyIterator();
+
+    /** Last ID retrieved. */
+    private long last = -1L;
+
+    /** Whether the last page was retrieved. */
+    private boolean done = false;
+
+
+    /**
+     * Constructor of the KeysetIterator class.
+     *
+     * @param client   The client handling the connection.
+     * @param query    Query selecting the IDs, with a {@code :last} parameter.
+     * @param params   Other query parameters (can be null).
+     * @param pageSize Number of objects per page.
+     * @param loader   Function loading the objects from their IDs.
+     */
+    KeysetIterator(Client client, String query, ParametersI params, int pageSize, Loader<T> loader) {
+        if (pageSize <= 0) {
+            throw new IllegalArgumentException("Page size must be positive: " + pageSize);
+        }
+        this.client = client;
+        this.query = query;
+        this.params = params != null ? params : new ParametersI();
+        this.pageSize = pageSize;
+        this.loader = loader;
+        this.params.page(0, pageSize);
+    }
+
+
+    /**
+     * Retrieves the next page.
+     *
+     * @throws ServiceException   Cannot connect to OMERO.
+     * @throws AccessException    Cannot access data.
+     * @throws OMEROServerError   Server error.
+     * @throws ExecutionException A Facility can't be retrieved or instantiated.
+     */
+    private void fetch() throws ServiceException, AccessException, OMEROServerError, ExecutionException {
+        params.add("last", rlong(last));
+        Long[] ids = client.findIds(query, params);
+        if (ids.length < pageSize) {
+            done = true;
+        }
+        if (ids.length > 0) {
+            last = ids[ids.length - 1];
+            page = loader.load(ids).iterator();
+        }
+    }
+
+
+    @Override
+    public boolean hasNext() {
+        while (!page.hasNext() && !done) {
+            try {
+                fetch();
+            } catch (ServiceException | AccessException | OMEROServerError | ExecutionException e) {
+                throw new UncheckedOMEROException("Cannot retrieve objects after ID " + last, e);
+            }
+        }
+        return page.hasNext();
+    }
+
+
+    @Override
+    public T next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        return page.next();
+    }
+
+
+    /**
+     * Loads objects from their IDs.
+     *
+     * @param <T> Subclass of {@link GenericObjectWrapper}
+     */
+    @FunctionalInterface
+    interface Loader<T> {
+
+        /**
+         * Loads the objects with the specified IDs.
+         *
+         * @param ids The IDs.
+         *
+         * @return The objects.
+         *
+         * @throws ServiceException   Cannot connect to OMERO.
+         * @throws AccessException    Cannot access data.
+         * @throws OMEROServerError   Server error.
+         * @throws ExecutionException A Facility can't be retrieved or instantiated.
+         */
+        List<T> load(Long... ids) throws ServiceException, AccessException, OMEROServerError, ExecutionException;
+
+    }
+
+}
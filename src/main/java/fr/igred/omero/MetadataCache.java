@@ -0,0 +1,361 @@
+/*
+ *  Copyright (C) 2020-2022 GReD
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 51 Franklin
+ * Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+
+package fr.igred.omero;
+
+
+import omero.gateway.model.DataObject;
+import omero.gateway.util.PojoMapper;
+import omero.model.ILink;
+import omero.model.IObject;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+
+/**
+ * Cache for the metadata retrieved by a client, with a time-to-live and a maximum number of entries.
+ * <p> Objects are cached by type and ID, and lists returned by common queries are cached as a whole. When the maximum
+ * size is reached, the least recently used entries are evicted first.
+ * <p> The cache stores serialized snapshots of the OMERO objects, and every lookup rebuilds new objects from them:
+ * modifying an object retrieved from the cache does not change what later lookups return. Objects which cannot be
+ * serialized are not cached.
+ * <p> Entries are invalidated when the client owning the cache saves, links, unlinks or deletes objects: the affected
+ * objects (and both ends of links) are removed and cached lists are cleared. Deleting objects clears the whole cache,
+ * since deletions can cascade to other objects. Changes made by other clients are only seen once entries expire.
+ * <p> Annotations are not cached, so annotating objects does not invalidate entries.
+ */
+public class MetadataCache {
+
+    /** Logger */
+    private static final Logger LOGGER = Logger.getLogger(MetadataCache.class.getName());
+
+    /** Prefix of the keys of cached lists. */
+    private static final String LIST_PREFIX = "list:";
+
+    /** Cached entries, in access order. */
+    private final Map<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+    /** Time-to-live of the entries, in nanoseconds. */
+    private final long ttl;
+
+    /** Maximum number of entries. */
+    private final int maxSize;
+
+
+    /**
+     * Constructor of the MetadataCache class.
+     *
+     * @param ttl     Time-to-live of the entries.
+     * @param unit    Unit of the time-to-live.
+     * @param maxSize Maximum number of entries.
+     */
+    public MetadataCache(long ttl, TimeUnit unit, int maxSize) {
+        if (ttl <= 0 || maxSize <= 0) {
+            throw new IllegalArgumentException("Time-to-live and maximum size must be positive");
+        }
+        this.ttl = unit.toNanos(ttl);
+        this.maxSize = maxSize;
+    }
+
+
+    /**
+     * Returns the key of an object.
+     *
+     * @param type The object type (e.g. "Image").
+     * @param id   The object ID.
+     *
+     * @return See above.
+     */
+    static String key(String type, long id) {
+        return type + ":" + id;
+    }
+
+
+    /**
+     * Returns the key of a list.
+     *
+     * @param name The list name.
+     *
+     * @return See above.
+     */
+    static String listKey(String name) {
+        return LIST_PREFIX + name;
+    }
+
+
+    /**
+     * Returns the type of an OMERO object, as used in the keys.
+     *
+     * @param object The OMERO object.
+     *
+     * @return See above.
+     */
+    private static String type(IObject object) {
+        String type = object.getClass().getSimpleName();
+        return type.endsWith("I") ? type.substring(0, type.length() - 1) : type;
+    }
+
+
+    /**
+     * Returns the time-to-live of the entries.
+     *
+     * @param unit The unit.
+     *
+     * @return See above.
+     */
+    public long getTimeToLive(TimeUnit unit) {
+        return unit.convert(ttl, TimeUnit.NANOSECONDS);
+    }
+
+
+    /**
+     * Returns the maximum number of entries.
+     *
+     * @return See above.
+     */
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+
+    /**
+     * Returns the current number of entries, including expired entries not yet removed.
+     *
+     * @return See above.
+     */
+    public synchronized int size() {
+        return entries.size();
+    }
+
+
+    /**
+     * Removes all entries.
+     */
+    public synchronized void clear() {
+        entries.clear();
+    }
+
+
+    /**
+     * Serializes an OMERO object.
+     *
+     * @param object The OMERO object.
+     *
+     * @return The serialized object, or null if it cannot be serialized.
+     */
+    private static byte[] snapshot(DataObject object) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(1024);
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeObject(object.asIObject());
+        } catch (IOException e) {
+            LOGGER.log(Level.FINE, "Could not cache object", e);
+            return null;
+        }
+        return bytes.toByteArray();
+    }
+
+
+    /**
+     * Rebuilds an object from its snapshot.
+     *
+     * @param snapshot The serialized OMERO object.
+     * @param <T>      The type of DataObject.
+     *
+     * @return The object, or null if it cannot be deserialized.
+     */
+    @SuppressWarnings("unchecked")
+    private static <T extends DataObject> T restore(byte[] snapshot) {
+        try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(snapshot))) {
+            return (T) PojoMapper.asDataObject((IObject) in.readObject());
+        } catch (IOException | ClassNotFoundException e) {
+            LOGGER.log(Level.FINE, "Could not restore cached object", e);
+            return null;
+        }
+    }
+
+
+    /**
+     * Retrieves a value from the cache.
+     *
+     * @param key The key.
+     *
+     * @return The value, or null if it is not cached or has expired.
+     */
+    private synchronized Object get(String key) {
+        Entry entry = entries.get(key);
+        if (entry == null) {
+            return null;
+        }
+        if (System.nanoTime() - entry.time > ttl) {
+            entries.remove(key);
+            return null;
+        }
+        return entry.value;
+    }
+
+
+    /**
+     * Stores a value in the cache, evicting the least recently used entries if needed.
+     *
+     * @param key   The key.
+     * @param value The value.
+     */
+    private synchronized void put(String key, Object value) {
+        entries.put(key, new Entry(value, System.nanoTime()));
+        Iterator<String> it = entries.keySet().iterator();
+        while (entries.size() > maxSize && it.hasNext()) {
+            it.next();
+            it.remove();
+        }
+    }
+
+
+    /**
+     * Retrieves a copy of a cached object.
+     *
+     * @param key The key.
+     * @param <T> The type of DataObject.
+     *
+     * @return A new object, or null if it is not cached or has expired.
+     */
+    <T extends DataObject> T getObject(String key) {
+        byte[] snapshot = (byte[]) get(key);
+        return snapshot != null ? restore(snapshot) : null;
+    }
+
+
+    /**
+     * Stores a snapshot of an object in the cache.
+     *
+     * @param key    The key.
+     * @param object The object.
+     */
+    void putObject(String key, DataObject object) {
+        byte[] snapshot = snapshot(object);
+        if (snapshot != null) {
+            put(key, snapshot);
+        }
+    }
+
+
+    /**
+     * Retrieves a copy of a cached list.
+     *
+     * @param key The key.
+     * @param <T> The type of DataObject.
+     *
+     * @return A new list of new objects, or null if it is not cached or has expired.
+     */
+    @SuppressWarnings("unchecked")
+    <T extends DataObject> List<T> getList(String key) {
+        List<byte[]> snapshots = (List<byte[]>) get(key);
+        if (snapshots == null) {
+            return null;
+        }
+        List<T> objects = new ArrayList<>(snapshots.size());
+        for (byte[] snapshot : snapshots) {
+            T object = restore(snapshot);
+            if (object == null) {
+                return null;
+            }
+            objects.add(object);
+        }
+        return objects;
+    }
+
+
+    /**
+     * Stores snapshots of a list of objects in the cache.
+     *
+     * @param key     The key.
+     * @param objects The objects.
+     */
+    void putList(String key, Collection<? extends DataObject> objects) {
+        List<byte[]> snapshots = new ArrayList<>(objects.size());
+        for (DataObject object : objects) {
+            byte[] snapshot = snapshot(object);
+            if (snapshot == null) {
+                return;
+            }
+            snapshots.add(snapshot);
+        }
+        put(key, Collections.unmodifiableList(snapshots));
+    }
+
+
+    /**
+     * Invalidates a saved or linked object, and all cached lists.
+     *
+     * @param object The OMERO object.
+     */
+    synchronized void invalidate(IObject object) {
+        if (object instanceof ILink) {
+            ILink link = (ILink) object;
+            if (link.getParent() != null) {
+                invalidate(link.getParent());
+            }
+            if (link.getChild() != null) {
+                invalidate(link.getChild());
+            }
+        }
+        if (object.getId() != null) {
+            entries.remove(key(type(object), object.getId().getValue()));
+        }
+        entries.keySet().removeIf(key -> key.startsWith(LIST_PREFIX));
+    }
+
+
+    /**
+     * Cached value.
+     */
+    private static class Entry {
+
+        /** The value. */
+        final Object value;
+
+        /** Time when the value was cached. */
+        final long time;
+
+
+        /**
+         * Constructor of the Entry class.
+         *
+         * @param value The value.
+         * @param time  Time when the value was cached.
+         */
+        Entry(Object value, long time) {
+            this.value = value;
+            this.time = time;
+        }
+
+    }
+
+}
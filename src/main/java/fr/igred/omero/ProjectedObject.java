@@ -0,0 +1,144 @@
+/*
+ *  Copyright (C) 2020-2022 GReD
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 51 Franklin
+ * Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+
+package fr.igred.omero;
+
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+
+
+/**
+ * Immutable result of a projection query, holding only the requested fields of an object.
+ * <p> Such results are much lighter than the full objects, and should be preferred when only a few fields are needed
+ * (e.g. to list names or check existence).
+ */
+public final class ProjectedObject {
+
+    /** Type of the object (e.g. "Image"). */
+    private final String type;
+
+    /** ID of the object. */
+    private final long id;
+
+    /** Values of the requested fields. */
+    private final Map<String, Object> values;
+
+
+    /**
+     * Constructor of the ProjectedObject class.
+     *
+     * @param type   Type of the object.
+     * @param id     ID of the object.
+     * @param values Values of the requested fields, in the requested order.
+     */
+    ProjectedObject(String type, long id, Map<String, Object> values) {
+        this.type = type;
+        this.id = id;
+        this.values = Collections.unmodifiableMap(values);
+    }
+
+
+    /**
+     * Returns the type of the object.
+     *
+     * @return See above.
+     */
+    public String getType() {
+        return type;
+    }
+
+
+    /**
+     * Returns the ID of the object.
+     *
+     * @return See above.
+     */
+    public long getId() {
+        return id;
+    }
+
+
+    /**
+     * Returns the requested fields.
+     *
+     * @return See above.
+     */
+    public Set<String> getFields() {
+        return values.keySet();
+    }
+
+
+    /**
+     * Returns the value of a field.
+     *
+     * @param field The field.
+     *
+     * @return The value, or null if it is not set.
+     *
+     * @throws IllegalArgumentException If the field was not requested.
+     */
+    public Object get(String field) {
+        if (!values.containsKey(field)) {
+            throw new IllegalArgumentException("Field was not retrieved: " + field);
+        }
+        return values.get(field);
+    }
+
+
+    /**
+     * Returns the value of a field as a string.
+     *
+     * @param field The field.
+     *
+     * @return The value, or null if it is not set.
+     *
+     * @throws IllegalArgumentException If the field was not requested.
+     */
+    public String getString(String field) {
+        Object value = get(field);
+        return value != null ? value.toString() : null;
+    }
+
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (o == null || getClass() != o.getClass()) {
+            return false;
+        }
+        ProjectedObject that = (ProjectedObject) o;
+        return id == that.id && type.equals(that.type) && values.equals(that.values);
+    }
+
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(type, id, values);
+    }
+
+
+    @Override
+    public String toString() {
+        return type + "{id=" + id + ", " + values + "}";
+    }
+
+}
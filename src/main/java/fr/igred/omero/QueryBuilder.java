@@ -0,0 +1,436 @@
+/*
+ *  Copyright (C) 2020-2022 GReD
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 51 Franklin
+ * Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+
+package fr.igred.omero;
+
+
+import fr.igred.omero.exception.OMEROServerError;
+import fr.igred.omero.exception.ServiceException;
+import omero.RLong;
+import omero.RType;
+import omero.model.IObject;
+import omero.rtypes;
+import omero.sys.ParametersI;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static omero.rtypes.rbool;
+import static omero.rtypes.rdouble;
+import static omero.rtypes.rlist;
+import static omero.rtypes.rlong;
+import static omero.rtypes.rstring;
+
+
+/**
+ * Builds parameterised HQL queries and runs them through the query service.
+ * <p> Values are never concatenated to the query: they are bound to named parameters, so that the query string stays
+ * the same from one call to another and cannot be altered by the values. For example:
+ * <pre>{@code
+ * List<IObject> links = new QueryBuilder("ImageAnnotationLink", "link")
+ *         .fetch("link.child")
+ *         .where("link.parent.id = :image")
+ *         .bind("image", imageId)
+ *         .orderBy("link.id")
+ *         .find(client);
+ * }</pre>
+ */
+public class QueryBuilder {
+
+    /** Queried entity. */
+    private final String entity;
+
+    /** Alias of the queried entity. */
+    private final String alias;
+
+    /** Selected expressions. */
+    private final List<String> projections = new ArrayList<>(1);
+
+    /** Join clauses. */
+    private final List<String> joins = new ArrayList<>(0);
+
+    /** Conditions, combined with "and". */
+    private final List<String> conditions = new ArrayList<>(1);
+
+    /** Ordering expressions. */
+    private final List<String> orders = new ArrayList<>(0);
+
+    /** Parameters bound to the query. */
+    private final ParametersI params = new ParametersI();
+
+    /** Whether duplicate results should be removed. */
+    private boolean distinct = false;
+
+
+    /**
+     * Constructor of the QueryBuilder class.
+     *
+     * @param entity The queried entity (e.g. "Image").
+     * @param alias  The alias used for the entity in the query.
+     */
+    public QueryBuilder(String entity, String alias) {
+        this.entity = entity;
+        this.alias = alias;
+    }
+
+
+    /**
+     * Adds expressions to select. If none is added, the entity itself is selected.
+     *
+     * @param expressions The selected expressions (e.g. "i.id", "i.name").
+     *
+     * @return This builder.
+     */
+    public QueryBuilder select(String... expressions) {
+        Collections.addAll(projections, expressions);
+        return this;
+    }
+
+
+    /**
+     * Removes duplicate results.
+     *
+     * @return This builder.
+     */
+    public QueryBuilder distinct() {
+        this.distinct = true;
+        return this;
+    }
+
+
+    /**
+     * Adds an inner join.
+     *
+     * @param path  The joined path (e.g. "i.datasetLinks").
+     * @param alias The alias of the joined objects.
+     *
+     * @return This builder.
+     */
+    public QueryBuilder join(String path, String alias) {
+        joins.add(" join " + path + " " + alias);
+        return this;
+    }
+
+
+    /**
+     * Adds a fetch join, so that the objects at the specified path are loaded with the results.
+     *
+     * @param path The fetched path (e.g. "link.child").
+     *
+     * @return This builder.
+     */
+    public QueryBuilder fetch(String path) {
+        joins.add(" join fetch " + path);
+        return this;
+    }
+
+
+    /**
+     * Adds a fetch join, with an alias usable in the other clauses.
+     *
+     * @param path  The fetched path (e.g. "link.child").
+     * @param alias The alias of the fetched objects.
+     *
+     * @return This builder.
+     */
+    public QueryBuilder fetch(String path, String alias) {
+        joins.add(" join fetch " + path + " " + alias);
+        return this;
+    }
+
+
+    /**
+     * Adds a left outer fetch join, so that results without objects at the specified path are kept.
+     *
+     * @param path  The fetched path (e.g. "p.datasetLinks").
+     * @param alias The alias of the fetched objects.
+     *
+     * @return This builder.
+     */
+    public QueryBuilder leftFetch(String path, String alias) {
+        joins.add(" left outer join fetch " + path + " " + alias);
+        return this;
+    }
+
+
+    /**
+     * Adds a condition. Conditions are parenthesised and combined with "and", so that conditions using "or" keep
+     * their meaning.
+     *
+     * @param condition The condition, referring to values through named parameters (e.g. "i.name = :name").
+     *
+     * @return This builder.
+     */
+    public QueryBuilder where(String condition) {
+        conditions.add("(" + condition + ")");
+        return this;
+    }
+
+
+    /**
+     * Escapes the wildcards in a motif used in a LIKE condition, and adds wildcards around it, so that the motif is
+     * matched literally anywhere in the value.
+     *
+     * @param motif The motif.
+     *
+     * @return The pattern, to be used with {@code escape '!'} (e.g. "i.name like :pattern escape '!'").
+     */
+    public static String likePattern(String motif) {
+        String escaped = motif.replace("!", "!!").replace("%", "!%").replace("_", "!_");
+        return "%" + escaped + "%";
+    }
+
+
+    /**
+     * Binds a long value to a named parameter.
+     *
+     * @param name  The parameter name.
+     * @param value The value.
+     *
+     * @return This builder.
+     */
+    public QueryBuilder bind(String name, long value) {
+        params.add(name, rlong(value));
+        return this;
+    }
+
+
+    /**
+     * Binds a string value to a named parameter.
+     *
+     * @param name  The parameter name.
+     * @param value The value.
+     *
+     * @return This builder.
+     */
+    public QueryBuilder bind(String name, String value) {
+        params.add(name, rstring(value));
+        return this;
+    }
+
+
+    /**
+     * Binds a boolean value to a named parameter.
+     *
+     * @param name  The parameter name.
+     * @param value The value.
+     *
+     * @return This builder.
+     */
+    public QueryBuilder bind(String name, boolean value) {
+        params.add(name, rbool(value));
+        return this;
+    }
+
+
+    /**
+     * Binds a double value to a named parameter.
+     *
+     * @param name  The parameter name.
+     * @param value The value.
+     *
+     * @return This builder.
+     */
+    public QueryBuilder bind(String name, double value) {
+        params.add(name, rdouble(value));
+        return this;
+    }
+
+
+    /**
+     * Binds a list of IDs to a named parameter, to be used with "in (:name)".
+     *
+     * @param name The parameter name.
+     * @param ids  The IDs.
+     *
+     * @return This builder.
+     */
+    public QueryBuilder bind(String name, Collection<Long> ids) {
+        List<RType> values = ids.stream().map(rtypes::rlong).collect(Collectors.toList());
+        params.add(name, rlist(values));
+        return this;
+    }
+
+
+    /**
+     * Adds an ordering expression.
+     *
+     * @param expression The expression, optionally followed by "asc" or "desc" (e.g. "i.id desc").
+     *
+     * @return This builder.
+     */
+    public QueryBuilder orderBy(String expression) {
+        orders.add(expression);
+        return this;
+    }
+
+
+    /**
+     * Only retrieves a page of the results.
+     *
+     * @param offset Number of results to skip.
+     * @param limit  Maximum number of results.
+     *
+     * @return This builder.
+     */
+    public QueryBuilder page(int offset, int limit) {
+        params.page(offset, limit);
+        return this;
+    }
+
+
+    /**
+     * Builds the query with the specified selection.
+     *
+     * @param selection The selected expressions.
+     * @param count     Whether the query counts the results: ordering and fetch joins are then ignored.
+     *
+     * @return See above.
+     */
+    private String build(String selection, boolean count) {
+        StringBuilder query = new StringBuilder(64);
+        query.append("select ").append(selection);
+        query.append(" from ").append(entity).append(' ').append(alias);
+        for (String join : joins) {
+            query.append(count ? join.replace(" join fetch ", " join ") : join);
+        }
+        if (!conditions.isEmpty()) {
+            query.append(" where ").append(String.join(" and ", conditions));
+        }
+        if (!count && !orders.isEmpty()) {
+            query.append(" order by ").append(String.join(", ", orders));
+        }
+        return query.toString();
+    }
+
+
+    /**
+     * Returns the HQL query.
+     *
+     * @return See above.
+     */
+    public String build() {
+        String selection = projections.isEmpty() ? alias : String.join(", ", projections);
+        return build(distinct ? "distinct " + selection : selection, false);
+    }
+
+
+    /**
+     * Returns the parameters bound to the query.
+     *
+     * @return See above.
+     */
+    public ParametersI getParameters() {
+        return params;
+    }
+
+
+    /**
+     * Runs the query and returns the selected objects.
+     *
+     * @param client The client handling the connection.
+     *
+     * @return See above.
+     *
+     * @throws ServiceException Cannot connect to OMERO.
+     * @throws OMEROServerError Server error.
+     */
+    public List<IObject> find(GatewayWrapper client) throws ServiceException, OMEROServerError {
+        return client.findByQuery(build(), params);
+    }
+
+
+    /**
+     * Runs the query as a projection and returns the selected values.
+     *
+     * @param client The client handling the connection.
+     *
+     * @return A list of rows, each containing the selected values.
+     *
+     * @throws ServiceException Cannot connect to OMERO.
+     * @throws OMEROServerError Server error.
+     */
+    public List<List<RType>> project(GatewayWrapper client) throws ServiceException, OMEROServerError {
+        return client.projection(build(), params);
+    }
+
+
+    /**
+     * Runs the query as a projection and returns the IDs from the first selected column.
+     *
+     * @param client The client handling the connection.
+     *
+     * @return See above.
+     *
+     * @throws ServiceException Cannot connect to OMERO.
+     * @throws OMEROServerError Server error.
+     */
+    public Long[] findIds(GatewayWrapper client) throws ServiceException, OMEROServerError {
+        return client.findIds(build(), params);
+    }
+
+
+    /**
+     * Counts the results of the query on the server, without retrieving them.
+     * <p> If expressions were selected, the first one is counted. Ordering and paging are ignored.
+     *
+     * @param client The client handling the connection.
+     *
+     * @return See above.
+     *
+     * @throws ServiceException Cannot connect to OMERO.
+     * @throws OMEROServerError Server error.
+     */
+    public long count(GatewayWrapper client) throws ServiceException, OMEROServerError {
+        String counted = projections.isEmpty() ? alias + ".id" : projections.get(0);
+        String query   = build("count(" + (distinct ? "distinct " : "") + counted + ")", true);
+
+        ParametersI       countParams = new ParametersI(new HashMap<>(params.map));
+        List<List<RType>> rows        = client.projection(query, countParams);
+        return rows.isEmpty() ? 0L : ((RLong) rows.get(0).get(0)).getValue();
+    }
+
+
+    /**
+     * Checks if the query has at least one result, retrieving at most one row.
+     *
+     * @param client The client handling the connection.
+     *
+     * @return See above.
+     *
+     * @throws ServiceException Cannot connect to OMERO.
+     * @throws OMEROServerError Server error.
+     */
+    public boolean exists(GatewayWrapper client) throws ServiceException, OMEROServerError {
+        String query = build(alias + ".id", true);
+
+        ParametersI existsParams = new ParametersI(new HashMap<>(params.map));
+        existsParams.page(0, 1);
+        return !client.projection(query, existsParams).isEmpty();
+    }
+
+
+    @Override
+    public String toString() {
+        return build();
+    }
+
+}
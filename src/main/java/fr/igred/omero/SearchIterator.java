@@ -0,0 +1,139 @@
+/*
+ *  Copyright (C) 2020-2022 GReD
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 51 Franklin
+ * Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+
+package fr.igred.omero;
+
+
+import fr.igred.omero.exception.AccessException;
+import fr.igred.omero.exception.ServiceException;
+import fr.igred.omero.exception.UncheckedOMEROException;
+import omero.ServerError;
+import omero.api.SearchPrx;
+import omero.model.IObject;
+
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ExecutionException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+
+/**
+ * Iterator over the results of a full-text search, loading them batch by batch.
+ * <p> Results of each batch are kept in the order given by the search. The search service is closed once all results
+ * have been read, or when {@link #close()} is called.
+ *
+ * @param <T> Subclass of {@link GenericObjectWrapper}
+ */
+class SearchIterator<T extends GenericObjectWrapper<?>> implements Iterator<T>, AutoCloseable {
+
+    /** Logger */
+    private static final Logger LOGGER = Logger.getLogger(SearchIterator.class.getName());
+
+    /** The search service. */
+    private final SearchPrx search;
+
+    /** Function loading the objects from their IDs. */
+    private final KeysetIterator.Loader<T> loader;
+
+    /** Objects of the current batch. */
+    private Iterator<T> batch = Collections.emptyIterator();
+
+    /** Whether the search is finished. */
+    private boolean done = false;
+
+
+    /**
+     * Constructor of the SearchIterator class.
+     *
+     * @param search The search service, on which the query has already been submitted.
+     * @param loader Function loading the objects from their IDs.
+     */
+    SearchIterator(SearchPrx search, KeysetIterator.Loader<T> loader) {
+        this.search = search;
+        this.loader = loader;
+    }
+
+
+    /**
+     * Retrieves the next batch.
+     *
+     * @throws ServiceException   Cannot connect to OMERO.
+     * @throws AccessException    Cannot access data.
+     * @throws ExecutionException A Facility can't be retrieved or instantiated.
+     * @throws ServerError        Server error.
+     */
+    private void fetch() throws ServiceException, AccessException, ExecutionException, ServerError {
+        if (!search.hasNext()) {
+            close();
+            return;
+        }
+        List<IObject>      results = search.results();
+        Map<Long, Integer> rank    = new HashMap<>(results.size());
+        for (IObject result : results) {
+            rank.putIfAbsent(result.getId().getValue(), rank.size());
+        }
+        List<T> objects = loader.load(rank.keySet().toArray(new Long[0]));
+        objects.sort(Comparator.comparing(o -> rank.get(o.getId())));
+        batch = objects.iterator();
+    }
+
+
+    @Override
+    public boolean hasNext() {
+        while (!batch.hasNext() && !done) {
+            try {
+                fetch();
+            } catch (ServiceException | AccessException | ExecutionException | ServerError e) {
+                close();
+                throw new UncheckedOMEROException("Cannot retrieve search results", e);
+            }
+        }
+        return batch.hasNext();
+    }
+
+
+    @Override
+    public T next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        return batch.next();
+    }
+
+
+    /**
+     * Closes the search service.
+     */
+    @Override
+    public void close() {
+        if (!done) {
+            done = true;
+            try {
+                search.close();
+            } catch (ServerError e) {
+                LOGGER.log(Level.WARNING, "Could not close search service", e);
+            }
+        }
+    }
+
+}
@@ -0,0 +1,194 @@
+/*
+ *  Copyright (C) 2020-2022 GReD
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 51 Franklin
+ * Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+
+package fr.igred.omero;
+
+
+import java.sql.Timestamp;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+
+/**
+ * Options of a full-text search: searched fields, group and creation date range.
+ * <p> By default, all indexed fields are searched in the current group, without date restriction.
+ */
+public class SearchOptions {
+
+    /** Default number of results retrieved at once. */
+    public static final int DEFAULT_BATCH_SIZE = 100;
+
+    /** Searched fields. */
+    private final Set<Field> fields = EnumSet.noneOf(Field.class);
+
+    /** Group searched, or null for the current group. */
+    private Long groupId = null;
+
+    /** Start of the creation date range, or null. */
+    private Timestamp from = null;
+
+    /** End of the creation date range, or null. */
+    private Timestamp to = null;
+
+    /** Number of results retrieved at once. */
+    private int batchSize = DEFAULT_BATCH_SIZE;
+
+
+    /**
+     * Restricts the search to the specified fields.
+     *
+     * @param searched The searched fields.
+     *
+     * @return This object.
+     */
+    public SearchOptions inFields(Field... searched) {
+        fields.addAll(Arrays.asList(searched));
+        return this;
+    }
+
+
+    /**
+     * Searches the specified group instead of the current one.
+     *
+     * @param id The group ID.
+     *
+     * @return This object.
+     */
+    public SearchOptions inGroup(long id) {
+        this.groupId = id;
+        return this;
+    }
+
+
+    /**
+     * Restricts the search to objects created in the specified range.
+     *
+     * @param start Start of the range (null for no lower bound).
+     * @param end   End of the range (null for no upper bound).
+     *
+     * @return This object.
+     */
+    public SearchOptions createdBetween(Timestamp start, Timestamp end) {
+        this.from = start;
+        this.to = end;
+        return this;
+    }
+
+
+    /**
+     * Sets the number of results retrieved at once.
+     *
+     * @param size The batch size.
+     *
+     * @return This object.
+     */
+    public SearchOptions batchSize(int size) {
+        if (size <= 0) {
+            throw new IllegalArgumentException("Batch size must be positive: " + size);
+        }
+        this.batchSize = size;
+        return this;
+    }
+
+
+    /**
+     * Returns the ID of the searched group.
+     *
+     * @return The group ID, or null for the current group.
+     */
+    public Long getGroupId() {
+        return groupId;
+    }
+
+
+    /**
+     * Returns the start of the creation date range.
+     *
+     * @return See above.
+     */
+    public Timestamp getFrom() {
+        return from;
+    }
+
+
+    /**
+     * Returns the end of the creation date range.
+     *
+     * @return See above.
+     */
+    public Timestamp getTo() {
+        return to;
+    }
+
+
+    /**
+     * Returns the number of results retrieved at once.
+     *
+     * @return See above.
+     */
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+
+    /**
+     * Builds the full-text query restricted to the searched fields.
+     *
+     * @param text The searched text.
+     *
+     * @return See above.
+     */
+    String buildQuery(String text) {
+        if (fields.isEmpty()) {
+            return text;
+        }
+        return fields.stream()
+                     .map(field -> field.name + ":(" + text + ")")
+                     .collect(Collectors.joining(" OR "));
+    }
+
+
+    /**
+     * Indexed fields which can be searched.
+     */
+    public enum Field {
+        /** Object name. */
+        NAME("name"),
+        /** Object description. */
+        DESCRIPTION("description"),
+        /** Text of the tags linked to the object. */
+        TAG("tag"),
+        /** Text of the annotations linked to the object, including key/value pairs. */
+        ANNOTATION("annotation");
+
+        /** Name of the field in the search index. */
+        private final String name;
+
+
+        /**
+         * Constructor of the Field enum.
+         *
+         * @param name Name of the field in the search index.
+         */
+        Field(String name) {
+            this.name = name;
+        }
+    }
+
+}
@@ -18,22 +18,38 @@ package fr.igred.omero.annotations;
 
 
 import fr.igred.omero.Client;
+import fr.igred.omero.QueryBuilder;
 import fr.igred.omero.exception.OMEROServerError;
 import fr.igred.omero.exception.ServiceException;
+import omero.RString;
+import omero.RType;
 import omero.ServerError;
 import omero.api.RawFileStorePrx;
 import omero.gateway.exception.DSOutOfServiceException;
 import omero.gateway.model.FileAnnotationData;
+import omero.model.FileAnnotation;
+import omero.model.OriginalFile;
 
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
 
 import static fr.igred.omero.exception.ExceptionHandler.handleServiceOrServer;
 
 
 public class FileAnnotationWrapper extends GenericAnnotationWrapper<FileAnnotationData> {
 
+    /** Default size of the blocks read from the server. */
+    public static final int DEFAULT_BUFFER_SIZE = 262144;
+
+
     /**
      * Constructor of the GenericAnnotationWrapper class.
      *
@@ -89,35 +105,177 @@ public class FileAnnotationWrapper extends GenericAnnotationWrapper<FileAnnotati
     }
 
 
+    /**
+     * Gets the checksum of the file content, as computed by the server.
+     *
+     * @return The hash, or null if it is not available.
+     */
+    public String getFileHash() {
+        OriginalFile file = ((FileAnnotation) data.asAnnotation()).getFile();
+        if (file != null && file.isLoaded() && file.getHash() != null) {
+            return file.getHash().getValue();
+        }
+        return null;
+    }
+
+
     public File getFile(Client client, String path) throws IOException, ServiceException, OMEROServerError {
-        final int inc = 262144;
+        File file = new File(path);
+        try (FileOutputStream stream = new FileOutputStream(file)) {
+            client.download(getFileID(), getFileSize(), stream);
+        }
+        return file;
+    }
+
+
+    /**
+     * Writes the file to the specified path, using a local cache to avoid downloading the same content again.
+     * <p> If the file hash is unknown or the cache is null, the file is simply downloaded. Otherwise, the file is
+     * hard-linked (or copied, if links are not supported) from the cache, after being downloaded if necessary. Linked
+     * files share their content with the cache and should not be modified in place.
+     * <p> Downloaded files are only added to the cache once their content matches the hash computed by the server. If
+     * the checksum algorithm is not supported, the file is downloaded without being cached.
+     *
+     * @param client The client handling the connection.
+     * @param path   Path to the destination file.
+     * @param cache  The local file cache.
+     *
+     * @return The file.
+     *
+     * @throws IOException      Cannot write file, or the downloaded content does not match the hash.
+     * @throws ServiceException Cannot connect to OMERO.
+     * @throws OMEROServerError Server error.
+     */
+    public File getFile(Client client, String path, FileCache cache)
+    throws IOException, ServiceException, OMEROServerError {
+        String hash = getFileHash();
+        if (cache == null || !FileCache.isValidKey(hash)) {
+            return getFile(client, path);
+        }
 
         File file = new File(path);
+        if (cache.copy(hash, file.toPath())) {
+            return file;
+        }
+
+        Path download = cache.createTempFile();
+        try {
+            getFile(client, download.toString());
+            String checksum = FileCache.checksum(download, getFileHasher(client));
+            if (checksum == null) {
+                Files.move(download, file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            } else if (checksum.equalsIgnoreCase(hash)) {
+                cache.put(hash, download, file.toPath());
+            } else {
+                String error = String.format("Checksum of downloaded file %d does not match: %s instead of %s",
+                                             getFileID(), checksum, hash);
+                throw new IOException(error);
+            }
+        } finally {
+            Files.deleteIfExists(download);
+        }
+        return file;
+    }
+
+
+    /**
+     * Gets the name of the algorithm used by the server to compute the file hash.
+     *
+     * @param client The client handling the connection.
+     *
+     * @return The algorithm name (e.g. "SHA1-160"), or null if it is unknown.
+     *
+     * @throws ServiceException Cannot connect to OMERO.
+     * @throws OMEROServerError Server error.
+     */
+    private String getFileHasher(Client client) throws ServiceException, OMEROServerError {
+        OriginalFile file = ((FileAnnotation) data.asAnnotation()).getFile();
+        if (file != null && file.isLoaded() && file.getHasher() != null && file.getHasher().isLoaded()) {
+            return file.getHasher().getValue().getValue();
+        }
+        List<List<RType>> rows = new QueryBuilder("OriginalFile", "f").select("f.hasher.value")
+                                                                      .where("f.id = :id")
+                                                                      .bind("id", getFileID())
+                                                                      .project(client);
+        return rows.isEmpty() ? null : ((RString) rows.get(0).get(0)).getValue();
+    }
+
+
+    /**
+     * Opens a read-only channel over the file content, reading blocks of {@link #DEFAULT_BUFFER_SIZE} bytes ahead.
+     *
+     * @param client The client handling the connection.
+     *
+     * @return A seekable channel over the file. It has to be closed to release the RawFileService.
+     *
+     * @throws ServiceException Cannot connect to OMERO.
+     * @throws OMEROServerError Server error.
+     */
+    public SeekableByteChannel getChannel(Client client) throws ServiceException, OMEROServerError {
+        return getChannel(client, DEFAULT_BUFFER_SIZE);
+    }
 
+
+    /**
+     * Opens a read-only channel over the file content.
+     * <p> Data is read from the server in blocks of {@code bufferSize} bytes, so that parsers can consume the file
+     * directly without writing it to disk first.
+     *
+     * @param client     The client handling the connection.
+     * @param bufferSize Size of the blocks read ahead from the server.
+     *
+     * @return A seekable channel over the file. It has to be closed to release the RawFileService.
+     *
+     * @throws ServiceException Cannot connect to OMERO.
+     * @throws OMEROServerError Server error.
+     */
+    public SeekableByteChannel getChannel(Client client, int bufferSize) throws ServiceException, OMEROServerError {
         RawFileStorePrx store = null;
-        try (FileOutputStream stream = new FileOutputStream(file)) {
+        try {
             store = client.getGateway().getRawFileService(client.getCtx());
             store.setFileId(this.getFileID());
-
-            long size = getFileSize();
-            long offset;
-            for (offset = 0; offset + inc < size; offset += inc) {
-                stream.write(store.read(offset, inc));
-            }
-            stream.write(store.read(offset, (int) (size - offset)));
         } catch (DSOutOfServiceException | ServerError e) {
+            if (store != null) {
+                try {
+                    store.close();
+                } catch (ServerError se) {
+                    e.addSuppressed(se);
+                }
+            }
             handleServiceOrServer(e, "Could not create RawFileService");
         }
+        return new RawFileChannel(store, getFileSize(), bufferSize);
+    }
 
-        if (store != null) {
-            try {
-                store.close();
-            } catch (ServerError e) {
-                throw new OMEROServerError("Could not close RawFileService", e);
-            }
-        }
 
-        return file;
+    /**
+     * Opens an input stream over the file content, reading blocks of {@link #DEFAULT_BUFFER_SIZE} bytes ahead.
+     *
+     * @param client The client handling the connection.
+     *
+     * @return An input stream over the file. It has to be closed to release the RawFileService.
+     *
+     * @throws ServiceException Cannot connect to OMERO.
+     * @throws OMEROServerError Server error.
+     */
+    public InputStream getInputStream(Client client) throws ServiceException, OMEROServerError {
+        return getInputStream(client, DEFAULT_BUFFER_SIZE);
+    }
+
+
+    /**
+     * Opens an input stream over the file content.
+     *
+     * @param client     The client handling the connection.
+     * @param bufferSize Size of the blocks read ahead from the server.
+     *
+     * @return An input stream over the file. It has to be closed to release the RawFileService.
+     *
+     * @throws ServiceException Cannot connect to OMERO.
+     * @throws OMEROServerError Server error.
+     */
+    public InputStream getInputStream(Client client, int bufferSize) throws ServiceException, OMEROServerError {
+        return Channels.newInputStream(getChannel(client, bufferSize));
     }
 
 
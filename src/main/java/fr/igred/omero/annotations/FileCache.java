@@ -0,0 +1,317 @@
+/*
+ *  Copyright (C) 2020-2022 GReD
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 51 Franklin
+ * Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+package fr.igred.omero.annotations;
+
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+
+/**
+ * Local cache of attached files, indexed by the checksum of their content.
+ * <p> Files are stored in a directory and named after their hash. When the total size of the cache exceeds the limit,
+ * the least recently used files are removed.
+ */
+public class FileCache {
+
+    /** Pattern accepted for hashes. */
+    private static final Pattern HASH = Pattern.compile("[A-Za-z0-9]+");
+
+    /** Suffix of temporary files. */
+    private static final String TMP_SUFFIX = ".tmp";
+
+    /** Java names of the checksum algorithms supported to check downloads, by OMERO hasher name. */
+    private static final Map<String, String> ALGORITHMS = new HashMap<>(2);
+
+    static {
+        ALGORITHMS.put("SHA1-160", "SHA-1");
+        ALGORITHMS.put("MD5-128", "MD5");
+    }
+
+    /** Directory containing the cached files. */
+    private final Path directory;
+
+    /** Maximum size of the cache, in bytes. */
+    private final long maxSize;
+
+
+    /**
+     * Constructor of the FileCache class.
+     *
+     * @param directory Directory containing the cached files. It is created if necessary.
+     * @param maxSize   Maximum size of the cache, in bytes.
+     *
+     * @throws IOException Cannot create directory.
+     */
+    public FileCache(String directory, long maxSize) throws IOException {
+        if (maxSize < 0) {
+            throw new IllegalArgumentException("Cache size cannot be negative: " + maxSize);
+        }
+        this.directory = Files.createDirectories(new File(directory).toPath());
+        this.maxSize = maxSize;
+    }
+
+
+    /**
+     * Checks whether a hash can be used as a cache key.
+     *
+     * @param hash The hash.
+     *
+     * @return See above.
+     */
+    static boolean isValidKey(String hash) {
+        return hash != null && HASH.matcher(hash).matches();
+    }
+
+
+    /**
+     * Gets the directory containing the cached files.
+     *
+     * @return See above.
+     */
+    public Path getDirectory() {
+        return directory;
+    }
+
+
+    /**
+     * Gets the maximum size of the cache.
+     *
+     * @return See above.
+     */
+    public long getMaxSize() {
+        return maxSize;
+    }
+
+
+    /**
+     * Lists the files in the cache.
+     *
+     * @return See above.
+     *
+     * @throws IOException Cannot list files.
+     */
+    private List<Path> list() throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.filter(Files::isRegularFile)
+                        .filter(p -> !p.getFileName().toString().endsWith(TMP_SUFFIX))
+                        .collect(Collectors.toList());
+        }
+    }
+
+
+    /**
+     * Gets the current size of the cache.
+     *
+     * @return See above.
+     *
+     * @throws IOException Cannot read file sizes.
+     */
+    public synchronized long getSize() throws IOException {
+        long size = 0;
+        for (Path file : list()) {
+            size += Files.size(file);
+        }
+        return size;
+    }
+
+
+    /**
+     * Removes all the files from the cache.
+     *
+     * @throws IOException Cannot delete files.
+     */
+    public synchronized void clear() throws IOException {
+        for (Path file : list()) {
+            Files.deleteIfExists(file);
+        }
+    }
+
+
+    /**
+     * Creates a temporary file in the cache directory, to download a file before adding it to the cache.
+     *
+     * @return The temporary file.
+     *
+     * @throws IOException Cannot create file.
+     */
+    Path createTempFile() throws IOException {
+        return Files.createTempFile(directory, "download", TMP_SUFFIX);
+    }
+
+
+    /**
+     * Copies a file from the cache to the specified location, and marks it as recently used.
+     * <p> The lookup and the copy happen under the cache lock, so that the file cannot be evicted or replaced
+     * meanwhile.
+     *
+     * @param hash   The file hash.
+     * @param target The destination.
+     *
+     * @return Whether the file was in the cache.
+     *
+     * @throws IOException Cannot link, copy or update file.
+     */
+    synchronized boolean copy(String hash, Path target) throws IOException {
+        Path cached = directory.resolve(hash);
+        if (!Files.isRegularFile(cached)) {
+            return false;
+        }
+        Files.setLastModifiedTime(cached, FileTime.fromMillis(System.currentTimeMillis()));
+        link(cached, target);
+        return true;
+    }
+
+
+    /**
+     * Moves a downloaded file into the cache and copies it to the specified location, then evicts the least recently
+     * used files if the cache is too large.
+     * <p> Files larger than the cache limit are not added: they are moved to the destination instead.
+     *
+     * @param hash   The file hash, which has to match the content of the file.
+     * @param source The file to move into the cache.
+     * @param target The destination.
+     *
+     * @throws IOException Cannot move, link, copy or delete files.
+     */
+    synchronized void put(String hash, Path source, Path target) throws IOException {
+        long size = Files.size(source);
+        if (size > maxSize) {
+            Files.move(source, target, StandardCopyOption.REPLACE_EXISTING);
+            return;
+        }
+        evict(maxSize - size);
+        Path cached = directory.resolve(hash);
+        Files.move(source, cached, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        Files.setLastModifiedTime(cached, FileTime.fromMillis(System.currentTimeMillis()));
+        link(cached, target);
+    }
+
+
+    /**
+     * Computes the checksum of a file with the specified OMERO hasher.
+     *
+     * @param file   The file.
+     * @param hasher The name of the checksum algorithm in OMERO (e.g. "SHA1-160").
+     *
+     * @return The hexadecimal checksum, or null if the algorithm is not supported.
+     *
+     * @throws IOException Cannot read file.
+     */
+    static String checksum(Path file, String hasher) throws IOException {
+        String algorithm = ALGORITHMS.get(hasher);
+        if (algorithm == null) {
+            return null;
+        }
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance(algorithm);
+        } catch (NoSuchAlgorithmException e) {
+            return null;
+        }
+        try (InputStream stream = Files.newInputStream(file)) {
+            byte[] buffer = new byte[65536];
+            int    n;
+            while ((n = stream.read(buffer)) > 0) {
+                digest.update(buffer, 0, n);
+            }
+        }
+        StringBuilder hash = new StringBuilder(2 * digest.getDigestLength());
+        for (byte b : digest.digest()) {
+            hash.append(String.format("%02x", b));
+        }
+        return hash.toString();
+    }
+
+
+    /**
+     * Removes the least recently used files until the cache size is below the limit.
+     *
+     * @param limit The size limit.
+     *
+     * @throws IOException Cannot delete files.
+     */
+    private void evict(long limit) throws IOException {
+        List<Path> files = new ArrayList<>(list());
+        files.sort(Comparator.comparing(FileCache::lastModified));
+
+        long size = 0;
+        for (Path file : files) {
+            size += Files.size(file);
+        }
+        for (Path file : files) {
+            if (size <= limit) {
+                break;
+            }
+            size -= Files.size(file);
+            Files.deleteIfExists(file);
+        }
+    }
+
+
+    /**
+     * Gets the last modification time of a file, or 0 if it cannot be read.
+     *
+     * @param file The file.
+     *
+     * @return See above.
+     */
+    private static long lastModified(Path file) {
+        try {
+            return Files.getLastModifiedTime(file).toMillis();
+        } catch (IOException e) {
+            Logger.getLogger(FileCache.class.getName()).warning("Could not read " + file + ": " + e.getMessage());
+            return 0L;
+        }
+    }
+
+
+    /**
+     * Copies a cached file to the specified location, using a hard link when possible.
+     * <p> Hard-linked files share their content with the cache: they should not be modified in place.
+     *
+     * @param cached The cached file.
+     * @param target The destination.
+     *
+     * @throws IOException Cannot link or copy file.
+     */
+    private static void link(Path cached, Path target) throws IOException {
+        Files.deleteIfExists(target);
+        try {
+            Files.createLink(target, cached);
+        } catch (IOException | UnsupportedOperationException | SecurityException e) {
+            Files.copy(cached, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+}
@@ -20,22 +20,33 @@ package fr.igred.omero.annotations;
 
 import fr.igred.omero.Client;
 import fr.igred.omero.GenericObjectWrapper;
+import fr.igred.omero.QueryBuilder;
 import fr.igred.omero.exception.AccessException;
 import fr.igred.omero.exception.OMEROServerError;
 import fr.igred.omero.exception.ServiceException;
 import fr.igred.omero.repository.DatasetWrapper;
+import fr.igred.omero.repository.GenericRepositoryObjectWrapper;
 import fr.igred.omero.repository.ImageWrapper;
 import fr.igred.omero.repository.PlateWrapper;
 import fr.igred.omero.repository.ProjectWrapper;
 import fr.igred.omero.repository.ScreenWrapper;
 import fr.igred.omero.repository.WellWrapper;
-import omero.RLong;
 import omero.gateway.model.AnnotationData;
+import omero.gateway.model.DataObject;
+import omero.gateway.model.DatasetData;
+import omero.gateway.model.ImageData;
+import omero.gateway.model.PlateData;
+import omero.gateway.model.ProjectData;
+import omero.gateway.model.ScreenData;
+import omero.gateway.model.WellData;
+import omero.gateway.util.PojoMapper;
 import omero.model.IObject;
 
 import java.sql.Timestamp;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.concurrent.ExecutionException;
+import java.util.function.Function;
 
 
 /**
@@ -121,9 +132,9 @@ public abstract class GenericAnnotationWrapper<T extends AnnotationData> extends
      */
     public List<ProjectWrapper> getProjects(Client client)
     throws ServiceException, AccessException, OMEROServerError, ExecutionException {
-        List<IObject> os  = getLinks(client, ProjectWrapper.ANNOTATION_LINK);
-        Long[]        ids = os.stream().map(IObject::getId).map(RLong::getValue).sorted().toArray(Long[]::new);
-        return client.getProjects(ids);
+        QueryBuilder query = parents(ProjectWrapper.ANNOTATION_LINK).leftFetch("p.datasetLinks", "dl")
+                                                                   .leftFetch("dl.child", "d");
+        return findParents(client, query, ProjectData.class, ProjectWrapper::new);
     }
 
 
@@ -141,9 +152,8 @@ public abstract class GenericAnnotationWrapper<T extends AnnotationData> extends
      */
     public List<DatasetWrapper> getDatasets(Client client)
     throws ServiceException, AccessException, OMEROServerError, ExecutionException {
-        List<IObject> os  = getLinks(client, DatasetWrapper.ANNOTATION_LINK);
-        Long[]        ids = os.stream().map(IObject::getId).map(RLong::getValue).sorted().toArray(Long[]::new);
-        return client.getDatasets(ids);
+        QueryBuilder query = parents(DatasetWrapper.ANNOTATION_LINK);
+        return findParents(client, query, DatasetData.class, DatasetWrapper::new);
     }
 
 
@@ -161,9 +171,9 @@ public abstract class GenericAnnotationWrapper<T extends AnnotationData> extends
      */
     public List<ImageWrapper> getImages(Client client)
     throws ServiceException, AccessException, OMEROServerError, ExecutionException {
-        List<IObject> os  = getLinks(client, ImageWrapper.ANNOTATION_LINK);
-        Long[]        ids = os.stream().map(IObject::getId).map(RLong::getValue).sorted().toArray(Long[]::new);
-        return client.getImages(ids);
+        QueryBuilder query = parents(ImageWrapper.ANNOTATION_LINK).fetch("p.pixels", "pix")
+                                                                 .fetch("pix.pixelsType", "pt");
+        return findParents(client, query, ImageData.class, ImageWrapper::new);
     }
 
 
@@ -181,9 +191,9 @@ public abstract class GenericAnnotationWrapper<T extends AnnotationData> extends
      */
     public List<ScreenWrapper> getScreens(Client client)
     throws ServiceException, AccessException, OMEROServerError, ExecutionException {
-        List<IObject> os  = getLinks(client, ScreenWrapper.ANNOTATION_LINK);
-        Long[]        ids = os.stream().map(IObject::getId).map(RLong::getValue).sorted().toArray(Long[]::new);
-        return client.getScreens(ids);
+        QueryBuilder query = parents(ScreenWrapper.ANNOTATION_LINK).leftFetch("p.plateLinks", "pl")
+                                                                  .leftFetch("pl.child", "pc");
+        return findParents(client, query, ScreenData.class, ScreenWrapper::new);
     }
 
 
@@ -201,9 +211,8 @@ public abstract class GenericAnnotationWrapper<T extends AnnotationData> extends
      */
     public List<PlateWrapper> getPlates(Client client)
     throws ServiceException, AccessException, OMEROServerError, ExecutionException {
-        List<IObject> os  = getLinks(client, PlateWrapper.ANNOTATION_LINK);
-        Long[]        ids = os.stream().map(IObject::getId).map(RLong::getValue).sorted().toArray(Long[]::new);
-        return client.getPlates(ids);
+        QueryBuilder query = parents(PlateWrapper.ANNOTATION_LINK).leftFetch("p.plateAcquisitions", "pa");
+        return findParents(client, query, PlateData.class, PlateWrapper::new);
     }
 
 
@@ -221,27 +230,130 @@ public abstract class GenericAnnotationWrapper<T extends AnnotationData> extends
      */
     public List<WellWrapper> getWells(Client client)
     throws ServiceException, AccessException, OMEROServerError, ExecutionException {
-        List<IObject> os  = getLinks(client, WellWrapper.ANNOTATION_LINK);
-        Long[]        ids = os.stream().map(IObject::getId).map(RLong::getValue).sorted().toArray(Long[]::new);
-        return client.getWells(ids);
+        QueryBuilder query = parents(WellWrapper.ANNOTATION_LINK).fetch("p.plate", "pc")
+                                                                .leftFetch("p.wellSamples", "ws")
+                                                                .leftFetch("ws.plateAcquisition", "pa")
+                                                                .leftFetch("ws.image", "img")
+                                                                .leftFetch("img.pixels", "pix")
+                                                                .leftFetch("pix.pixelsType", "pt");
+        return findParents(client, query, WellData.class, WellWrapper::new);
     }
 
 
     /**
-     * Retrieves all links of the given type.
+     * Creates a query selecting the IDs of the images with this annotation.
+     *
+     * @return See above.
+     */
+    private QueryBuilder images() {
+        return new QueryBuilder(ImageWrapper.ANNOTATION_LINK, "link").select("link.parent.id")
+                                                                     .distinct()
+                                                                     .where("link.child.id = :child")
+                                                                     .bind("child", getId());
+    }
+
+
+    /**
+     * Counts the distinct images with this annotation, without retrieving them.
+     *
+     * @param client The client handling the connection.
+     *
+     * @return See above.
+     *
+     * @throws ServiceException Cannot connect to OMERO.
+     * @throws OMEROServerError Server error.
+     */
+    public long countImages(Client client) throws ServiceException, OMEROServerError {
+        return images().count(client);
+    }
+
+
+    /**
+     * Checks if at least one image has this annotation, without retrieving it.
+     *
+     * @param client The client handling the connection.
+     *
+     * @return See above.
+     *
+     * @throws ServiceException Cannot connect to OMERO.
+     * @throws OMEROServerError Server error.
+     */
+    public boolean hasImages(Client client) throws ServiceException, OMEROServerError {
+        return images().exists(client);
+    }
+
+
+    /**
+     * Gets all the objects linked to this annotation from OMERO: projects, datasets, images, screens, plates and wells.
+     * <p> Each type of link is stored in its own table, so this runs six queries (one per type, as the corresponding
+     * getters do), each retrieving the objects with their owner, group and displayed associations.
+     *
+     * @param client The client handling the connection.
+     *
+     * @return List of linked objects, grouped by type and sorted by ID.
+     *
+     * @throws ServiceException   Cannot connect to OMERO.
+     * @throws AccessException    Cannot access data.
+     * @throws OMEROServerError   Server error.
+     * @throws ExecutionException A Facility can't be retrieved or instantiated.
+     */
+    public List<GenericRepositoryObjectWrapper<?>> getParents(Client client)
+    throws ServiceException, AccessException, OMEROServerError, ExecutionException {
+        List<GenericRepositoryObjectWrapper<?>> parents = new ArrayList<>(0);
+        parents.addAll(getProjects(client));
+        parents.addAll(getDatasets(client));
+        parents.addAll(getImages(client));
+        parents.addAll(getScreens(client));
+        parents.addAll(getPlates(client));
+        parents.addAll(getWells(client));
+        return parents;
+    }
+
+
+    /**
+     * Creates the query retrieving the parents of all links of the given type, with their owner and group.
+     * <p> Parents are aliased "p", so that their associations can be fetched by the caller.
      *
-     * @param client   The client handling the connection.
      * @param linkType The link type.
      *
-     * @return The list of linked objects.
+     * @return See above.
+     */
+    private QueryBuilder parents(String linkType) {
+        return new QueryBuilder(linkType, "link").select("p")
+                                                 .distinct()
+                                                 .join("link.parent", "p")
+                                                 .fetch("p.details.owner", "owner")
+                                                 .fetch("p.details.group", "grp")
+                                                 .where("link.child.id = :child")
+                                                 .bind("child", getId())
+                                                 .orderBy("p.id");
+    }
+
+
+    /**
+     * Runs a query created by {@link #parents(String)} and wraps the parents.
+     *
+     * @param client The client handling the connection.
+     * @param query  The query.
+     * @param type   The DataObject class of the parents.
+     * @param mapper The method used to wrap the parents.
+     * @param <U>    The type of DataObject.
+     * @param <V>    The type of wrapper.
+     *
+     * @return See above.
      *
      * @throws ServiceException Cannot connect to OMERO.
      * @throws OMEROServerError Server error.
      */
-    private List<IObject> getLinks(Client client, String linkType)
+    private static <U extends DataObject, V extends GenericObjectWrapper<U>> List<V>
+    findParents(Client client, QueryBuilder query, Class<U> type, Function<? super U, ? extends V> mapper)
     throws ServiceException, OMEROServerError {
-        return client.findByQuery("select link.parent from " + linkType +
-                                  " link where link.child = " + getId());
+        List<IObject> objects = query.find(client);
+        List<U>       parents = new ArrayList<>(objects.size());
+        for (IObject object : objects) {
+            parents.add(type.cast(PojoMapper.asDataObject(object)));
+        }
+        return wrap(parents, mapper);
     }
 
 }
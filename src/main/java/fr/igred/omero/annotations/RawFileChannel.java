@@ -0,0 +1,188 @@
+/*
+ *  Copyright (C) 2020-2022 GReD
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 51 Franklin
+ * Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+package fr.igred.omero.annotations;
+
+
+import omero.ServerError;
+import omero.api.RawFileStorePrx;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.NonWritableChannelException;
+import java.nio.channels.SeekableByteChannel;
+
+
+/**
+ * Read-only {@link SeekableByteChannel} over an OMERO original file, backed by a {@link RawFileStorePrx}.
+ * <p> Data is fetched from the server in blocks of {@code bufferSize} bytes, so that small sequential reads (e.g. from
+ * a parser) are served from memory.
+ */
+class RawFileChannel implements SeekableByteChannel {
+
+    /** The raw file store used to read the file. */
+    private final RawFileStorePrx store;
+
+    /** Size of the file. */
+    private final long size;
+
+    /** Size of the read-ahead buffer. */
+    private final int bufferSize;
+
+    /** Read-ahead buffer. */
+    private byte[] buffer = new byte[0];
+
+    /** Position of the buffer in the file. */
+    private long bufferStart = 0;
+
+    /** Current position in the file. */
+    private long position = 0;
+
+    /** Whether the channel is open. */
+    private boolean open = true;
+
+
+    /**
+     * Constructor of the RawFileChannel class.
+     *
+     * @param store      The raw file store, with the file ID already set.
+     * @param size       The file size.
+     * @param bufferSize The read-ahead buffer size.
+     */
+    RawFileChannel(RawFileStorePrx store, long size, int bufferSize) {
+        if (bufferSize <= 0) {
+            throw new IllegalArgumentException("Buffer size must be positive: " + bufferSize);
+        }
+        this.store = store;
+        this.size = size;
+        this.bufferSize = bufferSize;
+    }
+
+
+    /**
+     * Throws an exception if the channel is closed.
+     *
+     * @throws ClosedChannelException If the channel is closed.
+     */
+    private void ensureOpen() throws ClosedChannelException {
+        if (!open) {
+            throw new ClosedChannelException();
+        }
+    }
+
+
+    /**
+     * Fills the buffer with the data starting at the specified position.
+     *
+     * @param start The position of the first byte to read.
+     *
+     * @throws EOFException If the server returned no data, although the end of the file was not reached.
+     * @throws IOException  If the data could not be read from the server.
+     */
+    private void fill(long start) throws IOException {
+        int length = (int) Math.min(bufferSize, size - start);
+        try {
+            buffer = store.read(start, length);
+        } catch (ServerError e) {
+            throw new IOException("Could not read file from server", e);
+        }
+        bufferStart = start;
+        if (buffer.length == 0) {
+            throw new EOFException("Unexpected end of file at position " + start + " of " + size);
+        }
+    }
+
+
+    @Override
+    public int read(ByteBuffer dst) throws IOException {
+        ensureOpen();
+        if (position >= size) {
+            return -1;
+        }
+        int read = 0;
+        while (dst.hasRemaining() && position < size) {
+            if (position < bufferStart || position >= bufferStart + buffer.length) {
+                fill(position);
+            }
+            int offset = (int) (position - bufferStart);
+            int length = Math.min(dst.remaining(), buffer.length - offset);
+            dst.put(buffer, offset, length);
+            position += length;
+            read += length;
+        }
+        return read;
+    }
+
+
+    @Override
+    public int write(ByteBuffer src) {
+        throw new NonWritableChannelException();
+    }
+
+
+    @Override
+    public long position() throws IOException {
+        ensureOpen();
+        return position;
+    }
+
+
+    @Override
+    public SeekableByteChannel position(long newPosition) throws IOException {
+        ensureOpen();
+        if (newPosition < 0) {
+            throw new IllegalArgumentException("Negative position: " + newPosition);
+        }
+        position = newPosition;
+        return this;
+    }
+
+
+    @Override
+    public long size() throws IOException {
+        ensureOpen();
+        return size;
+    }
+
+
+    @Override
+    public SeekableByteChannel truncate(long newSize) {
+        throw new NonWritableChannelException();
+    }
+
+
+    @Override
+    public boolean isOpen() {
+        return open;
+    }
+
+
+    @Override
+    public void close() throws IOException {
+        if (open) {
+            open = false;
+            buffer = new byte[0];
+            try {
+                store.close();
+            } catch (ServerError e) {
+                throw new IOException("Could not close RawFileService", e);
+            }
+        }
+    }
+
+}
@@ -0,0 +1,178 @@
+/*
+ *  Copyright (C) 2020-2022 GReD
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 51 Franklin
+ * Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+
+package fr.igred.omero.annotations;
+
+
+import fr.igred.omero.Client;
+import fr.igred.omero.QueryBuilder;
+import fr.igred.omero.exception.OMEROServerError;
+import fr.igred.omero.exception.ServiceException;
+import omero.gateway.model.TagAnnotationData;
+import omero.model.IObject;
+import omero.model.TagAnnotation;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.stream.Collectors;
+
+
+/**
+ * Local index of the tags available to a client, to look tags up by name without querying the server.
+ * <p> The index is built once, then {@link #refresh()} only retrieves the tags created or modified since the last
+ * update, based on their ID and update event. Deleted tags are not detected by a refresh: {@link #rebuild()} has to be
+ * called to remove them.
+ */
+public class TagIndex {
+
+    /** The client handling the connection. */
+    private final Client client;
+
+    /** Tags, by ID. */
+    private final Map<Long, TagAnnotationWrapper> tags = new TreeMap<>();
+
+    /** Tag IDs, by name. */
+    private final Map<String, TreeSet<Long>> names = new HashMap<>();
+
+    /** Highest tag ID indexed. */
+    private long lastId = -1L;
+
+    /** Highest update event ID indexed. */
+    private long lastEvent = -1L;
+
+
+    /**
+     * Constructor of the TagIndex class. Builds the index.
+     *
+     * @param client The client handling the connection.
+     *
+     * @throws ServiceException Cannot connect to OMERO.
+     * @throws OMEROServerError Server error.
+     */
+    public TagIndex(Client client) throws ServiceException, OMEROServerError {
+        this.client = client;
+        refresh();
+    }
+
+
+    /**
+     * Retrieves the tags created or modified since the last update and adds them to the index.
+     *
+     * @throws ServiceException Cannot connect to OMERO.
+     * @throws OMEROServerError Server error.
+     */
+    public synchronized void refresh() throws ServiceException, OMEROServerError {
+        List<IObject> updated = new QueryBuilder("TagAnnotation", "t").fetch("t.details.updateEvent", "e")
+                                                                      .where("t.id > :last or e.id > :event")
+                                                                      .bind("last", lastId)
+                                                                      .bind("event", lastEvent)
+                                                                      .find(client);
+        for (IObject object : updated) {
+            TagAnnotation tag = (TagAnnotation) object;
+            index(new TagAnnotationWrapper(new TagAnnotationData(tag)));
+            lastId = Math.max(lastId, tag.getId().getValue());
+            lastEvent = Math.max(lastEvent, tag.getDetails().getUpdateEvent().getId().getValue());
+        }
+    }
+
+
+    /**
+     * Clears the index and retrieves all tags again.
+     *
+     * @throws ServiceException Cannot connect to OMERO.
+     * @throws OMEROServerError Server error.
+     */
+    public synchronized void rebuild() throws ServiceException, OMEROServerError {
+        tags.clear();
+        names.clear();
+        lastId = -1L;
+        lastEvent = -1L;
+        refresh();
+    }
+
+
+    /**
+     * Adds or replaces a tag in the index.
+     *
+     * @param tag The tag.
+     */
+    private void index(TagAnnotationWrapper tag) {
+        TagAnnotationWrapper previous = tags.put(tag.getId(), tag);
+        if (previous != null) {
+            TreeSet<Long> ids = names.get(previous.getName());
+            if (ids != null) {
+                ids.remove(previous.getId());
+                if (ids.isEmpty()) {
+                    names.remove(previous.getName());
+                }
+            }
+        }
+        names.computeIfAbsent(tag.getName(), n -> new TreeSet<>()).add(tag.getId());
+    }
+
+
+    /**
+     * Returns the indexed tags with the specified name.
+     *
+     * @param name The tag name.
+     *
+     * @return The tags, sorted by ID.
+     */
+    public synchronized List<TagAnnotationWrapper> get(String name) {
+        return names.getOrDefault(name, new TreeSet<>())
+                    .stream()
+                    .map(tags::get)
+                    .collect(Collectors.toList());
+    }
+
+
+    /**
+     * Returns the indexed tag with the specified ID.
+     *
+     * @param id The tag ID.
+     *
+     * @return The tag, or null if it is not indexed.
+     */
+    public synchronized TagAnnotationWrapper get(long id) {
+        return tags.get(id);
+    }
+
+
+    /**
+     * Returns all indexed tags.
+     *
+     * @return The tags, sorted by ID.
+     */
+    public synchronized List<TagAnnotationWrapper> getAll() {
+        return new ArrayList<>(tags.values());
+    }
+
+
+    /**
+     * Returns the number of indexed tags.
+     *
+     * @return See above.
+     */
+    public synchronized int size() {
+        return tags.size();
+    }
+
+}
@@ -0,0 +1,324 @@
+/*
+ *  Copyright (C) 2020-2022 GReD
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 51 Franklin
+ * Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+
+package fr.igred.omero.annotations;
+
+
+import fr.igred.omero.Client;
+import fr.igred.omero.QueryBuilder;
+import fr.igred.omero.exception.AccessException;
+import fr.igred.omero.exception.OMEROServerError;
+import fr.igred.omero.exception.ServiceException;
+import fr.igred.omero.repository.DatasetWrapper;
+import fr.igred.omero.repository.ImageWrapper;
+import fr.igred.omero.repository.ProjectWrapper;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutionException;
+import java.util.stream.Collectors;
+
+
+/**
+ * Boolean combination of tags (AND / OR / NOT), evaluated on the server to retrieve the matching images.
+ * <p> The whole combination is compiled to a single query over the image/tag links. For example, images tagged with
+ * tags 1 and 2, but not 3, in a given dataset:
+ * <pre>{@code
+ * List<ImageWrapper> images = TagQuery.allOf(1L, 2L)
+ *                                     .and(TagQuery.tag(3L).not())
+ *                                     .getImages(client, dataset, 0, 100);
+ * }</pre>
+ */
+public final class TagQuery {
+
+    /** Operator of this node. */
+    private final Operator operator;
+
+    /** Tag ID, for a single tag. */
+    private final long tagId;
+
+    /** Operands, for combinations. */
+    private final List<TagQuery> operands;
+
+
+    /**
+     * Constructor of the TagQuery class.
+     *
+     * @param operator Operator of this node.
+     * @param tagId    Tag ID, for a single tag.
+     * @param operands Operands, for combinations.
+     */
+    private TagQuery(Operator operator, long tagId, List<TagQuery> operands) {
+        this.operator = operator;
+        this.tagId = tagId;
+        this.operands = Collections.unmodifiableList(operands);
+    }
+
+
+    /**
+     * Matches images tagged with the specified tag.
+     *
+     * @param id The tag ID.
+     *
+     * @return See above.
+     */
+    public static TagQuery tag(long id) {
+        return new TagQuery(Operator.TAG, id, Collections.emptyList());
+    }
+
+
+    /**
+     * Matches images tagged with the specified tag.
+     *
+     * @param tag The tag.
+     *
+     * @return See above.
+     */
+    public static TagQuery tag(TagAnnotationWrapper tag) {
+        return tag(tag.getId());
+    }
+
+
+    /**
+     * Matches images tagged with all the specified tags.
+     *
+     * @param ids The tag IDs.
+     *
+     * @return See above.
+     */
+    public static TagQuery allOf(long... ids) {
+        return combine(Operator.AND, ids);
+    }
+
+
+    /**
+     * Matches images tagged with at least one of the specified tags.
+     *
+     * @param ids The tag IDs.
+     *
+     * @return See above.
+     */
+    public static TagQuery anyOf(long... ids) {
+        return combine(Operator.OR, ids);
+    }
+
+
+    /**
+     * Combines several tags with the specified operator.
+     *
+     * @param operator The operator.
+     * @param ids      The tag IDs.
+     *
+     * @return See above.
+     */
+    private static TagQuery combine(Operator operator, long... ids) {
+        if (ids.length == 0) {
+            throw new IllegalArgumentException("At least one tag is required");
+        }
+        List<TagQuery> tags = Arrays.stream(ids).mapToObj(TagQuery::tag).collect(Collectors.toList());
+        return tags.size() == 1 ? tags.get(0) : new TagQuery(operator, -1L, tags);
+    }
+
+
+    /**
+     * Matches images matched by both this query and another one.
+     *
+     * @param other The other query.
+     *
+     * @return See above.
+     */
+    public TagQuery and(TagQuery other) {
+        return new TagQuery(Operator.AND, -1L, Arrays.asList(this, other));
+    }
+
+
+    /**
+     * Matches images matched by this query or another one.
+     *
+     * @param other The other query.
+     *
+     * @return See above.
+     */
+    public TagQuery or(TagQuery other) {
+        return new TagQuery(Operator.OR, -1L, Arrays.asList(this, other));
+    }
+
+
+    /**
+     * Matches images not matched by this query.
+     *
+     * @return See above.
+     */
+    public TagQuery not() {
+        return new TagQuery(Operator.NOT, -1L, Collections.singletonList(this));
+    }
+
+
+    /**
+     * Collects the IDs of the tags used in this query.
+     *
+     * @param ids The set to fill.
+     */
+    private void collectTags(Set<Long> ids) {
+        if (operator == Operator.TAG) {
+            ids.add(tagId);
+        } else {
+            operands.forEach(operand -> operand.collectTags(ids));
+        }
+    }
+
+
+    /**
+     * Returns the HQL condition corresponding to this query, for images aliased "i".
+     * <p> Each tag ID is bound to a parameter named "tag" followed by the ID.
+     *
+     * @return See above.
+     */
+    String toHQL() {
+        switch (operator) {
+            case TAG:
+                return "i.id in (select l.parent.id from ImageAnnotationLink l where l.child.id = :tag" + tagId + ")";
+            case NOT:
+                return "not (" + operands.get(0).toHQL() + ")";
+            default:
+                String separator = operator == Operator.AND ? " and " : " or ";
+                return operands.stream()
+                               .map(operand -> "(" + operand.toHQL() + ")")
+                               .collect(Collectors.joining(separator));
+        }
+    }
+
+
+    /**
+     * Creates the query selecting the IDs of the matching images.
+     *
+     * @param offset Number of matching images to skip.
+     * @param limit  Maximum number of images to return (no limit if negative).
+     *
+     * @return See above.
+     */
+    private QueryBuilder query(int offset, int limit) {
+        QueryBuilder query = new QueryBuilder("Image", "i").select("i.id").where("(" + toHQL() + ")").orderBy("i.id");
+
+        Set<Long> ids = new TreeSet<>();
+        collectTags(ids);
+        ids.forEach(id -> query.bind("tag" + id, id));
+        if (limit >= 0) {
+            query.page(offset, limit);
+        }
+        return query;
+    }
+
+
+    /**
+     * Gets the images matching this query.
+     *
+     * @param client The client handling the connection.
+     * @param offset Number of matching images to skip.
+     * @param limit  Maximum number of images to return (no limit if negative).
+     *
+     * @return ImageWrapper list, sorted by ID.
+     *
+     * @throws ServiceException   Cannot connect to OMERO.
+     * @throws AccessException    Cannot access data.
+     * @throws OMEROServerError   Server error.
+     * @throws ExecutionException A Facility can't be retrieved or instantiated.
+     */
+    public List<ImageWrapper> getImages(Client client, int offset, int limit)
+    throws ServiceException, AccessException, OMEROServerError, ExecutionException {
+        return client.getImages(query(offset, limit).findIds(client));
+    }
+
+
+    /**
+     * Gets the images in a dataset matching this query.
+     *
+     * @param client  The client handling the connection.
+     * @param dataset The dataset.
+     * @param offset  Number of matching images to skip.
+     * @param limit   Maximum number of images to return (no limit if negative).
+     *
+     * @return ImageWrapper list, sorted by ID.
+     *
+     * @throws ServiceException   Cannot connect to OMERO.
+     * @throws AccessException    Cannot access data.
+     * @throws OMEROServerError   Server error.
+     * @throws ExecutionException A Facility can't be retrieved or instantiated.
+     */
+    public List<ImageWrapper> getImages(Client client, DatasetWrapper dataset, int offset, int limit)
+    throws ServiceException, AccessException, OMEROServerError, ExecutionException {
+        QueryBuilder query = query(offset, limit).where("i.id in (select dl.child.id from DatasetImageLink dl" +
+                                                        " where dl.parent.id = :dataset)")
+                                                 .bind("dataset", dataset.getId());
+        return client.getImages(query.findIds(client));
+    }
+
+
+    /**
+     * Gets the images in a project matching this query.
+     *
+     * @param client  The client handling the connection.
+     * @param project The project.
+     * @param offset  Number of matching images to skip.
+     * @param limit   Maximum number of images to return (no limit if negative).
+     *
+     * @return ImageWrapper list, sorted by ID.
+     *
+     * @throws ServiceException   Cannot connect to OMERO.
+     * @throws AccessException    Cannot access data.
+     * @throws OMEROServerError   Server error.
+     * @throws ExecutionException A Facility can't be retrieved or instantiated.
+     */
+    public List<ImageWrapper> getImages(Client client, ProjectWrapper project, int offset, int limit)
+    throws ServiceException, AccessException, OMEROServerError, ExecutionException {
+        QueryBuilder query = query(offset, limit).where("i.id in (select dl.child.id from DatasetImageLink dl," +
+                                                        " ProjectDatasetLink pl where pl.child.id = dl.parent.id" +
+                                                        " and pl.parent.id = :project)")
+                                                 .bind("project", project.getId());
+        return client.getImages(query.findIds(client));
+    }
+
+
+    @Override
+    public String toString() {
+        switch (operator) {
+            case TAG:
+                return String.valueOf(tagId);
+            case NOT:
+                return "NOT " + operands.get(0);
+            default:
+                return operands.stream()
+                               .map(TagQuery::toString)
+                               .collect(Collectors.joining(" " + operator + " ", "(", ")"));
+        }
+    }
+
+
+    /**
+     * Operators of the query nodes.
+     */
+    private enum Operator {
+        TAG,
+        AND,
+        OR,
+        NOT
+    }
+
+}
@@ -18,7 +18,10 @@
 package fr.igred.omero.exception;
 
 
+import omero.SecurityViolation;
 import omero.ServerError;
+import omero.SessionException;
+import omero.gateway.exception.ConnectionStatus;
 import omero.gateway.exception.DSAccessException;
 import omero.gateway.exception.DSOutOfServiceException;
 
@@ -136,4 +139,30 @@ public class ExceptionHandler {
         handleServiceException(t, message);
     }
 
+
+    /**
+     * Helper method to convert a server error, for methods which do not declare {@link OMEROServerError}:
+     * <ul><li>SecurityViolation to AccessException</li>
+     * <li>SessionException to ServiceException, with a lost connection</li>
+     * <li>Other ServerError to ServiceException, with the server out of service</li></ul>
+     * <p>The original ServerError is kept as the cause, so its type is not lost.
+     *
+     * @param t       The Exception (either a ServerError or an OMEROServerError).
+     * @param message Short explanation of the problem.
+     *
+     * @throws ServiceException Cannot connect to OMERO.
+     * @throws AccessException  Cannot access data.
+     */
+    public static void handleServerAsServiceOrAccess(Throwable t, String message)
+    throws ServiceException, AccessException {
+        Throwable cause = t instanceof OMEROServerError && t.getCause() != null ? t.getCause() : t;
+        if (cause instanceof SecurityViolation) {
+            throw new AccessException(message, cause);
+        } else if (cause instanceof SessionException) {
+            throw new ServiceException(message, cause, ConnectionStatus.LOST_CONNECTION);
+        } else if (cause instanceof ServerError) {
+            throw new ServiceException(message, cause, ConnectionStatus.SERVER_OUT_OF_SERVICE);
+        }
+    }
+
 }
@@ -0,0 +1,36 @@
+/*
+ *  Copyright (C) 2020-2022 GReD
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 51 Franklin
+ * Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+
+package fr.igred.omero.exception;
+
+
+/**
+ * Wraps a checked exception thrown while retrieving data lazily, e.g. when a stream fetches the next page of objects.
+ */
+public class UncheckedOMEROException extends RuntimeException {
+
+    /**
+     * Constructs a new exception with the specified cause and detailed message.
+     *
+     * @param message Short explanation of the problem.
+     * @param cause   The exception that caused this one to be risen.
+     */
+    public UncheckedOMEROException(String message, Exception cause) {
+        super(message, cause);
+    }
+
+}
@@ -19,12 +19,16 @@ package fr.igred.omero.repository;
 
 
 import fr.igred.omero.Client;
-import fr.igred.omero.GenericObjectWrapper;
+import fr.igred.omero.QueryBuilder;
 import fr.igred.omero.annotations.TagAnnotationWrapper;
 import fr.igred.omero.exception.AccessException;
 import fr.igred.omero.exception.OMEROServerError;
 import fr.igred.omero.exception.ServiceException;
 import fr.igred.omero.roi.ROIWrapper;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.measure.Calibration;
+import ij.process.ImageProcessor;
 import loci.formats.in.DefaultMetadataOptions;
 import loci.formats.in.MetadataLevel;
 import ome.formats.OMEROMetadataStoreClient;
@@ -36,30 +40,65 @@ import ome.formats.importer.OMEROWrapper;
 import ome.formats.importer.cli.ErrorHandler;
 import ome.formats.importer.cli.LoggingImportMonitor;
 import omero.RLong;
+import omero.RString;
+import omero.RType;
 import omero.ServerError;
+import omero.api.IPixelsPrx;
+import omero.api.RawPixelsStorePrx;
 import omero.gateway.exception.DSAccessException;
 import omero.gateway.exception.DSOutOfServiceException;
 import omero.gateway.model.DatasetData;
 import omero.gateway.model.ImageData;
+import omero.model.Annotation;
 import omero.model.DatasetI;
 import omero.model.DatasetImageLink;
 import omero.model.DatasetImageLinkI;
 import omero.model.IObject;
+import omero.model.ImageAnnotationLink;
+import omero.model.ImageAnnotationLinkI;
+import omero.model.ImageI;
+import omero.model.LengthI;
+import omero.model.Permissions;
 import omero.model.Pixels;
+import omero.model.PixelsType;
+import omero.model.enums.ChecksumAlgorithmSHA1160;
+import omero.model.enums.UnitsLength;
+import omero.rtypes;
+import omero.sys.ParametersI;
 
+import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
-import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 import java.util.stream.Collectors;
 
+import static fr.igred.omero.exception.ExceptionHandler.handleServerAsServiceOrAccess;
 import static fr.igred.omero.exception.ExceptionHandler.handleServiceOrAccess;
+import static fr.igred.omero.exception.ExceptionHandler.handleServiceOrServer;
+import static omero.rtypes.rlist;
+import static omero.rtypes.rstring;
 
 
 /**
@@ -70,8 +109,14 @@ public class DatasetWrapper extends GenericRepositoryObjectWrapper<DatasetData>
 
     public static final String ANNOTATION_LINK = "DatasetAnnotationLink";
 
+    /** Logger */
+    private static final Logger LOGGER = Logger.getLogger(DatasetWrapper.class.getName());
+
     private static final Long[] LONGS = new Long[0];
 
+    /** Checksum algorithm of the files, as named by OMERO. */
+    private static final String HASHER = ChecksumAlgorithmSHA1160.value;
+
 
     /**
      * Constructor of the DatasetWrapper class
@@ -183,6 +228,88 @@ public class DatasetWrapper extends GenericRepositoryObjectWrapper<DatasetData>
     }
 
 
+    /**
+     * Counts the images in the dataset, without retrieving them.
+     *
+     * @param client The client handling the connection.
+     *
+     * @return See above.
+     *
+     * @throws ServiceException Cannot connect to OMERO.
+     * @throws OMEROServerError Server error.
+     */
+    public long countImages(Client client) throws ServiceException, OMEROServerError {
+        return imageLinks().count(client);
+    }
+
+
+    /**
+     * Checks if the dataset contains at least one image, without retrieving it.
+     *
+     * @param client The client handling the connection.
+     *
+     * @return See above.
+     *
+     * @throws ServiceException Cannot connect to OMERO.
+     * @throws OMEROServerError Server error.
+     */
+    public boolean hasImages(Client client) throws ServiceException, OMEROServerError {
+        return imageLinks().exists(client);
+    }
+
+
+    /**
+     * Creates a query selecting the links between the dataset and its images.
+     *
+     * @return See above.
+     */
+    private QueryBuilder imageLinks() {
+        return new QueryBuilder("DatasetImageLink", "link").where("link.parent.id = :dataset")
+                                                           .bind("dataset", data.getId());
+    }
+
+
+    /**
+     * Creates a query selecting the IDs of the images in the dataset, ordered by ID.
+     * <p> The images are referred to as "i".
+     *
+     * @return See above.
+     */
+    private QueryBuilder imageQuery() {
+        return new QueryBuilder("Image", "i").select("i.id")
+                                             .distinct()
+                                             .join("i.datasetLinks", "dl")
+                                             .where("dl.parent.id = :dataset")
+                                             .bind("dataset", data.getId())
+                                             .orderBy("i.id");
+    }
+
+
+    /**
+     * Gets the images selected on the server by a query on their IDs.
+     *
+     * @param client  The client handling the connection.
+     * @param query   The query selecting the image IDs.
+     * @param message Short explanation of the problem, if the query fails.
+     *
+     * @return ImageWrapper list.
+     *
+     * @throws ServiceException   Cannot connect to OMERO.
+     * @throws AccessException    Cannot access data.
+     * @throws ExecutionException A Facility can't be retrieved or instantiated.
+     */
+    private static List<ImageWrapper> findImages(Client client, QueryBuilder query, String message)
+    throws ServiceException, AccessException, ExecutionException {
+        Long[] ids = new Long[0];
+        try {
+            ids = query.findIds(client);
+        } catch (OMEROServerError e) {
+            handleServerAsServiceOrAccess(e, message);
+        }
+        return client.getImages(ids);
+    }
+
+
     /**
      * Gets all images in the dataset with a certain from OMERO.
      *
@@ -197,14 +324,14 @@ public class DatasetWrapper extends GenericRepositoryObjectWrapper<DatasetData>
      */
     public List<ImageWrapper> getImages(Client client, String name)
     throws ServiceException, AccessException, ExecutionException {
-        List<ImageWrapper> images = getImages(client);
-        images.removeIf(image -> !image.getName().equals(name));
-        return images;
+        QueryBuilder query = imageQuery().where("i.name = :name").bind("name", name);
+        return findImages(client, query, "Cannot get images from " + this);
     }
 
 
     /**
      * Gets all images in the dataset with a certain motif in their name from OMERO.
+     * <p> The names are matched on the server. The search is case-sensitive and the motif is matched literally.
      *
      * @param client The client handling the connection.
      * @param motif  Motif searched in an image name.
@@ -217,10 +344,9 @@ public class DatasetWrapper extends GenericRepositoryObjectWrapper<DatasetData>
      */
     public List<ImageWrapper> getImagesLike(Client client, String motif)
     throws ServiceException, AccessException, ExecutionException {
-        List<ImageWrapper> images = getImages(client);
-        final String       regexp = ".*" + motif + ".*";
-        images.removeIf(image -> !image.getName().matches(regexp));
-        return images;
+        QueryBuilder query = imageQuery().where("i.name like :pattern escape '!'")
+                                         .bind("pattern", QueryBuilder.likePattern(motif));
+        return findImages(client, query, "Cannot get images from " + this);
     }
 
 
@@ -258,19 +384,13 @@ public class DatasetWrapper extends GenericRepositoryObjectWrapper<DatasetData>
      */
     public List<ImageWrapper> getImagesTagged(Client client, Long tagId)
     throws ServiceException, AccessException, OMEROServerError, ExecutionException {
-        Long[] ids = client.findByQuery("select link.parent " +
-                                        "from ImageAnnotationLink link " +
-                                        "where link.child = " +
-                                        tagId +
-                                        " and link.parent in " +
-                                        "(select link2.child " +
-                                        "from DatasetImageLink link2 " +
-                                        "where link2.parent = " +
-                                        data.getId() + ")")
-                           .stream()
-                           .map(IObject::getId)
-                           .map(RLong::getValue)
-                           .toArray(Long[]::new);
+        Long[] ids = new QueryBuilder("ImageAnnotationLink", "link").select("link.parent.id")
+                                                                    .join("link.parent.datasetLinks", "dl")
+                                                                    .where("link.child.id = :tag")
+                                                                    .where("dl.parent.id = :dataset")
+                                                                    .bind("tag", tagId)
+                                                                    .bind("dataset", data.getId())
+                                                                    .findIds(client);
         return client.getImages(ids);
     }
 
@@ -289,27 +409,11 @@ public class DatasetWrapper extends GenericRepositoryObjectWrapper<DatasetData>
      */
     public List<ImageWrapper> getImagesKey(Client client, String key)
     throws ServiceException, AccessException, ExecutionException {
-        Collection<ImageData> images = new ArrayList<>(0);
-        try {
-            images = client.getBrowseFacility()
-                           .getImagesForDatasets(client.getCtx(),
-                                                 Collections.singletonList(data.getId()));
-        } catch (DSOutOfServiceException | DSAccessException e) {
-            handleServiceOrAccess(e, "Cannot get images with key \"" + key + "\" from " + this);
-        }
-
-        List<ImageWrapper> selected = new ArrayList<>();
-        for (ImageData image : images) {
-            ImageWrapper imageWrapper = new ImageWrapper(image);
-
-            Map<String, String> pairsKeyValue = imageWrapper.getKeyValuePairs(client);
-            if (pairsKeyValue.get(key) != null) {
-                selected.add(imageWrapper);
-            }
-        }
-        selected.sort(Comparator.comparing(GenericObjectWrapper::getId));
-
-        return selected;
+        String annotations = "select a.id from MapAnnotation a join a.mapValue mv where mv.name = :key";
+        QueryBuilder query = imageQuery().join("i.annotationLinks", "l")
+                                         .where("l.child.id in (" + annotations + ")")
+                                         .bind("key", key);
+        return findImages(client, query, "Cannot retrieve images with key " + key + " in " + this);
     }
 
 
@@ -328,27 +432,14 @@ public class DatasetWrapper extends GenericRepositoryObjectWrapper<DatasetData>
      */
     public List<ImageWrapper> getImagesPairKeyValue(Client client, String key, String value)
     throws ServiceException, AccessException, ExecutionException {
-        Collection<ImageData> images = new ArrayList<>(0);
-        try {
-            images = client.getBrowseFacility()
-                           .getImagesForDatasets(client.getCtx(),
-                                                 Collections.singletonList(data.getId()));
-        } catch (DSOutOfServiceException | DSAccessException e) {
-            handleServiceOrAccess(e, "Cannot get images with key-value pair from " + this);
-        }
-
-        List<ImageWrapper> selected = new ArrayList<>();
-        for (ImageData image : images) {
-            ImageWrapper imageWrapper = new ImageWrapper(image);
-
-            Map<String, String> pairsKeyValue = imageWrapper.getKeyValuePairs(client);
-            if (pairsKeyValue.get(key) != null && pairsKeyValue.get(key).equals(value)) {
-                selected.add(imageWrapper);
-            }
-        }
-        selected.sort(Comparator.comparing(GenericObjectWrapper::getId));
-
-        return selected;
+        String annotations = "select a.id from MapAnnotation a join a.mapValue mv" +
+                             " where mv.name = :key and mv.value = :value";
+        QueryBuilder query = imageQuery().join("i.annotationLinks", "l")
+                                         .where("l.child.id in (" + annotations + ")")
+                                         .bind("key", key)
+                                         .bind("value", value);
+        String message = "Cannot retrieve images with pair " + key + "=" + value + " in " + this;
+        return findImages(client, query, message);
     }
 
 
@@ -424,6 +515,27 @@ public class DatasetWrapper extends GenericRepositoryObjectWrapper<DatasetData>
      * @throws ExecutionException A Facility can't be retrieved or instantiated.
      */
     public boolean importImages(Client client, String... paths)
+    throws ServiceException, OMEROServerError, AccessException, IOException, ExecutionException {
+        return importImages(client, null, paths);
+    }
+
+
+    /**
+     * Imports all images candidates in the paths to the dataset in OMERO, recording import metrics.
+     *
+     * @param client  The client handling the connection.
+     * @param metrics Observer recording the import metrics (can be null).
+     * @param paths   Paths to the image files on the computer.
+     *
+     * @return If the import did not exit because of an error.
+     *
+     * @throws ServiceException   Cannot connect to OMERO.
+     * @throws AccessException    Cannot access data.
+     * @throws OMEROServerError   Server error.
+     * @throws IOException        Cannot read file.
+     * @throws ExecutionException A Facility can't be retrieved or instantiated.
+     */
+    public boolean importImages(Client client, ImportMetrics metrics, String... paths)
     throws ServiceException, OMEROServerError, AccessException, IOException, ExecutionException {
         boolean success;
 
@@ -439,10 +551,17 @@ public class DatasetWrapper extends GenericRepositoryObjectWrapper<DatasetData>
 
             ImportLibrary library = new ImportLibrary(store, reader);
             library.addObserver(new LoggingImportMonitor());
+            if (metrics != null) {
+                library.addObserver(metrics);
+            }
 
             ErrorHandler handler = new ErrorHandler(config);
 
+            long             start      = System.nanoTime();
             ImportCandidates candidates = new ImportCandidates(reader, paths, handler);
+            if (metrics != null) {
+                metrics.scanned(library, start, System.nanoTime());
+            }
             success = library.importCandidates(config, candidates);
         } catch (ServerError se) {
             throw new OMEROServerError(se);
@@ -455,6 +574,482 @@ public class DatasetWrapper extends GenericRepositoryObjectWrapper<DatasetData>
     }
 
 
+    /**
+     * Imports image files to the dataset in OMERO with several workers.
+     * <p> Each worker keeps its own import store, and paths are scanned and imported individually, so that scanning,
+     * upload and server-side processing of different files overlap. Files of a multi-file image should be given as a
+     * single path.
+     *
+     * @param client   The client handling the connection.
+     * @param threads  Number of files imported simultaneously.
+     * @param listener Listener notified as each path is imported (can be null).
+     * @param paths    Paths to the image files on the computer.
+     *
+     * @return A map associating each path to the IDs of the imported images (empty if the import failed).
+     *
+     * @throws ServiceException     Cannot connect to OMERO.
+     * @throws OMEROServerError     Server error.
+     * @throws AccessException      Cannot access data.
+     * @throws ExecutionException   A Facility can't be retrieved or instantiated.
+     * @throws InterruptedException The thread was interrupted.
+     */
+    public Map<String, List<Long>> importImages(Client client, int threads, ImportListener listener, String... paths)
+    throws ServiceException, OMEROServerError, AccessException, ExecutionException, InterruptedException {
+        return importImages(client, threads, listener, null, paths);
+    }
+
+
+    /**
+     * Imports image files to the dataset in OMERO with several workers, recording import metrics.
+     * <p> Each worker keeps its own import store, and paths are scanned and imported individually, so that scanning,
+     * upload and server-side processing of different files overlap. Files of a multi-file image should be given as a
+     * single path.
+     *
+     * @param client   The client handling the connection.
+     * @param threads  Number of files imported simultaneously.
+     * @param listener Listener notified as each path is imported (can be null).
+     * @param metrics  Observer recording the import metrics (can be null).
+     * @param paths    Paths to the image files on the computer.
+     *
+     * @return A map associating each path to the IDs of the imported images (empty if the import failed).
+     *
+     * @throws ServiceException     Cannot connect to OMERO.
+     * @throws OMEROServerError     Server error.
+     * @throws AccessException      Cannot access data.
+     * @throws ExecutionException   A Facility can't be retrieved or instantiated.
+     * @throws InterruptedException The thread was interrupted.
+     */
+    public Map<String, List<Long>> importImages(Client client, int threads, ImportListener listener,
+                                                ImportMetrics metrics, String... paths)
+    throws ServiceException, OMEROServerError, AccessException, ExecutionException, InterruptedException {
+        ImportPipeline          pipeline = new ImportPipeline(client, data, threads, listener, metrics);
+        Map<String, List<Long>> results  = pipeline.run(Arrays.asList(paths));
+        refresh(client);
+        return results;
+    }
+
+
+    /**
+     * Imports image files to the dataset in OMERO with several workers, recording the state of each file in a journal.
+     * <p> Files already recorded as imported in the journal are skipped, so that an interrupted import can be resumed
+     * by calling this method again with the same journal. Files which were uploaded but not recorded as imported are
+     * looked up on the server by the checksums of their filesets, and only imported again if their images are not in
+     * the dataset. Errors writing to the journal do not stop the import: the first one is thrown once it is done.
+     *
+     * @param client  The client handling the connection.
+     * @param journal The import journal.
+     * @param threads Number of files imported simultaneously.
+     * @param paths   Paths to the image files on the computer.
+     *
+     * @return A map associating each path to the IDs of the imported images (empty if the import failed), including
+     * files imported during previous runs.
+     *
+     * @throws ServiceException     Cannot connect to OMERO.
+     * @throws OMEROServerError     Server error.
+     * @throws AccessException      Cannot access data.
+     * @throws ExecutionException   A Facility can't be retrieved or instantiated.
+     * @throws IOException          Cannot write to the journal or read a file.
+     * @throws InterruptedException The thread was interrupted.
+     */
+    public Map<String, List<Long>> importImages(Client client, ImportJournal journal, int threads, String... paths)
+    throws ServiceException, OMEROServerError, AccessException, ExecutionException, IOException, InterruptedException {
+        List<String> pending  = new ArrayList<>(paths.length);
+        List<String> uploaded = new ArrayList<>(0);
+        for (String path : paths) {
+            ImportJournal.State state = journal.getState(path);
+            if (state == ImportJournal.State.UPLOADED) {
+                uploaded.add(path);
+            } else if (state != ImportJournal.State.IMPORTED) {
+                journal.queued(path);
+                pending.add(path);
+            }
+        }
+
+        if (!uploaded.isEmpty()) {
+            Map<String, List<Long>> found = findImported(client, threads, uploaded.toArray(new String[0]));
+            for (String path : uploaded) {
+                List<Long> ids = found.getOrDefault(path, Collections.emptyList());
+                if (ids.isEmpty()) {
+                    journal.queued(path);
+                    pending.add(path);
+                } else {
+                    journal.imported(path, ids);
+                }
+            }
+        }
+
+        AtomicReference<IOException> error = new AtomicReference<>();
+
+        ImportListener listener = new ImportListener() {
+            @Override
+            public void uploaded(String path) {
+                try {
+                    journal.uploaded(path);
+                } catch (IOException e) {
+                    LOGGER.log(Level.WARNING, "Could not write to import journal", e);
+                    error.compareAndSet(null, e);
+                }
+            }
+
+
+            @Override
+            public void imported(String path, List<Long> ids) {
+                try {
+                    journal.imported(path, ids);
+                } catch (IOException e) {
+                    LOGGER.log(Level.WARNING, "Could not write to import journal", e);
+                    error.compareAndSet(null, e);
+                }
+            }
+
+
+            @Override
+            public void failed(String path, Throwable cause) {
+                try {
+                    journal.failed(path, cause);
+                } catch (IOException e) {
+                    LOGGER.log(Level.WARNING, "Could not write to import journal", e);
+                    error.compareAndSet(null, e);
+                }
+            }
+        };
+
+        Map<String, List<Long>> results = new LinkedHashMap<>(paths.length);
+        if (!pending.isEmpty()) {
+            results.putAll(importImages(client, threads, listener, pending.toArray(new String[0])));
+        }
+        if (error.get() != null) {
+            throw error.get();
+        }
+
+        Map<String, List<Long>> all = new LinkedHashMap<>(paths.length);
+        for (String path : paths) {
+            all.put(path, results.getOrDefault(path, journal.getImageIds(path)));
+        }
+        return all;
+    }
+
+
+    /**
+     * Imports image files to the dataset in OMERO, skipping files which are already on the server.
+     * <p> Each file is scanned locally to find the files of its fileset, whose SHA-1 checksums are computed in
+     * parallel. A file is considered as already imported when each of its filesets matches a fileset on the server: the
+     * same number of files, with the same names and the same checksums. The filesets on the server are retrieved in a
+     * single query. Files already imported in this dataset are skipped. If {@code linkExisting} is true, files imported
+     * elsewhere are not imported again: their images are linked to this dataset instead. The other files are imported
+     * with the specified number of workers.
+     * <p> Only regular files are checked: directories are always imported.
+     *
+     * @param client       The client handling the connection.
+     * @param threads      Number of files hashed or imported simultaneously.
+     * @param linkExisting Whether images imported in other datasets should be linked to this dataset.
+     * @param paths        Paths to the image files on the computer.
+     *
+     * @return A map associating each path to the IDs of the corresponding images in the dataset (empty if the import
+     * failed).
+     *
+     * @throws ServiceException     Cannot connect to OMERO.
+     * @throws AccessException      Cannot access data.
+     * @throws OMEROServerError     Server error.
+     * @throws ExecutionException   A Facility can't be retrieved or instantiated.
+     * @throws IOException          Cannot read file.
+     * @throws InterruptedException The thread was interrupted.
+     */
+    public Map<String, List<Long>> importNewImages(Client client, int threads, boolean linkExisting, String... paths)
+    throws ServiceException, AccessException, OMEROServerError, ExecutionException, IOException,
+           InterruptedException {
+        Map<String, List<List<String>>> local    = filesets(threads, paths);
+        Map<List<String>, List<Long>>   existing = existingFilesets(client, local);
+        Collection<Long>                children = existing.isEmpty() ? Collections.emptySet() : childIds(client);
+
+        Map<String, List<Long>> results  = new LinkedHashMap<>(paths.length);
+        Collection<String>      toImport = new ArrayList<>(paths.length);
+        Collection<Long>        toLink   = new LinkedHashSet<>(0);
+        for (String path : paths) {
+            List<Long> ids    = matchingImages(local.getOrDefault(path, Collections.emptyList()), existing);
+            List<Long> linked = ids.stream().filter(children::contains).collect(Collectors.toList());
+            if (!linked.isEmpty()) {
+                results.put(path, linked);
+            } else if (linkExisting && !ids.isEmpty()) {
+                toLink.addAll(ids);
+                results.put(path, ids);
+            } else {
+                toImport.add(path);
+                results.put(path, Collections.emptyList());
+            }
+        }
+
+        Collection<IObject> links = new ArrayList<>(toLink.size());
+        for (Long id : toLink) {
+            DatasetImageLink link = new DatasetImageLinkI();
+            link.setChild(new ImageI(id, false));
+            link.setParent(new DatasetI(data.getId(), false));
+            links.add(link);
+        }
+        if (!links.isEmpty()) {
+            client.save(links);
+        }
+
+        if (!toImport.isEmpty()) {
+            results.putAll(importImages(client, threads, null, toImport.toArray(new String[0])));
+        } else {
+            refresh(client);
+        }
+        return results;
+    }
+
+
+    /**
+     * Finds the files which were already imported in this dataset, comparing their filesets with the filesets on the
+     * server as {@link #importNewImages(Client, int, boolean, String...)} does.
+     *
+     * @param client  The client handling the connection.
+     * @param threads Number of files hashed simultaneously.
+     * @param paths   Paths to the image files on the computer.
+     *
+     * @return A map associating each path to the IDs of the corresponding images in the dataset (empty if not found).
+     *
+     * @throws ServiceException     Cannot connect to OMERO.
+     * @throws OMEROServerError     Server error.
+     * @throws IOException          Cannot read file.
+     * @throws InterruptedException The thread was interrupted.
+     */
+    private Map<String, List<Long>> findImported(Client client, int threads, String... paths)
+    throws ServiceException, OMEROServerError, IOException, InterruptedException {
+        Map<String, List<List<String>>> local    = filesets(threads, paths);
+        Map<List<String>, List<Long>>   existing = existingFilesets(client, local);
+        Collection<Long>                children = existing.isEmpty() ? Collections.emptySet() : childIds(client);
+
+        Map<String, List<Long>> found = new LinkedHashMap<>(paths.length);
+        for (String path : paths) {
+            List<Long> ids = matchingImages(local.getOrDefault(path, Collections.emptyList()), existing);
+            found.put(path, ids.stream().filter(children::contains).collect(Collectors.toList()));
+        }
+        return found;
+    }
+
+
+    /**
+     * Retrieves the filesets on the server containing files with the same checksums as the local files, in a single
+     * query, with the IDs of their images.
+     *
+     * @param client The client handling the connection.
+     * @param local  The local filesets of each path (see {@link #filesets(int, String...)}).
+     *
+     * @return A map associating the sorted keys of the files of each fileset to the IDs of its images.
+     *
+     * @throws ServiceException Cannot connect to OMERO.
+     * @throws OMEROServerError Server error.
+     */
+    private static Map<List<String>, List<Long>> existingFilesets(Client client, Map<String, List<List<String>>> local)
+    throws ServiceException, OMEROServerError {
+        Collection<String> hashes = new HashSet<>(local.size());
+        local.values().forEach(sets -> sets.forEach(set -> set.forEach(file -> hashes.add(hashOf(file)))));
+
+        Map<List<String>, List<Long>> existing = new HashMap<>(hashes.size());
+        if (hashes.isEmpty()) {
+            return existing;
+        }
+
+        List<RType> values = hashes.stream().map(rtypes::rstring).collect(Collectors.toList());
+        ParametersI params = new ParametersI();
+        params.add("hashes", rlist(values));
+        params.add("hasher", rstring(HASHER));
+        String query = "select fs.id, f.hash, f.name from Fileset fs join fs.usedFiles u join u.originalFile f" +
+                       " where fs.id in (select e.fileset.id from FilesetEntry e" +
+                       " where e.originalFile.hash in (:hashes) and e.originalFile.hasher.value = :hasher)";
+
+        Map<Long, List<String>> filesets = new HashMap<>(hashes.size());
+        for (List<RType> row : client.projection(query, params)) {
+            Long   id   = ((RLong) row.get(0)).getValue();
+            String hash = ((RString) row.get(1)).getValue();
+            String name = ((RString) row.get(2)).getValue();
+            filesets.computeIfAbsent(id, i -> new ArrayList<>(1)).add(fileKey(name, hash));
+        }
+
+        Map<Long, List<Long>> images = new HashMap<>(filesets.size());
+        if (!filesets.isEmpty()) {
+            ParametersI imageParams = new ParametersI();
+            imageParams.addIds(filesets.keySet());
+            String imageQuery = "select i.fileset.id, i.id from Image i where i.fileset.id in (:ids) order by i.id";
+            for (List<RType> row : client.projection(imageQuery, imageParams)) {
+                Long fileset = ((RLong) row.get(0)).getValue();
+                Long id      = ((RLong) row.get(1)).getValue();
+                images.computeIfAbsent(fileset, f -> new ArrayList<>(1)).add(id);
+            }
+        }
+
+        for (Map.Entry<Long, List<String>> fileset : filesets.entrySet()) {
+            Collections.sort(fileset.getValue());
+            List<Long> ids = images.getOrDefault(fileset.getKey(), Collections.emptyList());
+            existing.computeIfAbsent(fileset.getValue(), f -> new ArrayList<>(ids.size())).addAll(ids);
+        }
+
+        return existing;
+    }
+
+
+    /**
+     * Retrieves the IDs of the images in the dataset.
+     *
+     * @param client The client handling the connection.
+     *
+     * @return See above.
+     *
+     * @throws ServiceException Cannot connect to OMERO.
+     * @throws OMEROServerError Server error.
+     */
+    private Collection<Long> childIds(Client client) throws ServiceException, OMEROServerError {
+        return new HashSet<>(Arrays.asList(imageLinks().select("link.child.id").findIds(client)));
+    }
+
+
+    /**
+     * Returns the IDs of the images on the server matching the local filesets of a file.
+     *
+     * @param sets     The local filesets of the file.
+     * @param existing The filesets on the server (see {@link #existingFilesets(Client, Map)}).
+     *
+     * @return The image IDs, or an empty list if one of the filesets is not on the server.
+     */
+    private static List<Long> matchingImages(List<List<String>> sets, Map<List<String>, List<Long>> existing) {
+        List<Long> ids = new ArrayList<>(sets.size());
+        for (List<String> set : sets) {
+            List<Long> found = existing.get(set);
+            if (found == null || found.isEmpty()) {
+                return new ArrayList<>(0);
+            }
+            ids.addAll(found);
+        }
+        return ids;
+    }
+
+
+    /**
+     * Scans regular files in parallel to find their filesets, and computes the SHA-1 checksums of the files in each
+     * fileset.
+     *
+     * @param threads Number of files scanned simultaneously.
+     * @param paths   Paths to the files.
+     *
+     * @return A map associating each regular file path to its filesets, each described by the sorted keys of its files
+     * (see {@link #fileKey(String, String)}).
+     *
+     * @throws IOException          Cannot read file.
+     * @throws InterruptedException The thread was interrupted.
+     */
+    private static Map<String, List<List<String>>> filesets(int threads, String... paths)
+    throws IOException, InterruptedException {
+        Map<String, Future<List<List<String>>>> futures = new LinkedHashMap<>(paths.length);
+
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, Math.min(threads, paths.length)));
+        try {
+            for (String path : paths) {
+                if (new File(path).isFile()) {
+                    futures.put(path, executor.submit(() -> fileset(path)));
+                }
+            }
+            Map<String, List<List<String>>> filesets = new HashMap<>(futures.size());
+            for (Map.Entry<String, Future<List<List<String>>>> entry : futures.entrySet()) {
+                try {
+                    filesets.put(entry.getKey(), entry.getValue().get());
+                } catch (ExecutionException e) {
+                    throw new IOException("Could not compute checksums of " + entry.getKey(), e.getCause());
+                }
+            }
+            return filesets;
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+
+    /**
+     * Scans a file to find the filesets it belongs to, and computes the SHA-1 checksums of their files.
+     *
+     * @param path Path to the file.
+     *
+     * @return The filesets, each described by the sorted keys of its files (see {@link #fileKey(String, String)}).
+     *
+     * @throws IOException              Cannot read file.
+     * @throws NoSuchAlgorithmException SHA-1 is not available.
+     */
+    private static List<List<String>> fileset(String path) throws IOException, NoSuchAlgorithmException {
+        ImportConfig config = new ImportConfig();
+
+        List<ImportContainer> containers;
+        try (OMEROWrapper reader = new OMEROWrapper(config)) {
+            containers = new ImportCandidates(reader, new String[]{path}, new ErrorHandler(config)).getContainers();
+        }
+        if (containers == null) {
+            return Collections.emptyList();
+        }
+
+        List<List<String>> filesets = new ArrayList<>(containers.size());
+        for (ImportContainer container : containers) {
+            List<String> files = new ArrayList<>(container.getUsedFiles().length);
+            for (String file : container.getUsedFiles()) {
+                files.add(fileKey(new File(file).getName(), checksum(file)));
+            }
+            Collections.sort(files);
+            filesets.add(files);
+        }
+        return filesets;
+    }
+
+
+    /**
+     * Returns the key identifying a file in a fileset, from its name and checksum.
+     *
+     * @param name The file name.
+     * @param hash The hexadecimal checksum.
+     *
+     * @return See above.
+     */
+    private static String fileKey(String name, String hash) {
+        return hash + "/" + name;
+    }
+
+
+    /**
+     * Returns the checksum from a file key.
+     *
+     * @param key The file key (see {@link #fileKey(String, String)}).
+     *
+     * @return See above.
+     */
+    private static String hashOf(String key) {
+        return key.substring(0, key.indexOf('/'));
+    }
+
+
+    /**
+     * Computes the SHA-1 checksum of a file, as stored by OMERO.
+     *
+     * @param path Path to the file.
+     *
+     * @return The hexadecimal checksum.
+     *
+     * @throws IOException              Cannot read file.
+     * @throws NoSuchAlgorithmException SHA-1 is not available.
+     */
+    private static String checksum(String path) throws IOException, NoSuchAlgorithmException {
+        MessageDigest digest = MessageDigest.getInstance("SHA-1");
+        try (InputStream stream = Files.newInputStream(Paths.get(path))) {
+            byte[] buffer = new byte[65536];
+            int    n;
+            while ((n = stream.read(buffer)) > 0) {
+                digest.update(buffer, 0, n);
+            }
+        }
+        StringBuilder hash = new StringBuilder(40);
+        for (byte b : digest.digest()) {
+            hash.append(String.format("%02x", b));
+        }
+        return hash.toString();
+    }
+
+
     /**
      * Imports one image file to the dataset in OMERO.
      *
@@ -469,6 +1064,26 @@ public class DatasetWrapper extends GenericRepositoryObjectWrapper<DatasetData>
      * @throws ExecutionException A Facility can't be retrieved or instantiated.
      */
     public List<Long> importImage(Client client, String path)
+    throws ServiceException, AccessException, OMEROServerError, ExecutionException {
+        return importImage(client, path, null);
+    }
+
+
+    /**
+     * Imports one image file to the dataset in OMERO, recording import metrics.
+     *
+     * @param client  The client handling the connection.
+     * @param path    Path to the image file on the computer.
+     * @param metrics Observer recording the import metrics (can be null).
+     *
+     * @return The list of IDs of the newly imported images.
+     *
+     * @throws ServiceException   Cannot connect to OMERO.
+     * @throws AccessException    Cannot access data.
+     * @throws OMEROServerError   Server error.
+     * @throws ExecutionException A Facility can't be retrieved or instantiated.
+     */
+    public List<Long> importImage(Client client, String path, ImportMetrics metrics)
     throws ServiceException, AccessException, OMEROServerError, ExecutionException {
         ImportConfig config = new ImportConfig();
         config.target.set("Dataset:" + data.getId());
@@ -484,10 +1099,17 @@ public class DatasetWrapper extends GenericRepositoryObjectWrapper<DatasetData>
 
             ImportLibrary library = new ImportLibrary(store, reader);
             library.addObserver(new LoggingImportMonitor());
+            if (metrics != null) {
+                library.addObserver(metrics);
+            }
 
             ErrorHandler handler = new ErrorHandler(config);
 
+            long             start      = System.nanoTime();
             ImportCandidates candidates = new ImportCandidates(reader, new String[]{path}, handler);
+            if (metrics != null) {
+                metrics.scanned(library, start, System.nanoTime());
+            }
 
             ExecutorService uploadThreadPool = Executors.newFixedThreadPool(config.parallelUpload.get());
 
@@ -514,9 +1136,339 @@ public class DatasetWrapper extends GenericRepositoryObjectWrapper<DatasetData>
     }
 
 
+    /**
+     * Uploads an ImagePlus to the dataset in OMERO, without writing it to a file first.
+     * <p> Planes are converted and uploaded one at a time. RGB images are split into three channels. The spatial
+     * calibration is kept when its unit is recognized.
+     *
+     * @param client The client handling the connection.
+     * @param imp    The ImagePlus.
+     *
+     * @return The ID of the new image.
+     *
+     * @throws ServiceException   Cannot connect to OMERO.
+     * @throws AccessException    Cannot access data.
+     * @throws OMEROServerError   Server error.
+     * @throws ExecutionException A Facility can't be retrieved or instantiated.
+     */
+    public long importImage(Client client, ImagePlus imp)
+    throws ServiceException, AccessException, OMEROServerError, ExecutionException {
+        String pixelType;
+        switch (imp.getBitDepth()) {
+            case 8:
+            case 24:
+                pixelType = "uint8";
+                break;
+            case 16:
+                pixelType = "uint16";
+                break;
+            case 32:
+                pixelType = "float";
+                break;
+            default:
+                throw new IllegalArgumentException("Unsupported bit depth: " + imp.getBitDepth());
+        }
+        boolean rgb   = imp.getBitDepth() == 24;
+        int     sizeC = rgb ? 3 * imp.getNChannels() : imp.getNChannels();
+
+        ImageStack    stack  = imp.getStack();
+        PlaneSupplier planes = (z, c, t) -> {
+            int            channel = rgb ? c / 3 : c;
+            ImageProcessor ip      = stack.getProcessor(imp.getStackIndex(channel + 1, z + 1, t + 1));
+            return toBytes(ip, rgb ? c % 3 : -1);
+        };
+        long id = createImage(client, imp.getTitle(), pixelType,
+                              new int[]{imp.getWidth(), imp.getHeight(), imp.getNSlices(), sizeC, imp.getNFrames()},
+                              planes);
+
+        Calibration cal = imp.getCalibration();
+        if (cal.scaled()) {
+            try {
+                setPhysicalSizes(client, id, cal);
+            } catch (ServiceException | AccessException | OMEROServerError | ExecutionException | RuntimeException e) {
+                deleteImage(client, id, e);
+                throw e;
+            }
+        }
+        refresh(client);
+        return id;
+    }
+
+
+    /**
+     * Creates an image in the dataset in OMERO and uploads its planes as they are supplied.
+     * <p> Planes are requested and uploaded in XYZCT order, so that they do not have to be kept in memory. If a plane
+     * cannot be supplied or uploaded, the image is deleted.
+     *
+     * @param client    The client handling the connection.
+     * @param name      The image name.
+     * @param pixelType The pixel type (e.g. "uint8", "uint16", "float").
+     * @param sizeX     The image width.
+     * @param sizeY     The image height.
+     * @param sizeZ     The number of Z slices.
+     * @param sizeC     The number of channels.
+     * @param sizeT     The number of time points.
+     * @param planes    Supplier of the planes, in big-endian byte order.
+     *
+     * @return The ID of the new image.
+     *
+     * @throws ServiceException   Cannot connect to OMERO.
+     * @throws AccessException    Cannot access data.
+     * @throws OMEROServerError   Server error.
+     * @throws ExecutionException A Facility can't be retrieved or instantiated.
+     */
+    public long importImage(Client client, String name, String pixelType,
+                            int sizeX, int sizeY, int sizeZ, int sizeC, int sizeT, PlaneSupplier planes)
+    throws ServiceException, AccessException, OMEROServerError, ExecutionException {
+        long id = createImage(client, name, pixelType, new int[]{sizeX, sizeY, sizeZ, sizeC, sizeT}, planes);
+        refresh(client);
+        return id;
+    }
+
+
+    /**
+     * Creates an image, uploads its planes, and links it to the dataset. The image is deleted if any step after its
+     * creation fails.
+     *
+     * @param client    The client handling the connection.
+     * @param name      The image name.
+     * @param pixelType The pixel type.
+     * @param sizes     The image dimensions, in XYZCT order.
+     * @param planes    Supplier of the planes.
+     *
+     * @return The ID of the new image.
+     *
+     * @throws ServiceException   Cannot connect to OMERO.
+     * @throws AccessException    Cannot access data.
+     * @throws OMEROServerError   Server error.
+     * @throws ExecutionException A Facility can't be retrieved or instantiated.
+     */
+    private long createImage(Client client, String name, String pixelType, int[] sizes, PlaneSupplier planes)
+    throws ServiceException, AccessException, OMEROServerError, ExecutionException {
+        ParametersI params = new ParametersI();
+        params.add("type", rstring(pixelType));
+        List<IObject> types = client.findByQuery("from PixelsType as p where p.value = :type", params);
+        if (types.isEmpty()) {
+            throw new IllegalArgumentException("Unknown pixel type: " + pixelType);
+        }
+
+        List<Integer> channels = new ArrayList<>(sizes[3]);
+        for (int c = 0; c < sizes[3]; c++) {
+            channels.add(c);
+        }
+
+        long imageId = -1L;
+        try {
+            IPixelsPrx service = client.getGateway().getPixelsService(client.getCtx());
+            imageId = service.createImage(sizes[0], sizes[1], sizes[2], sizes[4], channels,
+                                          (PixelsType) types.get(0), name, "").getValue();
+        } catch (DSOutOfServiceException | ServerError e) {
+            handleServiceOrServer(e, "Could not create image " + name);
+        }
+
+        try {
+            writePlanes(client, imageId, sizes, planes);
+
+            DatasetImageLink link = new DatasetImageLinkI();
+            link.setChild(new ImageI(imageId, false));
+            link.setParent(new DatasetI(data.getId(), false));
+            client.save(link);
+        } catch (ServiceException | AccessException | OMEROServerError | ExecutionException | RuntimeException e) {
+            deleteImage(client, imageId, e);
+            throw e;
+        }
+        return imageId;
+    }
+
+
+    /**
+     * Uploads the planes of a new image and resets its rendering settings.
+     *
+     * @param client  The client handling the connection.
+     * @param imageId The image ID.
+     * @param sizes   The image dimensions, in XYZCT order.
+     * @param planes  Supplier of the planes.
+     *
+     * @throws ServiceException   Cannot connect to OMERO.
+     * @throws AccessException    Cannot access data.
+     * @throws OMEROServerError   Server error.
+     * @throws ExecutionException A Facility can't be retrieved or instantiated.
+     */
+    private static void writePlanes(Client client, long imageId, int[] sizes, PlaneSupplier planes)
+    throws ServiceException, AccessException, OMEROServerError, ExecutionException {
+        long pixelsId = client.getImage(imageId).getPixels().getId();
+
+        RawPixelsStorePrx store = null;
+        try {
+            store = client.getGateway().getPixelsStore(client.getCtx());
+            store.setPixelsId(pixelsId, false);
+            for (int t = 0; t < sizes[4]; t++) {
+                for (int c = 0; c < sizes[3]; c++) {
+                    for (int z = 0; z < sizes[2]; z++) {
+                        store.setPlane(planes.getPlane(z, c, t), z, c, t);
+                    }
+                }
+            }
+            store.save();
+
+            client.getGateway()
+                  .getRenderingSettingsService(client.getCtx())
+                  .setOriginalSettingsInSet("Pixels", Collections.singletonList(pixelsId));
+        } catch (DSOutOfServiceException | ServerError e) {
+            handleServiceOrServer(e, "Could not write planes of image " + imageId);
+        } finally {
+            if (store != null) {
+                try {
+                    store.close();
+                } catch (ServerError e) {
+                    throw new OMEROServerError("Could not close RawPixelsStore", e);
+                }
+            }
+        }
+    }
+
+
+    /**
+     * Deletes an image after a failed upload. Errors happening meanwhile are added to the suppressed exceptions of the
+     * failure.
+     *
+     * @param client  The client handling the connection.
+     * @param imageId The image ID.
+     * @param failure The exception which made the upload fail.
+     */
+    private static void deleteImage(Client client, long imageId, Throwable failure) {
+        try {
+            delete(client, new ImageI(imageId, false));
+        } catch (ServiceException | AccessException | ExecutionException | OMEROServerError | RuntimeException e) {
+            failure.addSuppressed(e);
+        } catch (InterruptedException e) {
+            failure.addSuppressed(e);
+            Thread.currentThread().interrupt();
+        }
+    }
+
+
+    /**
+     * Sets the physical pixel sizes of an image from an ImageJ calibration.
+     *
+     * @param client The client handling the connection.
+     * @param id     The image ID.
+     * @param cal    The calibration.
+     *
+     * @throws ServiceException   Cannot connect to OMERO.
+     * @throws AccessException    Cannot access data.
+     * @throws OMEROServerError   Server error.
+     * @throws ExecutionException A Facility can't be retrieved or instantiated.
+     */
+    private static void setPhysicalSizes(Client client, long id, Calibration cal)
+    throws ServiceException, AccessException, OMEROServerError, ExecutionException {
+        UnitsLength unitX = toUnit(cal.getXUnit());
+        UnitsLength unitY = toUnit(cal.getYUnit());
+        UnitsLength unitZ = toUnit(cal.getZUnit());
+        if (unitX == null && unitY == null && unitZ == null) {
+            return;
+        }
+
+        long pixelsId = client.getImage(id).getPixels().getId();
+        try {
+            Pixels pixels = client.getGateway().getPixelsService(client.getCtx()).retrievePixDescription(pixelsId);
+            if (unitX != null) {
+                pixels.setPhysicalSizeX(new LengthI(cal.pixelWidth, unitX));
+            }
+            if (unitY != null) {
+                pixels.setPhysicalSizeY(new LengthI(cal.pixelHeight, unitY));
+            }
+            if (unitZ != null) {
+                pixels.setPhysicalSizeZ(new LengthI(cal.pixelDepth, unitZ));
+            }
+            client.save(pixels);
+        } catch (DSOutOfServiceException | ServerError e) {
+            handleServiceOrServer(e, "Could not set physical sizes of image " + id);
+        }
+    }
+
+
+    /**
+     * Converts an ImageJ unit to an OMERO length unit.
+     *
+     * @param unit The ImageJ unit.
+     *
+     * @return The OMERO unit, or null if it is not recognized.
+     */
+    private static UnitsLength toUnit(String unit) {
+        if (unit == null) {
+            return null;
+        }
+        switch (unit) {
+            case "micron":
+            case "microns":
+            case "um":
+            case "\u00B5m":
+                return UnitsLength.MICROMETER;
+            case "nm":
+                return UnitsLength.NANOMETER;
+            case "mm":
+                return UnitsLength.MILLIMETER;
+            case "cm":
+                return UnitsLength.CENTIMETER;
+            case "m":
+                return UnitsLength.METER;
+            default:
+                try {
+                    return UnitsLength.valueOf(unit.toUpperCase(Locale.ROOT));
+                } catch (IllegalArgumentException e) {
+                    return null;
+                }
+        }
+    }
+
+
+    /**
+     * Converts the pixels of an ImageJ processor to bytes, in big-endian order.
+     *
+     * @param ip        The processor.
+     * @param component The RGB component to extract (0, 1 or 2) for color processors.
+     *
+     * @return See above.
+     */
+    private static byte[] toBytes(ImageProcessor ip, int component) {
+        Object pixels = ip.getPixels();
+        byte[] bytes;
+        if (pixels instanceof byte[]) {
+            bytes = ((byte[]) pixels).clone();
+        } else if (pixels instanceof short[]) {
+            short[] values = (short[]) pixels;
+            ByteBuffer buffer = ByteBuffer.allocate(2 * values.length);
+            buffer.asShortBuffer().put(values);
+            bytes = buffer.array();
+        } else if (pixels instanceof float[]) {
+            float[] values = (float[]) pixels;
+            ByteBuffer buffer = ByteBuffer.allocate(4 * values.length);
+            buffer.asFloatBuffer().put(values);
+            bytes = buffer.array();
+        } else if (pixels instanceof int[]) {
+            int[] values = (int[]) pixels;
+            int   shift  = 16 - 8 * component;
+            bytes = new byte[values.length];
+            for (int i = 0; i < values.length; i++) {
+                bytes[i] = (byte) (values[i] >> shift);
+            }
+        } else {
+            throw new IllegalArgumentException("Unsupported processor: " + ip.getClass().getSimpleName());
+        }
+        return bytes;
+    }
+
+
     /**
      * Imports one image file to the dataset in OMERO and replace older images sharing the same name after copying their
      * annotations and ROIs, and concatenating the descriptions (on new lines).
+     * <p> Replaced images are looked up in the dataset once, their annotations are linked to the new images in a
+     * single call, the ROIs are saved with one call per new image and the old images are deleted with a single
+     * request. Annotations already linked to the new images, or which the user is not allowed to link (e.g. those owned
+     * by other users in a read-only group), are not copied.
+     * <p> The deletion of the old images is submitted without waiting for the server to complete it: they may still
+     * be found for a short time after this method returns.
      *
      * @param client The client handling the connection.
      * @param path   Path to the image on the computer.
@@ -531,35 +1483,109 @@ public class DatasetWrapper extends GenericRepositoryObjectWrapper<DatasetData>
      */
     public List<Long> importAndReplaceImages(Client client, String path)
     throws ServiceException, AccessException, OMEROServerError, ExecutionException, InterruptedException {
-        List<Long> ids    = importImage(client, path);
-        Long[]     newIds = ids.toArray(LONGS);
+        List<Long> ids = importImage(client, path);
 
-        List<ImageWrapper> newImages = client.getImages(newIds);
+        Map<String, List<ImageWrapper>> byName = getImages(client).stream()
+                                                                  .filter(i -> !ids.contains(i.getId()))
+                                                                  .collect(Collectors.groupingBy(ImageWrapper::getName));
+
+        List<ImageWrapper>                    newImages = client.getImages(ids.toArray(LONGS));
+        Map<ImageWrapper, List<ImageWrapper>> replaced  = new LinkedHashMap<>(newImages.size());
         for (ImageWrapper image : newImages) {
-            List<ImageWrapper> oldImages = getImages(client, image.getName());
-            oldImages.removeIf(i -> ids.contains(i.getId()));
-            ArrayList<String> descriptions = new ArrayList<>(oldImages.size() + 1);
+            List<ImageWrapper> oldImages = byName.remove(image.getName());
+            if (oldImages != null) {
+                replaced.put(image, oldImages);
+            }
+        }
+        if (replaced.isEmpty()) {
+            return ids;
+        }
+
+        List<ImageWrapper> oldImages = replaced.values()
+                                               .stream()
+                                               .flatMap(Collection::stream)
+                                               .collect(Collectors.toList());
+
+        ParametersI params = new ParametersI();
+        params.addIds(oldImages.stream().map(ImageWrapper::getId).collect(Collectors.toList()));
+        List<IObject> links = client.findByQuery("select l from ImageAnnotationLink l join fetch l.child" +
+                                                 " where l.parent.id in (:ids)", params);
+        Map<Long, List<Annotation>> annotations = new HashMap<>(oldImages.size());
+        for (IObject o : links) {
+            ImageAnnotationLink link  = (ImageAnnotationLink) o;
+            Annotation          child = link.getChild();
+            if (canLink(child)) {
+                annotations.computeIfAbsent(link.getParent().getId().getValue(), k -> new ArrayList<>(1)).add(child);
+            } else {
+                String msg = String.format("Annotation %d cannot be linked to the new images and will not be copied.",
+                                           child.getId().getValue());
+                LOGGER.info(msg);
+            }
+        }
+
+        Map<Long, Collection<Long>> existing = new HashMap<>(replaced.size());
+        List<List<RType>> rows = new QueryBuilder("ImageAnnotationLink", "l").select("l.parent.id", "l.child.id")
+                                                                             .where("l.parent.id in (:ids)")
+                                                                             .bind("ids", ids)
+                                                                             .project(client);
+        for (List<RType> row : rows) {
+            Long image      = ((RLong) row.get(0)).getValue();
+            Long annotation = ((RLong) row.get(1)).getValue();
+            existing.computeIfAbsent(image, k -> new HashSet<>(1)).add(annotation);
+        }
+
+        Collection<IObject> newLinks = new ArrayList<>(links.size());
+        Collection<IObject> updated  = new ArrayList<>(replaced.size());
+        for (Map.Entry<ImageWrapper, List<ImageWrapper>> entry : replaced.entrySet()) {
+            ImageWrapper image = entry.getKey();
+
+            Collection<Long> linked       = existing.getOrDefault(image.getId(), new HashSet<>(0));
+            List<String>     descriptions = new ArrayList<>(entry.getValue().size() + 1);
+            List<ROIWrapper> rois         = new ArrayList<>(0);
             descriptions.add(image.getDescription());
-            for (ImageWrapper oldImage : oldImages) {
+            for (ImageWrapper oldImage : entry.getValue()) {
                 descriptions.add(oldImage.getDescription());
-                image.copyAnnotationLinks(client, oldImage);
-                List<ROIWrapper> rois = oldImage.getROIs(client);
-                for (ROIWrapper roi : rois) {
-                    roi.setImage(image);
-                    image.saveROI(client, roi);
+                for (Annotation annotation : annotations.getOrDefault(oldImage.getId(), Collections.emptyList())) {
+                    if (linked.add(annotation.getId().getValue())) {
+                        ImageAnnotationLink link = new ImageAnnotationLinkI();
+                        link.setParent(new ImageI(image.getId(), false));
+                        link.setChild((Annotation) annotation.proxy());
+                        newLinks.add(link);
+                    }
                 }
-                client.delete(oldImage);
+                rois.addAll(oldImage.getROIs(client));
             }
+            image.saveROIs(client, rois);
+
             descriptions.removeIf(s -> s == null || s.trim().isEmpty());
             image.setDescription(String.join("\n", descriptions));
-            image.saveAndUpdate(client);
+            updated.add(image.asImageData().asImage());
         }
+        client.save(newLinks);
+        client.save(updated);
+        client.deleteAsync(oldImages).close(false);
         return ids;
     }
 
 
+    /**
+     * Checks if the current user can link an annotation to other objects, according to the permissions returned by the
+     * server.
+     *
+     * @param annotation The annotation.
+     *
+     * @return See above.
+     */
+    private static boolean canLink(Annotation annotation) {
+        Permissions permissions = annotation.getDetails() != null ? annotation.getDetails().getPermissions() : null;
+        return permissions == null || permissions.canLink();
+    }
+
+
     /**
      * Refreshes the wrapped dataset.
+     * <p> The dataset and the cached lists are also removed from the client metadata cache, since images may have been
+     * imported to the dataset without being saved through the client.
      *
      * @param client The client handling the connection.
      *
@@ -568,6 +1594,7 @@ public class DatasetWrapper extends GenericRepositoryObjectWrapper<DatasetData>
      * @throws ExecutionException A Facility can't be retrieved or instantiated.
      */
     public void refresh(Client client) throws ServiceException, AccessException, ExecutionException {
+        invalidate(client, data.asIObject());
         try {
             data = client.getBrowseFacility()
                          .getDatasets(client.getCtx(), Collections.singletonList(this.getId()))
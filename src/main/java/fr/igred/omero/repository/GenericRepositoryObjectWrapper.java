@@ -18,6 +18,7 @@ package fr.igred.omero.repository;
 
 import fr.igred.omero.Client;
 import fr.igred.omero.GenericObjectWrapper;
+import fr.igred.omero.QueryBuilder;
 import fr.igred.omero.annotations.FileAnnotationWrapper;
 import fr.igred.omero.annotations.GenericAnnotationWrapper;
 import fr.igred.omero.annotations.MapAnnotationWrapper;
@@ -26,6 +27,8 @@ import fr.igred.omero.annotations.TagAnnotationWrapper;
 import fr.igred.omero.exception.AccessException;
 import fr.igred.omero.exception.OMEROServerError;
 import fr.igred.omero.exception.ServiceException;
+import omero.ServerError;
+import omero.api.RawFileStorePrx;
 import omero.constants.metadata.NSCLIENTMAPANNOTATION;
 import omero.gateway.exception.DSAccessException;
 import omero.gateway.exception.DSOutOfServiceException;
@@ -35,12 +38,24 @@ import omero.gateway.model.FileAnnotationData;
 import omero.gateway.model.MapAnnotationData;
 import omero.gateway.model.TableData;
 import omero.gateway.model.TagAnnotationData;
+import omero.model.ChecksumAlgorithm;
+import omero.model.ChecksumAlgorithmI;
+import omero.model.FileAnnotation;
+import omero.model.FileAnnotationI;
 import omero.model.IObject;
 import omero.model.NamedValue;
+import omero.model.OriginalFile;
+import omero.model.OriginalFileI;
 import omero.model.TagAnnotationI;
+import omero.model.enums.ChecksumAlgorithmSHA1160;
 
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
@@ -49,9 +64,16 @@ import java.util.Map;
 import java.util.NoSuchElementException;
 import java.util.Objects;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
 
+import static fr.igred.omero.exception.ExceptionHandler.handleException;
 import static fr.igred.omero.exception.ExceptionHandler.handleServiceOrAccess;
+import static omero.rtypes.rlong;
+import static omero.rtypes.rstring;
 
 
 /**
@@ -61,6 +83,10 @@ import static fr.igred.omero.exception.ExceptionHandler.handleServiceOrAccess;
  */
 public abstract class GenericRepositoryObjectWrapper<T extends DataObject> extends GenericObjectWrapper<T> {
 
+    /** Mimetype used when it cannot be determined */
+    private static final String DEFAULT_MIMETYPE = "application/octet-stream";
+
+
     /**
      * Constructor of the class GenericRepositoryObjectWrapper.
      *
@@ -480,6 +506,245 @@ public abstract class GenericRepositoryObjectWrapper<T extends DataObject> exten
     }
 
 
+    /**
+     * Links a file to the object, uploading it in chunks of the specified size.
+     * <p> The next chunk is read from the file while the current one is written to the server. If the upload or the
+     * link to the object fails, the file created on the server is deleted.
+     *
+     * @param client    The client handling the connection.
+     * @param file      File to add.
+     * @param chunkSize Size of the chunks sent to the server, in bytes.
+     * @param listener  Listener notified after each chunk is sent (can be null).
+     *
+     * @return ID of the file created in OMERO.
+     *
+     * @throws ServiceException     Cannot connect to OMERO.
+     * @throws AccessException      Cannot access data.
+     * @throws OMEROServerError     Server error.
+     * @throws ExecutionException   A Facility can't be retrieved or instantiated.
+     * @throws IOException          Cannot read file.
+     * @throws InterruptedException The thread was interrupted.
+     */
+    public long addFile(Client client, File file, int chunkSize, TransferListener listener)
+    throws ServiceException, AccessException, OMEROServerError, ExecutionException, IOException,
+           InterruptedException {
+        String path     = file.getAbsoluteFile().getParent() + File.separator;
+        String mimetype = Files.probeContentType(file.toPath());
+        try (InputStream stream = new FileInputStream(file)) {
+            return uploadFile(client, stream, file.getName(), path, mimetype, file.length(), chunkSize, listener);
+        }
+    }
+
+
+    /**
+     * Links the content of a stream to the object as a file, uploading it in chunks of the specified size.
+     * <p> The next chunk is read from the stream while the current one is written to the server. The stream is not
+     * closed, but it is no longer read once this method returns, even if the upload failed. If the upload or the link
+     * to the object fails, the file created on the server is deleted.
+     *
+     * @param client    The client handling the connection.
+     * @param stream    Stream containing the file content.
+     * @param name      Name of the file.
+     * @param mimetype  Mimetype of the file (if null, application/octet-stream is used).
+     * @param chunkSize Size of the chunks sent to the server, in bytes.
+     * @param listener  Listener notified after each chunk is sent (can be null).
+     *
+     * @return ID of the file created in OMERO.
+     *
+     * @throws ServiceException     Cannot connect to OMERO.
+     * @throws AccessException      Cannot access data.
+     * @throws OMEROServerError     Server error.
+     * @throws ExecutionException   A Facility can't be retrieved or instantiated.
+     * @throws IOException          Cannot read stream.
+     * @throws InterruptedException The thread was interrupted.
+     */
+    public long addFile(Client client, InputStream stream, String name, String mimetype, int chunkSize,
+                        TransferListener listener)
+    throws ServiceException, AccessException, OMEROServerError, ExecutionException, IOException,
+           InterruptedException {
+        return uploadFile(client, stream, name, "", mimetype, -1, chunkSize, listener);
+    }
+
+
+    /**
+     * Reads a chunk from a stream.
+     *
+     * @param stream The stream.
+     * @param size   The maximum size of the chunk.
+     *
+     * @return The bytes read, empty if the end of the stream was reached.
+     *
+     * @throws IOException Cannot read stream.
+     */
+    private static byte[] readChunk(InputStream stream, int size) throws IOException {
+        byte[] buffer = new byte[size];
+        int    read   = 0;
+        int    n      = 0;
+        while (read < size && n >= 0) {
+            n = stream.read(buffer, read, size - read);
+            read += Math.max(n, 0);
+        }
+        return read == size ? buffer : Arrays.copyOf(buffer, read);
+    }
+
+
+    /**
+     * Writes the content of a stream to a raw file store, in chunks of the specified size.
+     * <p> The next chunk is read in the background while the current one is written. Whatever the outcome, this method
+     * waits for the pending read to finish before returning, so that the stream is no longer used afterwards.
+     *
+     * @param store     The raw file store.
+     * @param stream    Stream containing the file content.
+     * @param name      Name of the file.
+     * @param size      Size of the file, or -1 if unknown.
+     * @param chunkSize Size of the chunks sent to the server, in bytes.
+     * @param listener  Listener notified after each chunk is sent (can be null).
+     *
+     * @throws ServerError          Server error.
+     * @throws IOException          Cannot read stream.
+     * @throws InterruptedException The thread was interrupted.
+     */
+    private static void writeChunks(RawFileStorePrx store, InputStream stream, String name, long size, int chunkSize,
+                                    TransferListener listener)
+    throws ServerError, IOException, InterruptedException {
+        ExecutorService reader = Executors.newSingleThreadExecutor();
+        try {
+            long start    = System.nanoTime();
+            long position = 0;
+
+            byte[] chunk = readChunk(stream, chunkSize);
+            while (chunk.length > 0) {
+                Future<byte[]> next = reader.submit(() -> readChunk(stream, chunkSize));
+                store.write(chunk, position, chunk.length);
+                position += chunk.length;
+                if (listener != null) {
+                    double seconds = (System.nanoTime() - start) / 1.0e9;
+                    listener.transferred(position, size, seconds > 0 ? position / seconds : 0);
+                }
+                try {
+                    chunk = next.get();
+                } catch (ExecutionException e) {
+                    throw new IOException("Could not read " + name, e.getCause());
+                }
+            }
+        } finally {
+            reader.shutdown();
+            boolean interrupted = false;
+            while (!reader.isTerminated()) {
+                try {
+                    reader.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+
+    /**
+     * Closes the raw file store and deletes the uploaded file after a failed upload. Errors happening meanwhile are
+     * added to the suppressed exceptions of the failure.
+     *
+     * @param client  The client handling the connection.
+     * @param store   The raw file store (can be null).
+     * @param file    The original file, or its file annotation if it was already saved (which deletes the original
+     *                file with it).
+     * @param failure The exception which made the upload fail.
+     */
+    private static void abortUpload(Client client, RawFileStorePrx store, IObject file, Throwable failure) {
+        if (store != null) {
+            try {
+                store.close();
+            } catch (ServerError | RuntimeException e) {
+                failure.addSuppressed(e);
+            }
+        }
+        try {
+            delete(client, file);
+        } catch (ServiceException | AccessException | ExecutionException | OMEROServerError | RuntimeException e) {
+            failure.addSuppressed(e);
+        } catch (InterruptedException e) {
+            failure.addSuppressed(e);
+            Thread.currentThread().interrupt();
+        }
+    }
+
+
+    /**
+     * Uploads the content of a stream to a new original file and links it to the object.
+     *
+     * @param client    The client handling the connection.
+     * @param stream    Stream containing the file content.
+     * @param name      Name of the file.
+     * @param path      Path of the file.
+     * @param mimetype  Mimetype of the file.
+     * @param size      Size of the file, or -1 if unknown.
+     * @param chunkSize Size of the chunks sent to the server, in bytes.
+     * @param listener  Listener notified after each chunk is sent (can be null).
+     *
+     * @return ID of the file created in OMERO.
+     *
+     * @throws ServiceException     Cannot connect to OMERO.
+     * @throws AccessException      Cannot access data.
+     * @throws OMEROServerError     Server error.
+     * @throws ExecutionException   A Facility can't be retrieved or instantiated.
+     * @throws IOException          Cannot read stream.
+     * @throws InterruptedException The thread was interrupted.
+     */
+    private long uploadFile(Client client, InputStream stream, String name, String path, String mimetype,
+                            long size, int chunkSize, TransferListener listener)
+    throws ServiceException, AccessException, OMEROServerError, ExecutionException, IOException,
+           InterruptedException {
+        if (chunkSize <= 0) {
+            throw new IllegalArgumentException("Chunk size must be positive: " + chunkSize);
+        }
+
+        ChecksumAlgorithm algorithm = new ChecksumAlgorithmI();
+        algorithm.setValue(rstring(ChecksumAlgorithmSHA1160.value));
+
+        OriginalFile originalFile = new OriginalFileI();
+        originalFile.setName(rstring(name));
+        originalFile.setPath(rstring(path));
+        originalFile.setSize(rlong(Math.max(size, 0)));
+        originalFile.setHasher(algorithm);
+        originalFile.setMimetype(rstring(mimetype != null ? mimetype : DEFAULT_MIMETYPE));
+        originalFile = (OriginalFile) client.save(originalFile);
+
+        long            id         = -1L;
+        RawFileStorePrx store      = null;
+        FileAnnotation  annotation = null;
+        try {
+            store = client.getGateway().getRawFileService(client.getCtx());
+            store.setFileId(originalFile.getId().getValue());
+            writeChunks(store, stream, name, size, chunkSize, listener);
+            originalFile = store.save();
+            store.close();
+            store = null;
+
+            annotation = new FileAnnotationI();
+            annotation.setFile(originalFile);
+            annotation.setDescription(rstring(""));
+            annotation.setNs(rstring(name));
+            annotation = (FileAnnotation) client.save(annotation);
+
+            FileAnnotationData fileAnnotation = new FileAnnotationData(annotation);
+            client.getDm().attachAnnotation(client.getCtx(), fileAnnotation, data);
+            id = fileAnnotation.getId();
+        } catch (ServiceException | AccessException | ExecutionException | IOException | InterruptedException |
+                 RuntimeException e) {
+            abortUpload(client, store, annotation != null ? annotation : originalFile, e);
+            throw e;
+        } catch (DSOutOfServiceException | DSAccessException | ServerError e) {
+            abortUpload(client, store, annotation != null ? annotation : originalFile, e);
+            handleException(e, "Could not upload file " + name + " to " + this);
+        }
+        return id;
+    }
+
+
     /**
      * Links a file annotation to the object
      *
@@ -564,9 +829,11 @@ public abstract class GenericRepositoryObjectWrapper<T extends DataObject> exten
      */
     protected void removeLink(Client client, String linkType, long childId)
     throws ServiceException, OMEROServerError, AccessException, ExecutionException, InterruptedException {
-        List<IObject> os = client.findByQuery("select link from " + linkType +
-                                              " link where link.parent = " + getId() +
-                                              " and link.child = " + childId);
+        List<IObject> os = new QueryBuilder(linkType, "link").where("link.parent.id = :parent")
+                                                             .where("link.child.id = :child")
+                                                             .bind("parent", getId())
+                                                             .bind("child", childId)
+                                                             .find(client);
         delete(client, os.iterator().next());
     }
 
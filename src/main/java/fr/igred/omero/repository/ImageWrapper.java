@@ -17,6 +17,7 @@ package fr.igred.omero.repository;
 
 
 import fr.igred.omero.Client;
+import fr.igred.omero.QueryBuilder;
 import fr.igred.omero.exception.AccessException;
 import fr.igred.omero.exception.OMEROServerError;
 import fr.igred.omero.exception.ServiceException;
@@ -32,6 +33,9 @@ import ij.process.ImageProcessor;
 import ij.process.LUT;
 import loci.common.DataTools;
 import loci.formats.FormatTools;
+import omero.RLong;
+import omero.RString;
+import omero.RType;
 import omero.ServerError;
 import omero.api.RenderingEnginePrx;
 import omero.api.ThumbnailStorePrx;
@@ -47,21 +51,33 @@ import omero.gateway.model.ROIResult;
 import omero.model.Folder;
 import omero.model.IObject;
 import omero.model.Length;
+import omero.sys.ParametersI;
 
 import javax.imageio.ImageIO;
 import java.awt.Color;
 import java.awt.image.BufferedImage;
 import java.io.ByteArrayInputStream;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
 import java.sql.Timestamp;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.NoSuchElementException;
+import java.util.TreeMap;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.stream.Collectors;
@@ -190,6 +206,36 @@ public class ImageWrapper extends GenericRepositoryObjectWrapper<ImageData> {
     }
 
 
+    /**
+     * Links several ROIs to the image in OMERO with a single call.
+     *
+     * @param client The client handling the connection.
+     * @param rois   ROIs to be added.
+     *
+     * @return The saved ROIs.
+     *
+     * @throws ServiceException   Cannot connect to OMERO.
+     * @throws AccessException    Cannot access data.
+     * @throws ExecutionException A Facility can't be retrieved or instantiated.
+     */
+    public List<ROIWrapper> saveROIs(Client client, Collection<? extends ROIWrapper> rois)
+    throws ServiceException, AccessException, ExecutionException {
+        List<ROIWrapper> saved = new ArrayList<>(rois.size());
+        if (!rois.isEmpty()) {
+            rois.forEach(roi -> roi.setImage(this));
+            List<ROIData> roiData = rois.stream().map(ROIWrapper::asROIData).collect(Collectors.toList());
+            try {
+                client.getRoiFacility()
+                      .saveROIs(client.getCtx(), data.getId(), roiData)
+                      .forEach(roi -> saved.add(new ROIWrapper(roi)));
+            } catch (DSOutOfServiceException | DSAccessException e) {
+                handleServiceOrAccess(e, "Cannot link ROIs to " + this);
+            }
+        }
+        return saved;
+    }
+
+
     /**
      * Gets all ROIs linked to the image in OMERO
      *
@@ -269,10 +315,9 @@ public class ImageWrapper extends GenericRepositoryObjectWrapper<ImageData> {
      * @throws NoSuchElementException Folder does not exist.
      */
     public FolderWrapper getFolder(Client client, Long folderId) throws ServiceException, OMEROServerError {
-        List<IObject> os = client.findByQuery("select f " +
-                                              "from Folder as f " +
-                                              "where f.id = " +
-                                              folderId);
+        List<IObject> os = new QueryBuilder("Folder", "f").where("f.id = :id")
+                                                          .bind("id", folderId)
+                                                          .find(client);
 
         FolderWrapper folderWrapper = new FolderWrapper((Folder) os.iterator().next());
         folderWrapper.setImage(this.data.getId());
@@ -618,4 +663,126 @@ public class ImageWrapper extends GenericRepositoryObjectWrapper<ImageData> {
         return new ArrayList<>(0);
     }
 
+
+    /**
+     * Downloads the original files of several images from the server.
+     * <p> Files are downloaded in parallel, and files shared by several images (e.g. multi-series filesets) are only
+     * downloaded once. When two different files have the same name, the second one is put in a subfolder named after
+     * its fileset.
+     *
+     * @param client  The client handling the connection.
+     * @param images  The images to download.
+     * @param path    Path to the destination folder.
+     * @param threads Number of files downloaded simultaneously.
+     *
+     * @return A map associating each image ID to its original files.
+     *
+     * @throws OMEROServerError     Server error.
+     * @throws ServiceException     Cannot connect to OMERO.
+     * @throws IOException          Cannot write files.
+     * @throws InterruptedException The thread was interrupted.
+     */
+    public static Map<Long, List<File>> download(Client client, Collection<? extends ImageWrapper> images,
+                                                 String path, int threads)
+    throws OMEROServerError, ServiceException, IOException, InterruptedException {
+        if (threads <= 0) {
+            throw new IllegalArgumentException("Number of threads must be positive: " + threads);
+        }
+
+        Map<Long, List<File>> imageFiles = new LinkedHashMap<>(images.size());
+        images.forEach(image -> imageFiles.put(image.getId(), new ArrayList<>(2)));
+        if (imageFiles.isEmpty()) {
+            return imageFiles;
+        }
+
+        String query = "select i.id, fs.id, f.id, f.name, f.size from Image i" +
+                       " join i.fileset fs join fs.usedFiles u join u.originalFile f" +
+                       " where i.id in (:ids) order by f.id";
+        ParametersI params = new ParametersI();
+        params.addIds(imageFiles.keySet());
+        List<List<RType>> rows = client.projection(query, params);
+
+        Map<Long, File>    targets = new TreeMap<>();
+        Map<Long, Long>    sizes   = new HashMap<>(rows.size());
+        Collection<String> names   = new HashSet<>(rows.size());
+        File               folder  = new File(path);
+        for (List<RType> row : rows) {
+            long   imageId   = ((RLong) row.get(0)).getValue();
+            long   filesetId = ((RLong) row.get(1)).getValue();
+            long   fileId    = ((RLong) row.get(2)).getValue();
+            String name      = ((RString) row.get(3)).getValue();
+
+            File target = targets.get(fileId);
+            if (target == null) {
+                target = new File(folder, name);
+                if (names.contains(target.getPath())) {
+                    target = new File(new File(folder, "Fileset_" + filesetId), name);
+                }
+                if (names.contains(target.getPath())) {
+                    target = new File(new File(folder, "File_" + fileId), name);
+                }
+                names.add(target.getPath());
+                targets.put(fileId, target);
+                sizes.put(fileId, ((RLong) row.get(4)).getValue());
+            }
+            imageFiles.get(imageId).add(target);
+        }
+
+        ExecutorService        executor = Executors.newFixedThreadPool(Math.min(threads, Math.max(targets.size(), 1)));
+        Map<Long, Future<File>> futures = new LinkedHashMap<>(targets.size());
+        try {
+            for (Map.Entry<Long, File> entry : targets.entrySet()) {
+                long id   = entry.getKey();
+                File file = entry.getValue();
+                futures.put(id, executor.submit(() -> downloadFile(client, id, sizes.get(id), file)));
+            }
+            for (Map.Entry<Long, Future<File>> entry : futures.entrySet()) {
+                try {
+                    entry.getValue().get();
+                } catch (ExecutionException e) {
+                    String error = "Could not download file " + entry.getKey() + ": " + e.getCause().getMessage();
+                    handleServiceOrServer(e.getCause(), error);
+                    if (e.getCause() instanceof OMEROServerError) {
+                        throw new OMEROServerError(error, e.getCause());
+                    }
+                    if (e.getCause() instanceof IOException) {
+                        throw (IOException) e.getCause();
+                    }
+                    throw new IOException(error, e.getCause());
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        return imageFiles;
+    }
+
+
+    /**
+     * Downloads an original file with its own raw file store.
+     *
+     * @param client The client handling the connection.
+     * @param id     The original file ID.
+     * @param size   The file size.
+     * @param file   The destination file.
+     *
+     * @return The downloaded file.
+     *
+     * @throws ServiceException Cannot connect to OMERO.
+     * @throws OMEROServerError Server error.
+     * @throws IOException      Cannot write file.
+     */
+    private static File downloadFile(Client client, long id, long size, File file)
+    throws ServiceException, OMEROServerError, IOException {
+        File parent = file.getParentFile();
+        if (parent != null) {
+            Files.createDirectories(parent.toPath());
+        }
+
+        try (OutputStream stream = new FileOutputStream(file)) {
+            client.download(id, size, stream);
+        }
+        return file;
+    }
+
 }
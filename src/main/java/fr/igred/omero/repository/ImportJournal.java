@@ -0,0 +1,391 @@
+/*
+ *  Copyright (C) 2020-2022 GReD
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 51 Franklin
+ * Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+
+package fr.igred.omero.repository;
+
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+import java.util.stream.Collectors;
+import java.util.zip.CRC32;
+
+
+/**
+ * Local append-only journal recording the state of each file of a bulk import.
+ * <p> Each state change is written on its own line, ending with a checksum of the record, and flushed immediately, so
+ * that an interrupted import can be resumed: when the journal is opened again, the last recorded state of each file is
+ * restored, and files already imported are skipped by
+ * {@link DatasetWrapper#importImages(fr.igred.omero.Client, ImportJournal, int, String...)}.
+ */
+public class ImportJournal implements Closeable {
+
+    /** Logger */
+    private static final Logger LOGGER = Logger.getLogger(ImportJournal.class.getName());
+
+    /** Separator between the fields of a line. */
+    private static final String SEPARATOR = "\t";
+
+    /** Last recorded state of each path. */
+    private final Map<String, Entry> entries = new LinkedHashMap<>();
+
+    /** Journal file. */
+    private final Path file;
+
+    /** Writer appending to the journal. */
+    private final Writer writer;
+
+
+    /**
+     * Opens a journal, restoring the states recorded in the file if it already exists.
+     *
+     * @param path Path to the journal file.
+     *
+     * @throws IOException Cannot read or create the journal file.
+     */
+    public ImportJournal(String path) throws IOException {
+        this.file = new File(path).toPath();
+        boolean torn = false;
+        if (Files.exists(file)) {
+            load();
+            torn = !endsWithNewLine(file);
+        }
+        this.writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8,
+                                              StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        if (torn) {
+            writer.write(System.lineSeparator());
+            writer.flush();
+        }
+    }
+
+
+    /**
+     * Checks if a file is empty or ends with a new line.
+     *
+     * @param file The file.
+     *
+     * @return See above.
+     *
+     * @throws IOException Cannot read the file.
+     */
+    private static boolean endsWithNewLine(Path file) throws IOException {
+        try (SeekableByteChannel channel = Files.newByteChannel(file, StandardOpenOption.READ)) {
+            if (channel.size() == 0) {
+                return true;
+            }
+            ByteBuffer last = ByteBuffer.allocate(1);
+            channel.position(channel.size() - 1);
+            channel.read(last);
+            return last.get(0) == '\n' || last.get(0) == '\r';
+        }
+    }
+
+
+    /**
+     * Computes the checksum of a record.
+     *
+     * @param record The record, without its checksum.
+     *
+     * @return The checksum, as an hexadecimal string.
+     */
+    private static String checksum(String record) {
+        CRC32 crc = new CRC32();
+        crc.update(record.getBytes(StandardCharsets.UTF_8));
+        return Long.toHexString(crc.getValue());
+    }
+
+
+    /**
+     * Escapes tabs, new lines and backslashes in a path.
+     *
+     * @param path The path.
+     *
+     * @return See above.
+     */
+    private static String escape(String path) {
+        return path.replace("\\", "\\\\").replace("\t", "\\t").replace("\n", "\\n").replace("\r", "\\r");
+    }
+
+
+    /**
+     * Restores a path escaped by {@link #escape(String)}.
+     *
+     * @param escaped The escaped path.
+     *
+     * @return See above.
+     */
+    private static String unescape(String escaped) {
+        StringBuilder path = new StringBuilder(escaped.length());
+        for (int i = 0; i < escaped.length(); i++) {
+            char ch = escaped.charAt(i);
+            if (ch == '\\' && i + 1 < escaped.length()) {
+                char next = escaped.charAt(++i);
+                switch (next) {
+                    case 't':
+                        path.append('\t');
+                        break;
+                    case 'n':
+                        path.append('\n');
+                        break;
+                    case 'r':
+                        path.append('\r');
+                        break;
+                    default:
+                        path.append(next);
+                }
+            } else {
+                path.append(ch);
+            }
+        }
+        return path.toString();
+    }
+
+
+    /**
+     * Normalises a path, so that different paths to the same file share the same entry.
+     *
+     * @param path The path.
+     *
+     * @return The absolute and normalised path.
+     */
+    private static String normalize(String path) {
+        return new File(path).toPath().toAbsolutePath().normalize().toString();
+    }
+
+
+    /**
+     * Reads the journal file. Lines whose checksum is missing or does not match (e.g. incomplete lines written during a
+     * crash) are ignored.
+     *
+     * @throws IOException Cannot read the journal file.
+     */
+    private void load() throws IOException {
+        try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            String line = reader.readLine();
+            while (line != null) {
+                int      end    = line.lastIndexOf(SEPARATOR);
+                String   record = end >= 0 ? line.substring(0, end) : "";
+                String[] fields = record.split(SEPARATOR, -1);
+                try {
+                    if (end < 0 || fields.length != 3 || !checksum(record).equals(line.substring(end + 1))) {
+                        throw new IllegalArgumentException("Invalid checksum");
+                    }
+                    State      state = State.valueOf(fields[0]);
+                    List<Long> ids   = new ArrayList<>(0);
+                    if (state == State.IMPORTED && !fields[2].isEmpty()) {
+                        Arrays.stream(fields[2].split(",")).map(Long::valueOf).forEach(ids::add);
+                    }
+                    entries.put(normalize(unescape(fields[1])), new Entry(state, ids));
+                } catch (IllegalArgumentException e) {
+                    LOGGER.warning("Ignoring invalid journal line: " + line);
+                }
+                line = reader.readLine();
+            }
+        }
+    }
+
+
+    /**
+     * Records a new state for a path. The path is recorded as an absolute and normalised path.
+     *
+     * @param path  The path.
+     * @param state The new state.
+     * @param extra Additional information (image IDs or error), can be empty.
+     * @param ids   The image IDs.
+     *
+     * @throws IOException Cannot write to the journal.
+     */
+    private synchronized void record(String path, State state, String extra, List<Long> ids) throws IOException {
+        String key    = normalize(path);
+        String record = state.name() + SEPARATOR + escape(key) + SEPARATOR + escape(extra);
+        writer.write(record);
+        writer.write(SEPARATOR);
+        writer.write(checksum(record));
+        writer.write(System.lineSeparator());
+        writer.flush();
+        entries.put(key, new Entry(state, ids));
+    }
+
+
+    /**
+     * Records that a path was queued for import.
+     *
+     * @param path The path.
+     *
+     * @throws IOException Cannot write to the journal.
+     */
+    public void queued(String path) throws IOException {
+        record(path, State.QUEUED, "", Collections.emptyList());
+    }
+
+
+    /**
+     * Records that the files of a path were uploaded.
+     *
+     * @param path The path.
+     *
+     * @throws IOException Cannot write to the journal.
+     */
+    public void uploaded(String path) throws IOException {
+        record(path, State.UPLOADED, "", Collections.emptyList());
+    }
+
+
+    /**
+     * Records that a path was imported.
+     *
+     * @param path The path.
+     * @param ids  The IDs of the imported images.
+     *
+     * @throws IOException Cannot write to the journal.
+     */
+    public void imported(String path, List<Long> ids) throws IOException {
+        String list = ids.stream().map(String::valueOf).collect(Collectors.joining(","));
+        record(path, State.IMPORTED, list, new ArrayList<>(ids));
+    }
+
+
+    /**
+     * Records that a path could not be imported.
+     *
+     * @param path  The path.
+     * @param cause The cause of the failure.
+     *
+     * @throws IOException Cannot write to the journal.
+     */
+    public void failed(String path, Throwable cause) throws IOException {
+        String message = cause != null ? String.valueOf(cause.getMessage()) : "";
+        record(path, State.FAILED, message, Collections.emptyList());
+    }
+
+
+    /**
+     * Returns the last recorded state of a path.
+     *
+     * @param path The path.
+     *
+     * @return The state, or null if the path is not in the journal.
+     */
+    public synchronized State getState(String path) {
+        Entry entry = entries.get(normalize(path));
+        return entry != null ? entry.state : null;
+    }
+
+
+    /**
+     * Checks if a path was imported.
+     *
+     * @param path The path.
+     *
+     * @return See above.
+     */
+    public boolean isImported(String path) {
+        return getState(path) == State.IMPORTED;
+    }
+
+
+    /**
+     * Returns the IDs of the images imported from a path.
+     *
+     * @param path The path.
+     *
+     * @return The image IDs, or an empty list if the path was not imported.
+     */
+    public synchronized List<Long> getImageIds(String path) {
+        Entry entry = entries.get(normalize(path));
+        return entry != null ? Collections.unmodifiableList(entry.ids) : Collections.emptyList();
+    }
+
+
+    /**
+     * Returns the paths whose last recorded state is the specified one.
+     *
+     * @param state The state.
+     *
+     * @return The absolute and normalised paths.
+     */
+    public synchronized List<String> getPaths(State state) {
+        return entries.entrySet()
+                      .stream()
+                      .filter(e -> e.getValue().state == state)
+                      .map(Map.Entry::getKey)
+                      .collect(Collectors.toList());
+    }
+
+
+    @Override
+    public synchronized void close() throws IOException {
+        writer.close();
+    }
+
+
+    /**
+     * State of a file in the journal.
+     */
+    public enum State {
+        /** The file is waiting to be imported. */
+        QUEUED,
+        /** The file was uploaded, but not yet processed by the server. */
+        UPLOADED,
+        /** The file was imported. */
+        IMPORTED,
+        /** The file could not be imported. */
+        FAILED
+    }
+
+
+    /**
+     * Journal entry for a path.
+     */
+    private static class Entry {
+
+        /** The state. */
+        final State state;
+
+        /** The imported image IDs. */
+        final List<Long> ids;
+
+
+        /**
+         * Constructor of the Entry class.
+         *
+         * @param state The state.
+         * @param ids   The imported image IDs.
+         */
+        Entry(State state, List<Long> ids) {
+            this.state = state;
+            this.ids = ids;
+        }
+
+    }
+
+}
@@ -0,0 +1,60 @@
+/*
+ *  Copyright (C) 2020-2022 GReD
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 51 Franklin
+ * Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+
+package fr.igred.omero.repository;
+
+
+import java.util.List;
+
+
+/**
+ * Listener notified as each path is imported by a concurrent import.
+ * <p> Methods are called from the import threads, and should therefore be thread-safe.
+ */
+@FunctionalInterface
+public interface ImportListener {
+
+    /**
+     * Called when the files from a path have been uploaded, before they are processed by the server.
+     *
+     * @param path The uploaded path.
+     */
+    default void uploaded(String path) {
+        // Ignored by default
+    }
+
+
+    /**
+     * Called when all the images from a path have been imported.
+     *
+     * @param path The imported path.
+     * @param ids  The IDs of the imported images.
+     */
+    void imported(String path, List<Long> ids);
+
+
+    /**
+     * Called when a path could not be imported.
+     *
+     * @param path  The path.
+     * @param cause The cause of the failure.
+     */
+    default void failed(String path, Throwable cause) {
+        // Ignored by default
+    }
+
+}
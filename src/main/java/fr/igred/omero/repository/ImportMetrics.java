@@ -0,0 +1,502 @@
+/*
+ *  Copyright (C) 2020-2022 GReD
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 51 Franklin
+ * Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+
+package fr.igred.omero.repository;
+
+
+import ome.formats.importer.IObservable;
+import ome.formats.importer.IObserver;
+import ome.formats.importer.ImportEvent;
+import ome.formats.importer.cli.ErrorHandler;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Import observer recording timings, uploaded bytes and failures for each imported container.
+ * <p> An instance can be shared by several concurrent imports: events are tracked separately for each import library.
+ * Reports can be retrieved once the imports are done, or forwarded to a {@link Listener} as each container finishes.
+ * <p> Containers are tracked from the start of their upload: failures happening earlier (e.g. while scanning the
+ * files) are not recorded. The time spent scanning the files, when reported by the importer, is attributed to the first
+ * container found by the scan, but is not included in its total time.
+ */
+public class ImportMetrics implements IObserver {
+
+    /** Current import for each observed library. */
+    private final Map<IObservable, Tracker> trackers = new IdentityHashMap<>();
+
+    /** Duration of the last scan of each library, not yet attributed to a container. */
+    private final Map<IObservable, Long> scans = new IdentityHashMap<>();
+
+    /** Reports of finished containers. */
+    private final List<ContainerReport> reports = new ArrayList<>();
+
+    /** Listener notified when a container is finished. */
+    private final Listener listener;
+
+    /** Time when the first import started. */
+    private long start = -1;
+
+    /** Time when the last import finished. */
+    private long end = -1;
+
+
+    /**
+     * Constructor of the ImportMetrics class.
+     */
+    public ImportMetrics() {
+        this(null);
+    }
+
+
+    /**
+     * Constructor of the ImportMetrics class.
+     *
+     * @param listener Listener notified when a container is finished (can be null).
+     */
+    public ImportMetrics(Listener listener) {
+        this.listener = listener;
+    }
+
+
+    /**
+     * Converts nanoseconds to milliseconds.
+     *
+     * @param nanos The duration in nanoseconds.
+     *
+     * @return See above.
+     */
+    private static long toMillis(long nanos) {
+        return TimeUnit.NANOSECONDS.toMillis(nanos);
+    }
+
+
+    /**
+     * Returns the stage ended by the specified event, if any.
+     *
+     * @param event The import event.
+     *
+     * @return See above.
+     */
+    private static Stage endedStage(ImportEvent event) {
+        Stage stage = null;
+        if (event instanceof ImportEvent.FILE_UPLOAD_COMPLETE) {
+            stage = Stage.UPLOAD;
+        } else if (event instanceof ImportEvent.FILESET_UPLOAD_END) {
+            stage = Stage.VERIFICATION;
+        } else if (event instanceof ImportEvent.METADATA_IMPORTED) {
+            stage = Stage.METADATA;
+        } else if (event instanceof ImportEvent.PIXELDATA_PROCESSED) {
+            stage = Stage.PIXELS;
+        } else if (event instanceof ImportEvent.THUMBNAILS_GENERATED) {
+            stage = Stage.THUMBNAILS;
+        } else if (event instanceof ImportEvent.IMPORT_DONE) {
+            stage = Stage.FINALIZATION;
+        }
+        return stage;
+    }
+
+
+    /**
+     * Records the time spent scanning files before they are imported by the specified library. The duration is
+     * attributed to the next container imported by that library.
+     *
+     * @param importLibrary The import library.
+     * @param scanStart     Time when the scan started, as returned by {@link System#nanoTime()}.
+     * @param scanEnd       Time when the scan ended, as returned by {@link System#nanoTime()}.
+     */
+    synchronized void scanned(IObservable importLibrary, long scanStart, long scanEnd) {
+        scans.merge(importLibrary, scanEnd - scanStart, Long::sum);
+        if (start < 0 || scanStart < start) {
+            start = scanStart;
+        }
+    }
+
+
+    @Override
+    public void update(IObservable importLibrary, ImportEvent event) {
+        long            now    = System.nanoTime();
+        ContainerReport report = null;
+        synchronized (this) {
+            Tracker tracker = trackers.get(importLibrary);
+            if (event instanceof ImportEvent.FILESET_UPLOAD_START) {
+                tracker = new Tracker(((ImportEvent.FILESET_UPLOAD_START) event).filename, now);
+                trackers.put(importLibrary, tracker);
+                Long scan = scans.remove(importLibrary);
+                if (scan != null) {
+                    tracker.durations.put(Stage.SCAN, scan);
+                }
+                if (start < 0) {
+                    start = now;
+                }
+            } else if (tracker != null) {
+                if (event instanceof ImportEvent.FILE_UPLOAD_COMPLETE) {
+                    Long bytes = ((ImportEvent.FILE_UPLOAD_COMPLETE) event).uploadedBytes;
+                    tracker.bytes += bytes != null ? bytes : 0L;
+                    tracker.files++;
+                }
+                if (event instanceof ErrorHandler.EXCEPTION_EVENT) {
+                    tracker.error = ((ErrorHandler.EXCEPTION_EVENT) event).exception;
+                } else if (event instanceof ImportEvent.FILE_UPLOAD_ERROR) {
+                    tracker.error = ((ImportEvent.FILE_UPLOAD_ERROR) event).exception;
+                }
+
+                Stage stage = endedStage(event);
+                if (stage != null) {
+                    tracker.durations.merge(stage, now - tracker.last, Long::sum);
+                    tracker.last = now;
+                }
+                if (event instanceof ImportEvent.IMPORT_DONE || tracker.error != null) {
+                    report = tracker.report(now);
+                    reports.add(report);
+                    trackers.remove(importLibrary);
+                    end = now;
+                }
+            }
+        }
+        if (report != null && listener != null) {
+            listener.finished(report);
+        }
+    }
+
+
+    /**
+     * Returns the reports of the finished containers.
+     *
+     * @return See above.
+     */
+    public synchronized List<ContainerReport> getReports() {
+        return new ArrayList<>(reports);
+    }
+
+
+    /**
+     * Returns the number of containers which failed to import.
+     *
+     * @return See above.
+     */
+    public synchronized int getFailures() {
+        return (int) reports.stream().filter(r -> !r.isSuccess()).count();
+    }
+
+
+    /**
+     * Returns the total number of bytes uploaded.
+     *
+     * @return See above.
+     */
+    public synchronized long getUploadedBytes() {
+        return reports.stream().mapToLong(ContainerReport::getUploadedBytes).sum();
+    }
+
+
+    /**
+     * Returns the total number of files uploaded.
+     *
+     * @return See above.
+     */
+    public synchronized long getUploadedFiles() {
+        return reports.stream().mapToLong(ContainerReport::getUploadedFiles).sum();
+    }
+
+
+    /**
+     * Returns the time elapsed between the start of the first import and the end of the last one.
+     *
+     * @return The elapsed time, in milliseconds.
+     */
+    public synchronized long getElapsedTime() {
+        return start >= 0 && end >= start ? toMillis(end - start) : 0L;
+    }
+
+
+    /**
+     * Returns the number of files uploaded per second over the elapsed time.
+     *
+     * @return See above.
+     */
+    public double getFilesPerSecond() {
+        long elapsed = getElapsedTime();
+        return elapsed > 0 ? 1000.0 * getUploadedFiles() / elapsed : 0.0;
+    }
+
+
+    /**
+     * Returns the number of bytes uploaded per second over the elapsed time.
+     *
+     * @return See above.
+     */
+    public double getBytesPerSecond() {
+        long elapsed = getElapsedTime();
+        return elapsed > 0 ? 1000.0 * getUploadedBytes() / elapsed : 0.0;
+    }
+
+
+    /**
+     * Returns the total time spent in each stage, over all containers.
+     *
+     * @return A map associating each stage to its duration, in milliseconds.
+     */
+    public synchronized Map<Stage, Long> getStageTimes() {
+        Map<Stage, Long> times = new EnumMap<>(Stage.class);
+        for (ContainerReport report : reports) {
+            report.getStageTimes().forEach((stage, time) -> times.merge(stage, time, Long::sum));
+        }
+        return times;
+    }
+
+
+    /**
+     * Import stages, in the order they happen.
+     */
+    public enum Stage {
+        /** Scan of the files, to find the containers to import. */
+        SCAN,
+        /** Upload of the files to the server. */
+        UPLOAD,
+        /** Checksum verification of the uploaded files. */
+        VERIFICATION,
+        /** Server-side metadata import. */
+        METADATA,
+        /** Server-side pixel data processing. */
+        PIXELS,
+        /** Server-side thumbnail generation. */
+        THUMBNAILS,
+        /** Final processing, until the imported objects are returned. */
+        FINALIZATION
+    }
+
+
+    /**
+     * Listener notified each time a container is finished.
+     */
+    @FunctionalInterface
+    public interface Listener {
+
+        /**
+         * Called when a container has been imported, or has failed to import.
+         *
+         * @param report The container report.
+         */
+        void finished(ContainerReport report);
+
+    }
+
+
+    /**
+     * Tracks the current import of a library.
+     */
+    private static class Tracker {
+
+        /** Durations of the finished stages. */
+        final Map<Stage, Long> durations = new EnumMap<>(Stage.class);
+
+        /** Imported path. */
+        final String path;
+
+        /** Start time. */
+        final long start;
+
+        /** End time of the last stage. */
+        long last;
+
+        /** Bytes uploaded. */
+        long bytes = 0;
+
+        /** Files uploaded. */
+        int files = 0;
+
+        /** Error, if any. */
+        Throwable error = null;
+
+
+        /**
+         * Constructor of the Tracker class.
+         *
+         * @param path  The imported path.
+         * @param start The start time.
+         */
+        Tracker(String path, long start) {
+            this.path = path;
+            this.start = start;
+            this.last = start;
+        }
+
+
+        /**
+         * Creates the report for this container.
+         *
+         * @param end The end time.
+         *
+         * @return See above.
+         */
+        ContainerReport report(long end) {
+            Map<Stage, Long> times = new EnumMap<>(Stage.class);
+            durations.forEach((stage, duration) -> times.put(stage, toMillis(duration)));
+            return new ContainerReport(path, times, toMillis(end - start), bytes, files, error);
+        }
+
+    }
+
+
+    /**
+     * Metrics of a single imported container.
+     */
+    public static class ContainerReport {
+
+        /** Imported path. */
+        private final String path;
+
+        /** Time spent in each stage, in milliseconds. */
+        private final Map<Stage, Long> stageTimes;
+
+        /** Total time, in milliseconds. */
+        private final long totalTime;
+
+        /** Bytes uploaded. */
+        private final long uploadedBytes;
+
+        /** Files uploaded. */
+        private final int uploadedFiles;
+
+        /** Error, if any. */
+        private final Throwable error;
+
+
+        /**
+         * Constructor of the ContainerReport class.
+         *
+         * @param path          The imported path.
+         * @param stageTimes    The time spent in each stage.
+         * @param totalTime     The total time.
+         * @param uploadedBytes The number of bytes uploaded.
+         * @param uploadedFiles The number of files uploaded.
+         * @param error         The error, if any.
+         */
+        ContainerReport(String path, Map<Stage, Long> stageTimes, long totalTime,
+                        long uploadedBytes, int uploadedFiles, Throwable error) {
+            this.path = path;
+            this.stageTimes = Collections.unmodifiableMap(stageTimes);
+            this.totalTime = totalTime;
+            this.uploadedBytes = uploadedBytes;
+            this.uploadedFiles = uploadedFiles;
+            this.error = error;
+        }
+
+
+        /**
+         * Returns the imported path.
+         *
+         * @return See above.
+         */
+        public String getPath() {
+            return path;
+        }
+
+
+        /**
+         * Returns the time spent in each stage reached by the import.
+         *
+         * @return A map associating each stage to its duration, in milliseconds.
+         */
+        public Map<Stage, Long> getStageTimes() {
+            return stageTimes;
+        }
+
+
+        /**
+         * Returns the total import time, from the start of the upload.
+         *
+         * @return The duration, in milliseconds.
+         */
+        public long getTotalTime() {
+            return totalTime;
+        }
+
+
+        /**
+         * Returns the number of bytes uploaded.
+         *
+         * @return See above.
+         */
+        public long getUploadedBytes() {
+            return uploadedBytes;
+        }
+
+
+        /**
+         * Returns the number of files uploaded.
+         *
+         * @return See above.
+         */
+        public int getUploadedFiles() {
+            return uploadedFiles;
+        }
+
+
+        /**
+         * Returns the number of bytes uploaded per second.
+         *
+         * @return See above.
+         */
+        public double getBytesPerSecond() {
+            long upload = stageTimes.getOrDefault(Stage.UPLOAD, 0L);
+            return upload > 0 ? 1000.0 * uploadedBytes / upload : 0.0;
+        }
+
+
+        /**
+         * Checks if the container was imported successfully.
+         *
+         * @return See above.
+         */
+        public boolean isSuccess() {
+            return error == null;
+        }
+
+
+        /**
+         * Returns the error which made the import fail, if any.
+         *
+         * @return See above.
+         */
+        public Throwable getError() {
+            return error;
+        }
+
+
+        @Override
+        public String toString() {
+            return "ContainerReport{" +
+                   "path='" + path + '\'' +
+                   ", success=" + isSuccess() +
+                   ", totalTime=" + totalTime +
+                   ", stageTimes=" + stageTimes +
+                   ", uploadedBytes=" + uploadedBytes +
+                   ", uploadedFiles=" + uploadedFiles +
+                   "}";
+        }
+
+    }
+
+}
@@ -0,0 +1,296 @@
+/*
+ *  Copyright (C) 2020-2022 GReD
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 51 Franklin
+ * Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+
+package fr.igred.omero.repository;
+
+
+import fr.igred.omero.Client;
+import fr.igred.omero.exception.OMEROServerError;
+import fr.igred.omero.exception.ServiceException;
+import loci.formats.in.DefaultMetadataOptions;
+import loci.formats.in.MetadataLevel;
+import ome.formats.OMEROMetadataStoreClient;
+import ome.formats.importer.ImportCandidates;
+import ome.formats.importer.ImportConfig;
+import ome.formats.importer.ImportContainer;
+import ome.formats.importer.ImportEvent;
+import ome.formats.importer.ImportLibrary;
+import ome.formats.importer.OMEROWrapper;
+import ome.formats.importer.cli.ErrorHandler;
+import ome.formats.importer.cli.LoggingImportMonitor;
+import omero.gateway.model.DatasetData;
+import omero.model.Pixels;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Collectors;
+
+
+/**
+ * Imports files to a dataset with several workers.
+ * <p> Each worker owns an import store, a reader and an upload pool for its whole lifetime, and takes paths from a
+ * shared queue until it is empty. Paths are scanned individually, so that scanning, upload and server-side processing
+ * of different files overlap. Files belonging to the same multi-file image should therefore be given as a single path
+ * (e.g. the main file or the parent folder).
+ */
+class ImportPipeline {
+
+    /** Logger */
+    private static final Logger LOGGER = Logger.getLogger(ImportPipeline.class.getName());
+
+    /** The client handling the connection. */
+    private final Client client;
+
+    /** The target dataset. */
+    private final DatasetData dataset;
+
+    /** Number of workers. */
+    private final int workers;
+
+    /** Listener notified after each path. */
+    private final ImportListener listener;
+
+    /** Metrics observer added to each import library. */
+    private final ImportMetrics metrics;
+
+
+    /**
+     * Constructor of the ImportPipeline class.
+     *
+     * @param client   The client handling the connection.
+     * @param dataset  The target dataset.
+     * @param workers  Number of workers.
+     * @param listener Listener notified after each path (can be null).
+     * @param metrics  Metrics observer added to each import library (can be null).
+     */
+    ImportPipeline(Client client, DatasetData dataset, int workers, ImportListener listener, ImportMetrics metrics) {
+        if (workers <= 0) {
+            throw new IllegalArgumentException("Number of workers must be positive: " + workers);
+        }
+        this.client = client;
+        this.dataset = dataset;
+        this.workers = workers;
+        this.listener = listener;
+        this.metrics = metrics;
+    }
+
+
+    /**
+     * Creates the import configuration.
+     *
+     * @return See above.
+     */
+    private ImportConfig createConfig() {
+        ImportConfig config = new ImportConfig();
+        config.target.set("Dataset:" + dataset.getId());
+        config.username.set(client.getUser().getUserName());
+        config.email.set(client.getUser().getEmail());
+        return config;
+    }
+
+
+    /**
+     * Imports the specified paths.
+     * <p> If a worker fails (e.g. its import store cannot be created), the other workers keep importing the remaining
+     * paths. Paths which no worker could reach are reported as failed. Errors (e.g. {@link OutOfMemoryError}) are
+     * thrown once all workers are done. Duplicate paths are only imported once.
+     *
+     * @param paths The paths to import.
+     *
+     * @return A map associating each path to the IDs of the imported images (empty if the import failed), in the order
+     * of the paths.
+     *
+     * @throws ServiceException     Cannot connect to OMERO.
+     * @throws OMEROServerError     Server error.
+     * @throws InterruptedException The thread was interrupted.
+     */
+    Map<String, List<Long>> run(Collection<String> paths)
+    throws ServiceException, OMEROServerError, InterruptedException {
+        Collection<String>      unique  = new LinkedHashSet<>(paths);
+        Queue<String>           queue   = new ConcurrentLinkedQueue<>(unique);
+        Map<String, List<Long>> results = new ConcurrentHashMap<>(unique.size());
+
+        int             n        = Math.max(1, Math.min(workers, unique.size()));
+        ExecutorService executor = Executors.newFixedThreadPool(n);
+        List<Future<?>> futures  = new ArrayList<>(n);
+        Throwable       error    = null;
+        try {
+            for (int i = 0; i < n; i++) {
+                futures.add(executor.submit(() -> {
+                    work(queue, results);
+                    return null;
+                }));
+            }
+            for (Future<?> future : futures) {
+                try {
+                    future.get();
+                } catch (ExecutionException e) {
+                    LOGGER.log(Level.SEVERE, "Import worker failed", e.getCause());
+                    error = e.getCause();
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        if (error instanceof Error) {
+            throw (Error) error;
+        }
+        if (error != null && results.isEmpty()) {
+            if (error instanceof ServiceException) {
+                throw (ServiceException) error;
+            } else if (error instanceof OMEROServerError) {
+                throw (OMEROServerError) error;
+            }
+        }
+
+        Map<String, List<Long>> ordered = new LinkedHashMap<>(unique.size());
+        for (String path : unique) {
+            List<Long> ids = results.get(path);
+            if (ids == null) {
+                ids = Collections.emptyList();
+                if (listener != null) {
+                    listener.failed(path, error);
+                }
+            }
+            ordered.put(path, ids);
+        }
+        return ordered;
+    }
+
+
+    /**
+     * Takes paths from the queue and imports them until the queue is empty.
+     * <p> The worker uses its own import store, created for the current session, and logs it out when done.
+     *
+     * @param queue   The queue of paths.
+     * @param results The map to store the results.
+     *
+     * @throws ServiceException Cannot create import store.
+     * @throws OMEROServerError Cannot create import store.
+     */
+    private void work(Queue<String> queue, Map<String, List<Long>> results)
+    throws ServiceException, OMEROServerError {
+        ImportConfig config = createConfig();
+
+        OMEROMetadataStoreClient store            = client.createImportStore();
+        ExecutorService          uploadThreadPool = Executors.newFixedThreadPool(config.parallelUpload.get());
+        try (OMEROWrapper reader = new OMEROWrapper(config)) {
+            store.logVersionInfo(config.getIniVersionNumber());
+            reader.setMetadataOptions(new DefaultMetadataOptions(MetadataLevel.ALL));
+
+            AtomicReference<String> current = new AtomicReference<>();
+
+            ImportLibrary library = new ImportLibrary(store, reader);
+            library.addObserver(new LoggingImportMonitor());
+            if (metrics != null) {
+                library.addObserver(metrics);
+            }
+            if (listener != null) {
+                library.addObserver((observable, event) -> {
+                    if (event instanceof ImportEvent.FILESET_UPLOAD_END) {
+                        listener.uploaded(current.get());
+                    }
+                });
+            }
+
+            ErrorHandler handler = new ErrorHandler(config);
+
+            String path = queue.poll();
+            while (path != null && !Thread.currentThread().isInterrupted()) {
+                current.set(path);
+                List<Long> ids = importPath(library, reader, handler, uploadThreadPool, path);
+                results.put(path, ids);
+                path = queue.poll();
+            }
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Could not close reader", e);
+        } finally {
+            uploadThreadPool.shutdown();
+            store.closeServices();
+            store.logout();
+        }
+    }
+
+
+    /**
+     * Scans and imports a single path, then notifies the listener.
+     *
+     * @param library          The import library.
+     * @param reader           The reader used to scan the path.
+     * @param handler          The error handler.
+     * @param uploadThreadPool The upload thread pool.
+     * @param path             The path.
+     *
+     * @return The IDs of the imported images, or an empty list if the import failed.
+     */
+    private List<Long> importPath(ImportLibrary library, OMEROWrapper reader, ErrorHandler handler,
+                                  ExecutorService uploadThreadPool, String path) {
+        Collection<Pixels> pixels = new ArrayList<>(1);
+        try {
+            long             start      = System.nanoTime();
+            ImportCandidates candidates = new ImportCandidates(reader, new String[]{path}, handler);
+            if (metrics != null) {
+                metrics.scanned(library, start, System.nanoTime());
+            }
+
+            List<ImportContainer> containers = candidates.getContainers();
+            if (containers != null) {
+                for (int i = 0; i < containers.size(); i++) {
+                    ImportContainer container = containers.get(i);
+                    container.setTarget(dataset.asDataset());
+                    pixels.addAll(library.importImage(container, uploadThreadPool, i));
+                }
+            }
+        } catch (Error e) {
+            throw e;
+        } catch (Throwable t) {
+            // ImportLibrary.importImage declares Throwable: anything but an Error is a failure of this path
+            LOGGER.log(Level.WARNING, "Could not import " + path, t);
+            if (listener != null) {
+                listener.failed(path, t);
+            }
+            return Collections.emptyList();
+        }
+
+        List<Long> ids = pixels.stream()
+                               .map(pix -> pix.getImage().getId().getValue())
+                               .distinct()
+                               .collect(Collectors.toList());
+        if (listener != null) {
+            listener.imported(path, ids);
+        }
+        return ids;
+    }
+
+}
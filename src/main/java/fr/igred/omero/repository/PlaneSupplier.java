@@ -0,0 +1,38 @@
+/*
+ *  Copyright (C) 2020-2022 GReD
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 51 Franklin
+ * Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+
+package fr.igred.omero.repository;
+
+
+/**
+ * Supplies the planes of an image as they are uploaded to OMERO.
+ */
+@FunctionalInterface
+public interface PlaneSupplier {
+
+    /**
+     * Returns the raw content of a plane.
+     *
+     * @param z The Z index.
+     * @param c The channel index.
+     * @param t The T index.
+     *
+     * @return The plane pixels, in big-endian byte order.
+     */
+    byte[] getPlane(int z, int c, int t);
+
+}
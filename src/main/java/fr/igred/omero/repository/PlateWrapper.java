@@ -18,7 +18,9 @@ package fr.igred.omero.repository;
 
 
 import fr.igred.omero.Client;
+import fr.igred.omero.QueryBuilder;
 import fr.igred.omero.exception.AccessException;
+import fr.igred.omero.exception.OMEROServerError;
 import fr.igred.omero.exception.ServiceException;
 import ome.model.units.BigResult;
 import omero.gateway.exception.DSAccessException;
@@ -152,6 +154,47 @@ public class PlateWrapper extends GenericRepositoryObjectWrapper<PlateData> {
     }
 
 
+    /**
+     * Counts the wells in the plate, without retrieving them.
+     *
+     * @param client The client handling the connection.
+     *
+     * @return See above.
+     *
+     * @throws ServiceException Cannot connect to OMERO.
+     * @throws OMEROServerError Server error.
+     */
+    public long countWells(Client client) throws ServiceException, OMEROServerError {
+        return wells().count(client);
+    }
+
+
+    /**
+     * Checks if the plate contains at least one well, without retrieving it.
+     *
+     * @param client The client handling the connection.
+     *
+     * @return See above.
+     *
+     * @throws ServiceException Cannot connect to OMERO.
+     * @throws OMEROServerError Server error.
+     */
+    public boolean hasWells(Client client) throws ServiceException, OMEROServerError {
+        return wells().exists(client);
+    }
+
+
+    /**
+     * Creates a query selecting the wells of the plate.
+     *
+     * @return See above.
+     */
+    private QueryBuilder wells() {
+        return new QueryBuilder("Well", "w").where("w.plate.id = :plate")
+                                            .bind("plate", data.getId());
+    }
+
+
     /**
      * Returns the index indicating how to label a column.
      *
@@ -19,25 +19,30 @@ package fr.igred.omero.repository;
 
 
 import fr.igred.omero.Client;
-import fr.igred.omero.GenericObjectWrapper;
+import fr.igred.omero.QueryBuilder;
 import fr.igred.omero.annotations.TagAnnotationWrapper;
 import fr.igred.omero.exception.AccessException;
 import fr.igred.omero.exception.OMEROServerError;
 import fr.igred.omero.exception.ServiceException;
 import omero.gateway.exception.DSAccessException;
 import omero.gateway.exception.DSOutOfServiceException;
+import omero.gateway.model.DataObject;
+import omero.gateway.model.ImageData;
 import omero.gateway.model.ProjectData;
 import omero.model.ProjectDatasetLink;
 import omero.model.ProjectDatasetLinkI;
+import omero.sys.ParametersI;
 
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
-import java.util.Comparator;
 import java.util.List;
 import java.util.concurrent.ExecutionException;
+import java.util.stream.Collectors;
 
+import static fr.igred.omero.exception.ExceptionHandler.handleServerAsServiceOrAccess;
 import static fr.igred.omero.exception.ExceptionHandler.handleServiceOrAccess;
+import static omero.rtypes.rlong;
 
 
 /**
@@ -80,7 +85,9 @@ public class ProjectWrapper extends GenericRepositoryObjectWrapper<ProjectData>
 
 
     /**
-     * Only keep images with different IDs in a collection.
+     * Only keep images with different IDs in a collection sorted by ID.
+     *
+     * @param images The images, sorted by ID.
      *
      * @return ImageWrapper list.
      */
@@ -260,15 +267,105 @@ public class ProjectWrapper extends GenericRepositoryObjectWrapper<ProjectData>
      * @throws ExecutionException A Facility can't be retrieved or instantiated.
      */
     public List<ImageWrapper> getImages(Client client) throws ServiceException, AccessException, ExecutionException {
-        Collection<DatasetWrapper> datasets = getDatasets();
-
-        List<ImageWrapper> images = new ArrayList<>();
-        for (DatasetWrapper dataset : datasets) {
-            images.addAll(dataset.getImages(client));
+        Collection<Long> datasetIds = data.getDatasets()
+                                          .stream()
+                                          .map(DataObject::getId)
+                                          .collect(Collectors.toList());
+
+        Collection<ImageData> images = new ArrayList<>(0);
+        if (!datasetIds.isEmpty()) {
+            try {
+                images = client.getBrowseFacility().getImagesForDatasets(client.getCtx(), datasetIds);
+            } catch (DSOutOfServiceException | DSAccessException e) {
+                handleServiceOrAccess(e, "Cannot get images from " + this);
+            }
         }
-        images.sort(Comparator.comparing(GenericObjectWrapper::getId));
+        return purge(wrap(images, ImageWrapper::new));
+    }
+
+
+    /**
+     * Counts the distinct images in the project, without retrieving them.
+     *
+     * @param client The client handling the connection.
+     *
+     * @return See above.
+     *
+     * @throws ServiceException Cannot connect to OMERO.
+     * @throws OMEROServerError Server error.
+     */
+    public long countImages(Client client) throws ServiceException, OMEROServerError {
+        return images().count(client);
+    }
+
+
+    /**
+     * Checks if the project contains at least one image, without retrieving it.
+     *
+     * @param client The client handling the connection.
+     *
+     * @return See above.
+     *
+     * @throws ServiceException Cannot connect to OMERO.
+     * @throws OMEROServerError Server error.
+     */
+    public boolean hasImages(Client client) throws ServiceException, OMEROServerError {
+        return images().exists(client);
+    }
+
+
+    /**
+     * Creates a query selecting the IDs of the images in the project.
+     *
+     * @return See above.
+     */
+    private QueryBuilder images() {
+        return new QueryBuilder("DatasetImageLink", "dl").select("dl.child.id")
+                                                         .distinct()
+                                                         .join("dl.parent.projectLinks", "pl")
+                                                         .where("pl.parent.id = :project")
+                                                         .bind("project", data.getId());
+    }
+
+
+    /**
+     * Counts the datasets in the project on the server, without retrieving them.
+     *
+     * @param client The client handling the connection.
+     *
+     * @return See above.
+     *
+     * @throws ServiceException Cannot connect to OMERO.
+     * @throws OMEROServerError Server error.
+     */
+    public long countDatasets(Client client) throws ServiceException, OMEROServerError {
+        return datasetLinks().count(client);
+    }
+
+
+    /**
+     * Checks if the project contains at least one dataset, without retrieving it.
+     *
+     * @param client The client handling the connection.
+     *
+     * @return See above.
+     *
+     * @throws ServiceException Cannot connect to OMERO.
+     * @throws OMEROServerError Server error.
+     */
+    public boolean hasDatasets(Client client) throws ServiceException, OMEROServerError {
+        return datasetLinks().exists(client);
+    }
 
-        return purge(images);
+
+    /**
+     * Creates a query selecting the links between the project and its datasets.
+     *
+     * @return See above.
+     */
+    private QueryBuilder datasetLinks() {
+        return new QueryBuilder("ProjectDatasetLink", "link").where("link.parent.id = :project")
+                                                             .bind("project", data.getId());
     }
 
 
@@ -286,20 +383,14 @@ public class ProjectWrapper extends GenericRepositoryObjectWrapper<ProjectData>
      */
     public List<ImageWrapper> getImages(Client client, String name)
     throws ServiceException, AccessException, ExecutionException {
-        Collection<DatasetWrapper> datasets = getDatasets();
-
-        List<ImageWrapper> images = new ArrayList<>();
-        for (DatasetWrapper dataset : datasets) {
-            images.addAll(dataset.getImages(client, name));
-        }
-        images.sort(Comparator.comparing(GenericObjectWrapper::getId));
-
-        return purge(images);
+        QueryBuilder query = imageQuery().where("i.name = :name").bind("name", name);
+        return findImages(client, query, "Cannot get images from " + this);
     }
 
 
     /**
      * Gets all images in the project with a certain motif in their name from OMERO.
+     * <p> The names are matched on the server. The search is case-sensitive and the motif is matched literally.
      *
      * @param client The client handling the connection.
      * @param motif  Motif searched in an image name.
@@ -312,13 +403,51 @@ public class ProjectWrapper extends GenericRepositoryObjectWrapper<ProjectData>
      */
     public List<ImageWrapper> getImagesLike(Client client, String motif)
     throws ServiceException, AccessException, ExecutionException {
-        List<ImageWrapper> images = new ArrayList<>();
-        for (DatasetWrapper dataset : getDatasets()) {
-            images.addAll(dataset.getImagesLike(client, motif));
-        }
-        images.sort(Comparator.comparing(GenericObjectWrapper::getId));
+        QueryBuilder query = imageQuery().where("i.name like :pattern escape '!'")
+                                         .bind("pattern", QueryBuilder.likePattern(motif));
+        return findImages(client, query, "Cannot get images from " + this);
+    }
+
 
-        return purge(images);
+    /**
+     * Creates a query selecting the IDs of the images in the project, ordered by ID.
+     * <p> The images are referred to as "i".
+     *
+     * @return See above.
+     */
+    private QueryBuilder imageQuery() {
+        return new QueryBuilder("Image", "i").select("i.id")
+                                             .distinct()
+                                             .join("i.datasetLinks", "dl")
+                                             .join("dl.parent.projectLinks", "pl")
+                                             .where("pl.parent.id = :project")
+                                             .bind("project", data.getId())
+                                             .orderBy("i.id");
+    }
+
+
+    /**
+     * Gets the images selected on the server by a query on their IDs.
+     *
+     * @param client  The client handling the connection.
+     * @param query   The query selecting the image IDs.
+     * @param message Short explanation of the problem, if the query fails.
+     *
+     * @return ImageWrapper list.
+     *
+     * @throws ServiceException   Cannot connect to OMERO.
+     * @throws AccessException    Cannot access data.
+     * @throws ExecutionException A Facility can't be retrieved or instantiated.
+     */
+    private static List<ImageWrapper> findImages(Client client, QueryBuilder query, String message)
+    throws ServiceException, AccessException, ExecutionException {
+        Long[] ids = new Long[0];
+        try {
+            ids = query.findIds(client);
+        } catch (OMEROServerError e) {
+            handleServerAsServiceOrAccess(e, message);
+        }
+        return client.getImages(ids);
     }
 
 
@@ -337,13 +466,7 @@ public class ProjectWrapper extends GenericRepositoryObjectWrapper<ProjectData>
      */
     public List<ImageWrapper> getImagesTagged(Client client, TagAnnotationWrapper tag)
     throws ServiceException, AccessException, OMEROServerError, ExecutionException {
-        List<ImageWrapper> images = new ArrayList<>();
-        for (DatasetWrapper dataset : getDatasets()) {
-            images.addAll(dataset.getImagesTagged(client, tag));
-        }
-        images.sort(Comparator.comparing(GenericObjectWrapper::getId));
-
-        return purge(images);
+        return getImagesTagged(client, tag.getId());
     }
 
 
@@ -362,13 +485,14 @@ public class ProjectWrapper extends GenericRepositoryObjectWrapper<ProjectData>
      */
     public List<ImageWrapper> getImagesTagged(Client client, Long tagId)
     throws ServiceException, AccessException, OMEROServerError, ExecutionException {
-        List<ImageWrapper> images = new ArrayList<>();
-        for (DatasetWrapper dataset : getDatasets()) {
-            images.addAll(dataset.getImagesTagged(client, tagId));
-        }
-        images.sort(Comparator.comparing(GenericObjectWrapper::getId));
-
-        return purge(images);
+        ParametersI params = new ParametersI();
+        params.addId(data.getId());
+        params.add("tag", rlong(tagId));
+        String query = "select distinct l.parent.id from ImageAnnotationLink l," +
+                       " DatasetImageLink dl, ProjectDatasetLink pl" +
+                       " where pl.parent.id = :id and pl.child.id = dl.parent.id and dl.child.id = l.parent.id" +
+                       " and l.child.id = :tag";
+        return client.getImages(client.findIds(query, params));
     }
 
 
@@ -386,13 +510,11 @@ public class ProjectWrapper extends GenericRepositoryObjectWrapper<ProjectData>
      */
     public List<ImageWrapper> getImagesKey(Client client, String key)
     throws ServiceException, AccessException, ExecutionException {
-        List<ImageWrapper> images = new ArrayList<>();
-        for (DatasetWrapper dataset : getDatasets()) {
-            images.addAll(dataset.getImagesKey(client, key));
-        }
-        images.sort(Comparator.comparing(GenericObjectWrapper::getId));
-
-        return purge(images);
+        String annotations = "select a.id from MapAnnotation a join a.mapValue mv where mv.name = :key";
+        QueryBuilder query = imageQuery().join("i.annotationLinks", "l")
+                                         .where("l.child.id in (" + annotations + ")")
+                                         .bind("key", key);
+        return findImages(client, query, "Cannot retrieve images with key " + key + " in " + this);
     }
 
 
@@ -411,13 +533,14 @@ public class ProjectWrapper extends GenericRepositoryObjectWrapper<ProjectData>
      */
     public List<ImageWrapper> getImagesPairKeyValue(Client client, String key, String value)
     throws ServiceException, AccessException, ExecutionException {
-        List<ImageWrapper> images = new ArrayList<>();
-        for (DatasetWrapper dataset : getDatasets()) {
-            images.addAll(dataset.getImagesPairKeyValue(client, key, value));
-        }
-        images.sort(Comparator.comparing(GenericObjectWrapper::getId));
-
-        return purge(images);
+        String annotations = "select a.id from MapAnnotation a join a.mapValue mv" +
+                             " where mv.name = :key and mv.value = :value";
+        QueryBuilder query = imageQuery().join("i.annotationLinks", "l")
+                                         .where("l.child.id in (" + annotations + ")")
+                                         .bind("key", key)
+                                         .bind("value", value);
+        String message = "Cannot retrieve images with pair " + key + "=" + value + " in " + this;
+        return findImages(client, query, message);
     }
 
 
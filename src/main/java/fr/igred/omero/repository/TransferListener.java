@@ -0,0 +1,36 @@
+/*
+ *  Copyright (C) 2020-2022 GReD
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 51 Franklin
+ * Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+
+package fr.igred.omero.repository;
+
+
+/**
+ * Listener notified of the progress of a file transfer with OMERO.
+ */
+@FunctionalInterface
+public interface TransferListener {
+
+    /**
+     * Called each time a chunk of data has been transferred.
+     *
+     * @param transferred    Number of bytes transferred so far.
+     * @param total          Total number of bytes to transfer, or -1 if unknown.
+     * @param bytesPerSecond Average throughput since the beginning of the transfer.
+     */
+    void transferred(long transferred, long total, double bytesPerSecond);
+
+}
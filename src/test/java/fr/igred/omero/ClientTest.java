@@ -22,14 +22,22 @@ import fr.igred.omero.repository.PlateWrapper;
 import fr.igred.omero.repository.ProjectWrapper;
 import fr.igred.omero.repository.ScreenWrapper;
 import fr.igred.omero.repository.WellWrapper;
+import omero.model.DatasetI;
+import omero.model.IObject;
+import omero.model.ProjectI;
 import org.junit.Test;
 
 import java.io.File;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
 
+import static omero.rtypes.rstring;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 
 
@@ -97,6 +105,50 @@ public class ClientTest extends UserTest {
     }
 
 
+    @Test
+    public void testSaveAndDeleteCollection() throws Exception {
+        int count = client.getProjects().size();
+
+        Collection<IObject> projects = new ArrayList<>(2);
+        for (int i = 0; i < 2; i++) {
+            ProjectI project = new ProjectI();
+            project.setName(rstring("Batch project " + i));
+            projects.add(project);
+        }
+        List<IObject> saved = client.save(projects);
+        assertEquals(2, saved.size());
+
+        Long[]               ids     = saved.stream().map(o -> o.getId().getValue()).toArray(Long[]::new);
+        List<ProjectWrapper> created = client.getProjects(ids);
+        assertEquals(count + 2, client.getProjects().size());
+        assertTrue(created.stream().allMatch(p -> p.getName().startsWith("Batch project")));
+
+        client.delete(created);
+        assertEquals(count, client.getProjects().size());
+        assertTrue(client.save(new ArrayList<>(0)).isEmpty());
+    }
+
+
+    @Test
+    public void testDeleteObjects() throws Exception {
+        Collection<IObject> datasets = new ArrayList<>(2);
+        for (int i = 0; i < 2; i++) {
+            DatasetI dataset = new DatasetI();
+            dataset.setName(rstring("Batch dataset " + i));
+            datasets.add(dataset);
+        }
+        List<IObject> saved = client.save(datasets);
+        List<Long>    ids   = saved.stream().map(o -> o.getId().getValue()).collect(Collectors.toList());
+
+        QueryBuilder query = new QueryBuilder("Dataset", "d").where("d.id in (:ids)").bind("ids", ids);
+        assertEquals(2, query.count(client));
+
+        client.deleteObjects(saved);
+        client.deleteObjects(new ArrayList<>(0));
+        assertFalse(query.exists(client));
+    }
+
+
     @Test
     public void testGetSingleDataset() throws Exception {
         assertEquals(DATASET1.name, client.getDataset(DATASET1.id).getName());
@@ -110,6 +162,12 @@ public class ClientTest extends UserTest {
     }
 
 
+    @Test
+    public void testStreamDatasets() throws Exception {
+        assertEquals(3, client.streamDatasets(2).count());
+    }
+
+
     @Test
     public void testGetDatasetByName() throws Exception {
         Collection<DatasetWrapper> datasets = client.getDatasets(DATASET1.name);
@@ -133,6 +191,15 @@ public class ClientTest extends UserTest {
     }
 
 
+    @Test
+    public void testStreamImages() throws Exception {
+        List<Long> ids = client.getImages().stream().map(ImageWrapper::getId).collect(Collectors.toList());
+
+        List<Long> streamed = client.streamImages(10).map(ImageWrapper::getId).collect(Collectors.toList());
+        assertEquals(ids, streamed);
+    }
+
+
     @Test
     public void testGetImage() throws Exception {
         ImageWrapper image = client.getImage(IMAGE1.id);
@@ -154,6 +221,21 @@ public class ClientTest extends UserTest {
     }
 
 
+    @Test
+    public void testGetImagesLikeIgnoringCase() throws Exception {
+        List<ImageWrapper> images = client.getImagesLike("IMAGE1", false, 0, -1);
+        assertEquals(3, images.size());
+    }
+
+
+    @Test
+    public void testGetImageNamesLike() throws Exception {
+        Map<Long, String> names = client.getImageNamesLike("image1", true, 0, 2);
+        assertEquals(2, names.size());
+        assertTrue(names.values().stream().allMatch(name -> name.contains("image1")));
+    }
+
+
     @Test
     public void testGetImagesTagged() throws Exception {
         List<ImageWrapper> images = client.getImagesTagged(TAG1.id);
@@ -175,6 +257,14 @@ public class ClientTest extends UserTest {
     }
 
 
+    @Test
+    public void testGetImagesKeyPaged() throws Exception {
+        List<ImageWrapper> images = client.getImagesKey("testKey1", 1, 2);
+        assertEquals(2, images.size());
+        assertEquals(2L, images.get(0).getId());
+    }
+
+
     @Test
     public void testGetImagesFromNames() throws Exception {
         List<ImageWrapper> images = client.getImages(PROJECT1.name, DATASET1.name, IMAGE1.name);
@@ -182,6 +272,85 @@ public class ClientTest extends UserTest {
     }
 
 
+    @Test
+    public void testQueryBuilder() throws Exception {
+        QueryBuilder query = new QueryBuilder("Image", "i").select("i.id")
+                                                           .where("i.name = :name")
+                                                           .bind("name", IMAGE1.name)
+                                                           .orderBy("i.id")
+                                                           .page(0, 1);
+        assertEquals("select i.id from Image i where (i.name = :name) order by i.id", query.build());
+
+        Long[] ids = query.findIds(client);
+        assertEquals(1, ids.length);
+        assertEquals(IMAGE1.id, ids[0].longValue());
+    }
+
+
+    @Test
+    public void testGetProjections() throws Exception {
+        List<ProjectedObject> datasets = client.getProjections(DatasetWrapper.class, "name", "description");
+        assertEquals(3, datasets.size());
+        assertEquals(DATASET1.id, datasets.get(0).getId());
+        assertEquals(DATASET1.name, datasets.get(0).getString("name"));
+    }
+
+
+    @Test
+    public void testCountAndExists() throws Exception {
+        final int nWells = 17;
+        assertEquals(nWells, client.count(WellWrapper.class));
+        assertTrue(client.exists(ImageWrapper.class, IMAGE1.id));
+        assertFalse(client.exists(ImageWrapper.class, -1L));
+    }
+
+
+    @Test
+    public void testMetadataCache() throws Exception {
+        client.enableCache(1, TimeUnit.MINUTES, 100);
+        try {
+            DatasetWrapper dataset = client.getDataset(DATASET2.id);
+            assertEquals(1, client.getCache().size());
+
+            String name = dataset.getName();
+            dataset.setName("Cached");
+            dataset.saveAndUpdate(client);
+            assertEquals(0, client.getCache().size());
+            assertEquals("Cached", client.getDataset(DATASET2.id).getName());
+
+            dataset.setName(name);
+            dataset.saveAndUpdate(client);
+            assertEquals(name, client.getDataset(DATASET2.id).getName());
+        } finally {
+            client.setCache(null);
+        }
+    }
+
+
+    @Test
+    public void testMetadataCacheReturnsCopies() throws Exception {
+        client.enableCache(1, TimeUnit.MINUTES, 100);
+        try {
+            DatasetWrapper dataset = client.getDataset(DATASET2.id);
+            String         name    = dataset.getName();
+            dataset.setName("Not saved");
+            assertEquals(name, client.getDataset(DATASET2.id).getName());
+            assertTrue(client.getDatasets(DATASET2.id).stream().noneMatch(d -> "Not saved".equals(d.getName())));
+        } finally {
+            client.setCache(null);
+        }
+    }
+
+
+    @Test
+    public void testSearchDatasetsByName() throws Exception {
+        SearchOptions options = new SearchOptions().inFields(SearchOptions.Field.NAME).batchSize(1);
+
+        List<DatasetWrapper> datasets = client.search(DatasetWrapper.class, DATASET1.name, options, 0, 10);
+        assertTrue(datasets.stream().allMatch(dataset -> dataset.getName().contains(DATASET1.name)));
+    }
+
+
     @Test
     public void testGetImagesCond() throws Exception {
         String key = "testKey2";
@@ -214,6 +383,47 @@ public class ClientTest extends UserTest {
     }
 
 
+    @Test
+    public void testWithGroup() throws Exception {
+        final long newGroupId = 4L;
+
+        Client view = client.withGroup(newGroupId);
+        assertEquals(newGroupId, view.getCurrentGroupId());
+        assertEquals(GROUP1.id, client.getCurrentGroupId());
+        assertEquals(client.getSessionId(), view.getSessionId());
+        assertTrue(view.getProjects().stream().noneMatch(p -> p.getId() == PROJECT1.id));
+        assertEquals(PROJECT1.name, client.getProject(PROJECT1.id).getName());
+    }
+
+
+    @Test
+    public void testWithGroupInvalidatesCache() throws Exception {
+        client.enableCache(1, TimeUnit.MINUTES, 100);
+        try {
+            Client         view    = client.withGroup(GROUP1.id);
+            DatasetWrapper dataset = client.getDataset(DATASET2.id);
+            assertEquals(1, client.getCache().size());
+
+            String name = dataset.getName();
+            dataset.setName("Saved through view");
+            dataset.saveAndUpdate(view);
+            assertEquals(0, client.getCache().size());
+            assertEquals("Saved through view", client.getDataset(DATASET2.id).getName());
+
+            dataset.setName(name);
+            dataset.saveAndUpdate(client);
+        } finally {
+            client.setCache(null);
+        }
+    }
+
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void testWithGroupSwitchGroup() {
+        client.withGroup(GROUP1.id).switchGroup(4L);
+    }
+
+
     @Test
     public void testSwitchGroupAndImport() throws Exception {
         final long newGroupId = 4L;
@@ -278,6 +488,13 @@ public class ClientTest extends UserTest {
     }
 
 
+    @Test
+    public void testStreamWells() throws Exception {
+        final int nWells = 17;
+        assertEquals(nWells, client.streamWells(5).count());
+    }
+
+
     @Test
     public void testGetSingleWell() throws Exception {
         String plateName = client.getWell(1L).getPlate().getName();
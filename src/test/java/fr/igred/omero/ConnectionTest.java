@@ -18,8 +18,12 @@ package fr.igred.omero;
 
 import org.junit.Test;
 
+import java.util.concurrent.TimeUnit;
+
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 
 
 public class ConnectionTest extends BasicTest {
@@ -76,4 +80,41 @@ public class ConnectionTest extends BasicTest {
         assertEquals(GROUP1.id, groupId);
     }
 
+    @Test
+    public void testClientPool() throws Exception {
+        try (ClientPool pool = ClientPool.connect(HOST, PORT, USER1.name, "password".toCharArray(), GROUP1.id, 2)) {
+            assertEquals(2, pool.getIdleCount());
+            try (ClientPool.Lease lease1 = pool.borrow();
+                 ClientPool.Lease lease2 = pool.borrow()) {
+                assertEquals(USER1.id, lease1.getClient().getId());
+                assertEquals(USER1.id, lease2.getClient().getId());
+                assertNull(pool.borrow(10, TimeUnit.MILLISECONDS));
+                lease1.getClient().switchGroup(4L);
+            }
+            assertEquals(2, pool.getIdleCount());
+            try (ClientPool.Lease lease = pool.borrow()) {
+                assertEquals(GROUP1.id, lease.getClient().getCurrentGroupId());
+            }
+        }
+    }
+
+
+    @Test
+    public void testClientPoolJoinSession() throws Exception {
+        Client client = new Client();
+        client.connect(HOST, PORT, USER1.name, "password".toCharArray());
+
+        ClientPool pool = ClientPool.join(HOST, PORT, client.getSessionId(), 2);
+        try (ClientPool.Lease lease = pool.borrow()) {
+            lease.getClient().disconnect();
+        }
+        try (ClientPool.Lease lease = pool.borrow(); ClientPool.Lease lease2 = pool.borrow()) {
+            assertTrue(lease.getClient().isConnected());
+            assertTrue(lease2.getClient().isConnected());
+        }
+        pool.close();
+        assertTrue(pool.isClosed());
+        client.disconnect();
+    }
+
 }
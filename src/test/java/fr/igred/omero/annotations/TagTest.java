@@ -26,6 +26,7 @@ import fr.igred.omero.repository.WellWrapper;
 import org.junit.Test;
 
 import java.util.List;
+import java.util.stream.Collectors;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
@@ -59,6 +60,65 @@ public class TagTest extends UserTest {
     }
 
 
+    @Test
+    public void testGetTagsByName() throws Exception {
+        List<TagAnnotationWrapper> tags = client.getTags(TAG1.name);
+        assertEquals(1, tags.size());
+        assertEquals(TAG1.id, tags.get(0).getId());
+    }
+
+
+    @Test
+    public void testTagIndex() throws Exception {
+        TagIndex index = new TagIndex(client);
+        assertEquals(3, index.size());
+        assertEquals(TAG1.id, index.get(TAG1.name).get(0).getId());
+
+        TagAnnotationWrapper tag = new TagAnnotationWrapper(client, "Indexed tag", "tag added to the index");
+        index.refresh();
+        assertEquals(4, index.size());
+        assertEquals(tag.getId(), index.get("Indexed tag").get(0).getId());
+
+        tag.setName("Renamed tag");
+        tag.saveAndUpdate(client);
+        index.refresh();
+        assertTrue(index.get("Indexed tag").isEmpty());
+        assertEquals(tag.getId(), index.get("Renamed tag").get(0).getId());
+
+        client.delete(tag);
+        index.rebuild();
+        assertEquals(3, index.size());
+    }
+
+
+    @Test
+    public void testTagQuery() throws Exception {
+        DatasetWrapper dataset = client.getDataset(DATASET1.id);
+
+        TagQuery tagged = TagQuery.tag(TAG1.id);
+        TagQuery none   = tagged.and(TagQuery.tag(TAG1.id).not());
+        TagQuery any    = TagQuery.anyOf(TAG1.id, TAG2.id);
+
+        assertEquals(3, tagged.getImages(client, 0, -1).size());
+        assertEquals(1, tagged.getImages(client, 1, 1).size());
+        assertEquals(2, tagged.getImages(client, dataset, 0, -1).size());
+        assertEquals(0, none.getImages(client, 0, -1).size());
+        assertTrue(any.getImages(client, 0, -1).size() >= 3);
+    }
+
+
+    @Test
+    public void testTagQueryAnyOfInDataset() throws Exception {
+        DatasetWrapper dataset = client.getDataset(DATASET1.id);
+
+        List<Long> ids = dataset.getImages(client).stream().map(ImageWrapper::getId).collect(Collectors.toList());
+
+        List<ImageWrapper> images = TagQuery.anyOf(TAG1.id, TAG2.id).getImages(client, dataset, 0, -1);
+        assertTrue(images.size() >= 2);
+        assertTrue(images.stream().map(ImageWrapper::getId).allMatch(ids::contains));
+    }
+
+
     @Test
     public void testGetProjects() throws Exception {
         TagAnnotationWrapper tag      = client.getTag(TAG1.id);
@@ -88,6 +148,14 @@ public class TagTest extends UserTest {
     }
 
 
+    @Test
+    public void testCountImages() throws Exception {
+        TagAnnotationWrapper tag = client.getTag(TAG1.id);
+        assertEquals(3, tag.countImages(client));
+        assertTrue(tag.hasImages(client));
+    }
+
+
     @Test
     public void testGetScreens() throws Exception {
         TagAnnotationWrapper tag     = client.getTag(TAG1.id);
@@ -115,6 +183,13 @@ public class TagTest extends UserTest {
     }
 
 
+    @Test
+    public void testGetParents() throws Exception {
+        TagAnnotationWrapper tag = client.getTag(TAG1.id);
+        assertEquals(8, tag.getParents(client).size());
+    }
+
+
     @Test
     public void testSetName() throws Exception {
         TagAnnotationWrapper tag = client.getTag(TAG1.id);
@@ -16,22 +16,31 @@
 package fr.igred.omero.repository;
 
 
+import fr.igred.omero.QueryBuilder;
 import fr.igred.omero.UserTest;
+import fr.igred.omero.annotations.FileAnnotationWrapper;
 import fr.igred.omero.annotations.TagAnnotationWrapper;
 import org.junit.Test;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
 import java.io.PrintStream;
 import java.nio.charset.StandardCharsets;
 import java.security.SecureRandom;
 import java.util.List;
 import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicLong;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotEquals;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 
 public class DatasetTest extends UserTest {
@@ -266,6 +275,14 @@ public class DatasetTest extends UserTest {
     }
 
 
+    @Test
+    public void testCountImagesInDataset() throws Exception {
+        DatasetWrapper dataset = client.getDataset(DATASET1.id);
+        assertEquals(3, dataset.countImages(client));
+        assertTrue(dataset.hasImages(client));
+    }
+
+
     @Test
     public void testGetImagesByNameInDataset() throws Exception {
         DatasetWrapper dataset = client.getDataset(DATASET1.id);
@@ -286,6 +303,15 @@ public class DatasetTest extends UserTest {
     }
 
 
+    @Test
+    public void testGetImagesLikeInDatasetIsLiteral() throws Exception {
+        DatasetWrapper dataset = client.getDataset(DATASET1.id);
+
+        assertTrue(dataset.getImagesLike(client, ".*").isEmpty());
+        assertTrue(dataset.getImagesLike(client, "%fake").isEmpty());
+    }
+
+
     @Test
     public void testGetImagesTaggedInDataset() throws Exception {
         DatasetWrapper dataset = client.getDataset(DATASET1.id);
@@ -361,6 +387,75 @@ public class DatasetTest extends UserTest {
     }
 
 
+    @Test
+    public void testAddFileInChunksDataset() throws Exception {
+        DatasetWrapper dataset = client.getDataset(DATASET1.id);
+
+        final byte[] array = new byte[3 * 65536 + 20];
+        new SecureRandom().nextBytes(array);
+
+        AtomicLong transferred = new AtomicLong();
+        AtomicLong calls       = new AtomicLong();
+        TransferListener listener = (bytes, total, rate) -> {
+            transferred.set(bytes);
+            calls.incrementAndGet();
+        };
+
+        long id = dataset.addFile(client, new ByteArrayInputStream(array), "chunks.bin", null, 65536, listener);
+
+        FileAnnotationWrapper uploaded = dataset.getFileAnnotations(client)
+                                                .stream()
+                                                .filter(f -> f.getId() == id)
+                                                .findFirst()
+                                                .orElseThrow(NoSuchElementException::new);
+
+        ByteArrayOutputStream content = new ByteArrayOutputStream();
+        try (InputStream stream = uploaded.getInputStream(client)) {
+            byte[] buffer = new byte[8192];
+            int    n;
+            while ((n = stream.read(buffer)) > 0) {
+                content.write(buffer, 0, n);
+            }
+        }
+        client.deleteFile(id);
+
+        assertEquals(array.length, transferred.get());
+        assertEquals(4, calls.get());
+        assertEquals("chunks.bin", uploaded.getFileName());
+        assertArrayEquals(array, content.toByteArray());
+    }
+
+
+    @Test
+    public void testAddFileInChunksFailureDeletesFile() throws Exception {
+        DatasetWrapper dataset = client.getDataset(DATASET1.id);
+
+        InputStream failing = new InputStream() {
+            private int count = 0;
+
+
+            @Override
+            public int read() throws IOException {
+                if (count++ >= 65536) {
+                    throw new IOException("Broken stream");
+                }
+                return 0;
+            }
+        };
+
+        String name = "failed-" + System.nanoTime() + ".bin";
+        try {
+            dataset.addFile(client, failing, name, null, 65536, null);
+            fail("Upload should have failed");
+        } catch (IOException e) {
+            assertEquals("Broken stream", e.getCause().getMessage());
+        }
+
+        long count = new QueryBuilder("OriginalFile", "f").where("f.name = :name").bind("name", name).count(client);
+        assertEquals(0, count);
+    }
+
+
     @Test
     public void testSetName() throws Exception {
         DatasetWrapper dataset = client.getDataset(DATASET1.id);
@@ -16,14 +16,17 @@
 package fr.igred.omero.repository;
 
 
+import fr.igred.omero.QueryBuilder;
 import fr.igred.omero.UserTest;
 import fr.igred.omero.annotations.FileAnnotationWrapper;
+import fr.igred.omero.annotations.FileCache;
 import fr.igred.omero.annotations.MapAnnotationWrapper;
 import fr.igred.omero.annotations.TableWrapper;
 import fr.igred.omero.annotations.TagAnnotationWrapper;
 import fr.igred.omero.roi.EllipseWrapper;
 import fr.igred.omero.roi.ROIWrapper;
 import fr.igred.omero.roi.RectangleWrapper;
+import ij.IJ;
 import ij.ImagePlus;
 import ij.plugin.Duplicator;
 import ij.plugin.ImageCalculator;
@@ -34,21 +37,30 @@ import omero.model.NamedValue;
 import org.junit.Test;
 
 import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileOutputStream;
+import java.io.InputStream;
 import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.SeekableByteChannel;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
 import java.security.SecureRandom;
 import java.time.LocalDate;
 import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotEquals;
@@ -98,6 +110,292 @@ public class ImageTest extends UserTest {
     }
 
 
+    @Test
+    public void testImportImagesConcurrently() throws Exception {
+        String filename1 = "8bit-unsigned&pixelType=uint8&sizeZ=2&sizeC=3&sizeT=2&sizeX=256&sizeY=256.fake";
+        String filename2 = "8bit-unsigned&pixelType=uint8&sizeZ=3&sizeC=3&sizeT=2&sizeX=256&sizeY=256.fake";
+        String filename3 = "8bit-unsigned&pixelType=uint8&sizeZ=4&sizeC=3&sizeT=2&sizeX=256&sizeY=256.fake";
+
+        String[] paths = new String[3];
+        int      i     = 0;
+        for (String filename : Arrays.asList(filename1, filename2, filename3)) {
+            File f = new File("." + File.separator + filename);
+            if (!f.createNewFile())
+                System.err.println("\"" + f.getCanonicalPath() + "\" could not be created.");
+            paths[i++] = f.getAbsolutePath();
+        }
+
+        DatasetWrapper dataset = client.getDataset(DATASET2.id);
+
+        Map<String, List<Long>> reported = new ConcurrentHashMap<>(3);
+        Map<String, List<Long>> imported = dataset.importImages(client, 2, reported::put, paths);
+
+        for (String path : paths) {
+            if (!new File(path).delete())
+                System.err.println("\"" + path + "\" could not be deleted.");
+        }
+
+        List<ImageWrapper> images = dataset.getImages(client);
+        for (ImageWrapper image : images) {
+            client.delete(image);
+        }
+
+        assertEquals(3, imported.size());
+        assertEquals(imported, reported);
+        for (List<Long> ids : imported.values()) {
+            assertEquals(1, ids.size());
+        }
+        assertEquals(3, images.size());
+    }
+
+
+    @Test
+    public void testImportImageWithMetrics() throws Exception {
+        String filename = "8bit-unsigned&pixelType=uint8&sizeZ=2&sizeC=2&sizeT=2&sizeX=128&sizeY=128.fake";
+
+        File f = new File("." + File.separator + filename);
+        if (!f.createNewFile())
+            System.err.println("\"" + f.getCanonicalPath() + "\" could not be created.");
+
+        DatasetWrapper dataset = client.getDataset(DATASET2.id);
+
+        List<ImportMetrics.ContainerReport> finished = new ArrayList<>(1);
+        ImportMetrics metrics = new ImportMetrics(finished::add);
+
+        List<Long> ids = dataset.importImage(client, f.getAbsolutePath(), metrics);
+
+        if (!f.delete())
+            System.err.println("\"" + f.getCanonicalPath() + "\" could not be deleted.");
+
+        for (Long id : ids) {
+            client.delete(client.getImage(id));
+        }
+
+        assertEquals(1, ids.size());
+        assertEquals(1, finished.size());
+        assertEquals(metrics.getReports().get(0), finished.get(0));
+        assertTrue(finished.get(0).isSuccess());
+        assertEquals(0, metrics.getFailures());
+        assertEquals(1, metrics.getUploadedFiles());
+        assertTrue(finished.get(0).getStageTimes().containsKey(ImportMetrics.Stage.SCAN));
+        assertTrue(finished.get(0).getStageTimes().containsKey(ImportMetrics.Stage.UPLOAD));
+        assertTrue(finished.get(0).getStageTimes().containsKey(ImportMetrics.Stage.FINALIZATION));
+    }
+
+
+    @Test
+    public void testImportNewImages() throws Exception {
+        String filename = "8bit-unsigned&pixelType=uint8&sizeZ=2&sizeC=2&sizeT=3&sizeX=128&sizeY=128.fake";
+
+        File f = new File("." + File.separator + filename);
+        if (!f.createNewFile())
+            System.err.println("\"" + f.getCanonicalPath() + "\" could not be created.");
+
+        DatasetWrapper dataset = client.getDataset(DATASET2.id);
+
+        Map<String, List<Long>> first  = dataset.importNewImages(client, 2, false, f.getAbsolutePath());
+        Map<String, List<Long>> second = dataset.importNewImages(client, 2, false, f.getAbsolutePath());
+
+        if (!f.delete())
+            System.err.println("\"" + f.getCanonicalPath() + "\" could not be deleted.");
+
+        List<ImageWrapper> images = dataset.getImages(client);
+        for (ImageWrapper image : images) {
+            client.delete(image);
+        }
+
+        assertEquals(1, first.get(f.getAbsolutePath()).size());
+        assertEquals(first, second);
+        assertEquals(1, images.size());
+    }
+
+
+    @Test
+    public void testImportNewImagesWithSameContent() throws Exception {
+        String filename1 = "8bit-unsigned&pixelType=uint8&sizeZ=2&sizeC=2&sizeT=3&sizeX=128&sizeY=128.fake";
+        String filename2 = "8bit-unsigned&pixelType=uint8&sizeZ=1&sizeC=1&sizeT=1&sizeX=64&sizeY=64.fake";
+
+        File f1 = new File("." + File.separator + filename1);
+        File f2 = new File("." + File.separator + filename2);
+        if (!f1.createNewFile())
+            System.err.println("\"" + f1.getCanonicalPath() + "\" could not be created.");
+        if (!f2.createNewFile())
+            System.err.println("\"" + f2.getCanonicalPath() + "\" could not be created.");
+
+        DatasetWrapper dataset = client.getDataset(DATASET2.id);
+
+        Map<String, List<Long>> first  = dataset.importNewImages(client, 2, false, f1.getAbsolutePath());
+        Map<String, List<Long>> second = dataset.importNewImages(client, 2, false, f2.getAbsolutePath());
+
+        if (!f1.delete())
+            System.err.println("\"" + f1.getCanonicalPath() + "\" could not be deleted.");
+        if (!f2.delete())
+            System.err.println("\"" + f2.getCanonicalPath() + "\" could not be deleted.");
+
+        List<ImageWrapper> images = dataset.getImages(client);
+        for (ImageWrapper image : images) {
+            client.delete(image);
+        }
+
+        assertEquals(1, first.get(f1.getAbsolutePath()).size());
+        assertEquals(1, second.get(f2.getAbsolutePath()).size());
+        assertNotEquals(first.get(f1.getAbsolutePath()), second.get(f2.getAbsolutePath()));
+        assertEquals(2, images.size());
+    }
+
+
+    @Test
+    public void testImportImagePlus() throws Exception {
+        ImagePlus imp = IJ.createImage("ImagePlus upload", "16-bit ramp", 64, 48, 2, 3, 1);
+        imp.getCalibration().setUnit("micron");
+        imp.getCalibration().pixelWidth = 0.5;
+        imp.getCalibration().pixelHeight = 0.5;
+
+        DatasetWrapper dataset = client.getDataset(DATASET2.id);
+
+        long         id    = dataset.importImage(client, imp);
+        ImageWrapper image = client.getImage(id);
+        ImagePlus    copy  = image.toImagePlus(client);
+
+        client.delete(image);
+
+        ImageCalculator calculator = new ImageCalculator();
+        ImagePlus       difference = calculator.run("difference create stack", imp, copy);
+        ImageStatistics stats      = difference.getStatistics();
+
+        assertEquals("ImagePlus upload", image.getName());
+        assertEquals(64, copy.getWidth());
+        assertEquals(48, copy.getHeight());
+        assertEquals(2, copy.getNChannels());
+        assertEquals(3, copy.getNSlices());
+        assertEquals(0.5, copy.getCalibration().pixelWidth, Double.MIN_VALUE);
+        assertEquals(0, (int) stats.max);
+    }
+
+
+    @Test
+    public void testImportImageFailedPlaneDeletesImage() throws Exception {
+        DatasetWrapper dataset = client.getDataset(DATASET2.id);
+
+        String name = "Failed upload " + System.nanoTime();
+        PlaneSupplier planes = (z, c, t) -> {
+            if (c > 0) {
+                throw new IllegalStateException("Missing plane");
+            }
+            return new byte[64 * 48];
+        };
+
+        try {
+            dataset.importImage(client, name, "uint8", 64, 48, 1, 2, 1, planes);
+            fail("Import should have failed");
+        } catch (IllegalStateException e) {
+            assertEquals("Missing plane", e.getMessage());
+        }
+
+        long count = new QueryBuilder("Image", "i").where("i.name = :name").bind("name", name).count(client);
+        assertEquals(0, count);
+    }
+
+
+    @Test
+    public void testImportJournalIgnoresTornLines() throws Exception {
+        File journalFile = new File("." + File.separator + "torn.journal");
+        Files.deleteIfExists(journalFile.toPath());
+
+        try (ImportJournal journal = new ImportJournal(journalFile.getPath())) {
+            journal.imported("/a", Arrays.asList(12L, 13L));
+        }
+        String torn = "IMPORTED\t/b\t12";
+        Files.write(journalFile.toPath(), torn.getBytes(StandardCharsets.UTF_8), StandardOpenOption.APPEND);
+
+        try (ImportJournal journal = new ImportJournal(journalFile.getPath())) {
+            assertEquals(Arrays.asList(12L, 13L), journal.getImageIds("/a"));
+            assertNull(journal.getState("/b"));
+            journal.queued("/c");
+        }
+
+        ImportJournal.State state;
+        try (ImportJournal journal = new ImportJournal(journalFile.getPath())) {
+            state = journal.getState("/c");
+        }
+        Files.deleteIfExists(journalFile.toPath());
+        assertEquals(ImportJournal.State.QUEUED, state);
+    }
+
+
+    @Test
+    public void testImportJournalNormalizesPaths() throws Exception {
+        File journalFile = new File("." + File.separator + "paths.journal");
+        Files.deleteIfExists(journalFile.toPath());
+
+        String relative = "." + File.separator + "a.fake";
+        String absolute = new File("a.fake").getAbsolutePath();
+
+        try (ImportJournal journal = new ImportJournal(journalFile.getPath())) {
+            journal.imported(relative, Arrays.asList(12L, 13L));
+        }
+
+        boolean    imported;
+        List<Long> ids;
+        try (ImportJournal journal = new ImportJournal(journalFile.getPath())) {
+            imported = journal.isImported(absolute);
+            ids = journal.getImageIds(absolute);
+        }
+        Files.deleteIfExists(journalFile.toPath());
+        assertTrue(imported);
+        assertEquals(Arrays.asList(12L, 13L), ids);
+    }
+
+
+    @Test
+    public void testImportImagesWithJournal() throws Exception {
+        String filename1 = "8bit-unsigned&pixelType=uint8&sizeZ=2&sizeC=1&sizeT=2&sizeX=128&sizeY=128.fake";
+        String filename2 = "8bit-unsigned&pixelType=uint8&sizeZ=3&sizeC=1&sizeT=2&sizeX=128&sizeY=128.fake";
+
+        File f1 = new File("." + File.separator + filename1);
+        if (!f1.createNewFile())
+            System.err.println("\"" + f1.getCanonicalPath() + "\" could not be created.");
+
+        File f2 = new File("." + File.separator + filename2);
+        if (!f2.createNewFile())
+            System.err.println("\"" + f2.getCanonicalPath() + "\" could not be created.");
+
+        File   journalFile = new File("." + File.separator + "import.journal");
+        String path1       = f1.getAbsolutePath();
+        String path2       = f2.getAbsolutePath();
+
+        DatasetWrapper dataset = client.getDataset(DATASET2.id);
+
+        Map<String, List<Long>> first;
+        try (ImportJournal journal = new ImportJournal(journalFile.getPath())) {
+            first = dataset.importImages(client, journal, 2, path1);
+        }
+
+        Map<String, List<Long>> second;
+        boolean                 resumed;
+        try (ImportJournal journal = new ImportJournal(journalFile.getPath())) {
+            resumed = journal.isImported(path1);
+            second = dataset.importImages(client, journal, 2, path1, path2);
+        }
+
+        if (!f1.delete())
+            System.err.println("\"" + f1.getCanonicalPath() + "\" could not be deleted.");
+        if (!f2.delete())
+            System.err.println("\"" + f2.getCanonicalPath() + "\" could not be deleted.");
+        Files.deleteIfExists(journalFile.toPath());
+
+        List<ImageWrapper> images = dataset.getImages(client);
+        for (ImageWrapper image : images) {
+            client.delete(image);
+        }
+
+        assertTrue(resumed);
+        assertEquals(first.get(path1), second.get(path1));
+        assertEquals(1, second.get(path2).size());
+        assertEquals(2, images.size());
+    }
+
+
     @Test
     public void testPairKeyValue() throws Exception {
         String filename = "8bit-unsigned&pixelType=uint8&sizeZ=3&sizeC=5&sizeT=7&sizeX=512&sizeY=512.fake";
@@ -626,6 +924,87 @@ public class ImageTest extends UserTest {
     }
 
 
+    @Test
+    public void testGetFileFromCache() throws Exception {
+        ImageWrapper image = client.getImage(IMAGE1.id);
+
+        final byte[] array = new byte[262144 + 20];
+        new SecureRandom().nextBytes(array);
+
+        long id = image.addFile(client, new ByteArrayInputStream(array), "cached.bin", null, 65536, null);
+
+        FileAnnotationWrapper annotation = image.getFileAnnotations(client)
+                                                .stream()
+                                                .filter(f -> f.getId() == id)
+                                                .findFirst()
+                                                .orElseThrow(NoSuchElementException::new);
+        String hash = annotation.getFileHash();
+
+        FileCache cache = new FileCache("." + File.separator + "cache", 10L * array.length);
+        File      file1 = annotation.getFile(client, "." + File.separator + "cached1.bin", cache);
+        client.deleteFile(id);
+        File file2 = annotation.getFile(client, "." + File.separator + "cached2.bin", cache);
+
+        assertNotNull(hash);
+        assertEquals(array.length, cache.getSize());
+        assertArrayEquals(array, Files.readAllBytes(file1.toPath()));
+        assertArrayEquals(array, Files.readAllBytes(file2.toPath()));
+
+        Files.deleteIfExists(file1.toPath());
+        Files.deleteIfExists(file2.toPath());
+        cache.clear();
+        Files.deleteIfExists(cache.getDirectory());
+    }
+
+
+    @Test
+    public void testReadFileAnnotationAsStream() throws Exception {
+        ImageWrapper image = client.getImage(IMAGE1.id);
+
+        File file = new File("." + File.separator + "test_stream.txt");
+        if (!file.createNewFile())
+            System.err.println("\"" + file.getCanonicalPath() + "\" could not be created.");
+
+        final byte[] array = new byte[2 * 262144 + 20];
+        new SecureRandom().nextBytes(array);
+        Files.write(file.toPath(), array);
+
+        long id = image.addFile(client, file);
+
+        FileAnnotationWrapper annotation = image.getFileAnnotations(client)
+                                                .stream()
+                                                .filter(f -> f.getId() == id)
+                                                .findFirst()
+                                                .orElseThrow(AssertionError::new);
+
+        byte[] read = new byte[array.length];
+        try (InputStream stream = annotation.getInputStream(client, 1000)) {
+            int offset = 0;
+            int n      = 0;
+            while (n >= 0 && offset < read.length) {
+                n = stream.read(read, offset, read.length - offset);
+                offset += Math.max(n, 0);
+            }
+            assertEquals(array.length, offset);
+            assertEquals(-1, stream.read());
+        }
+
+        ByteBuffer tail = ByteBuffer.allocate(20);
+        try (SeekableByteChannel channel = annotation.getChannel(client)) {
+            assertEquals(array.length, channel.size());
+            channel.position(array.length - 20L);
+            assertEquals(20, channel.read(tail));
+        }
+
+        client.deleteFile(id);
+        if (!file.delete())
+            System.err.println("\"" + file.getCanonicalPath() + "\" could not be deleted.");
+
+        assertArrayEquals(array, read);
+        assertArrayEquals(Arrays.copyOfRange(array, array.length - 20, array.length), tail.array());
+    }
+
+
     @Test
     public void testGetCreated() throws Exception {
         LocalDate created = client.getImage(IMAGE1.id).getCreated().toLocalDateTime().toLocalDate();
@@ -743,6 +1122,67 @@ public class ImageTest extends UserTest {
     }
 
 
+    @Test
+    public void testDownloadSeveralImages() throws Exception {
+        List<ImageWrapper> images = client.getDataset(DATASET1.id).getImages(client);
+
+        Map<Long, List<File>> files = ImageWrapper.download(client, images, ".", 2);
+        assertEquals(images.size(), files.size());
+
+        Collection<File> unique = new ArrayList<>(0);
+        files.values().forEach(list -> list.stream().filter(f -> !unique.contains(f)).forEach(unique::add));
+        for (File file : unique) {
+            assertTrue(file.exists());
+            Files.deleteIfExists(file.toPath());
+        }
+        for (File file : unique) {
+            if (!file.getParentFile().equals(new File("."))) {
+                Files.deleteIfExists(file.getParentFile().toPath());
+            }
+        }
+        assertEquals(2, files.get(IMAGE1.id).size());
+    }
+
+
+    @Test
+    public void testDownloadSeveralImagesWithSameFileName() throws Exception {
+        String filename = "8bit-unsigned&pixelType=uint8&sizeZ=1&sizeC=1&sizeT=1&sizeX=32&sizeY=32.fake";
+
+        File f = new File("." + File.separator + filename);
+        if (!f.createNewFile())
+            System.err.println("\"" + f.getCanonicalPath() + "\" could not be created.");
+
+        DatasetWrapper dataset = client.getDataset(DATASET2.id);
+
+        List<Long> ids = new ArrayList<>(2);
+        ids.addAll(dataset.importImage(client, f.getAbsolutePath()));
+        ids.addAll(dataset.importImage(client, f.getAbsolutePath()));
+
+        if (!f.delete())
+            System.err.println("\"" + f.getCanonicalPath() + "\" could not be deleted.");
+
+        List<ImageWrapper> images = client.getImages(ids.toArray(new Long[0]));
+
+        File                  folder = new File("." + File.separator + "download");
+        Map<Long, List<File>> files  = ImageWrapper.download(client, images, folder.getPath(), 2);
+
+        client.delete(images);
+
+        File    first  = files.get(ids.get(0)).get(0);
+        File    second = files.get(ids.get(1)).get(0);
+        boolean exist  = first.exists() && second.exists();
+        Files.deleteIfExists(first.toPath());
+        Files.deleteIfExists(second.toPath());
+        Files.deleteIfExists(second.getParentFile().toPath());
+        Files.deleteIfExists(folder.toPath());
+
+        assertEquals(filename, first.getName());
+        assertEquals(filename, second.getName());
+        assertNotEquals(first, second);
+        assertTrue(exist);
+    }
+
+
     @Test
     public void testImportAndRenameImages() throws Exception {
         String filename = "8bit-unsigned&pixelType=uint8&sizeZ=5&sizeC=5&sizeT=7&sizeX=512&sizeY=512.fake";
@@ -826,7 +1266,12 @@ public class ImageTest extends UserTest {
         if (!imageFile.delete())
             System.err.println("\"" + imageFile.getCanonicalPath() + "\" could not be deleted.");
 
+        // The old images are deleted in the background
         List<ImageWrapper> images = dataset.getImages(client);
+        for (int i = 0; i < 20 && images.size() > 1; i++) {
+            Thread.sleep(500);
+            images = dataset.getImages(client);
+        }
 
         for (ImageWrapper image : images) {
             client.delete(image);
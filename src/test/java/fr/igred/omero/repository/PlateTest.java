@@ -23,6 +23,7 @@ import org.junit.Test;
 import java.util.List;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 
 
 public class PlateTest extends UserTest {
@@ -44,6 +45,14 @@ public class PlateTest extends UserTest {
     }
 
 
+    @Test
+    public void testCountWellsInPlate() throws Exception {
+        PlateWrapper plate = client.getPlate(PLATE1.id);
+        assertEquals(9, plate.countWells(client));
+        assertTrue(plate.hasWells(client));
+    }
+
+
     @Test
     public void testGetPlateAcquisitionsFromPlate() throws Exception {
         final String name = "PlateAcquisition Name 0";
@@ -31,7 +31,9 @@ import java.security.SecureRandom;
 import java.util.List;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
 
 
 public class ProjectTest extends UserTest {
@@ -57,6 +59,22 @@ public class ProjectTest extends UserTest {
     }
 
 
+    @Test
+    public void testExistsInProject() throws Exception {
+        ProjectWrapper project = client.getProject(PROJECT1.id);
+        ProjectWrapper empty   = new ProjectWrapper(client, "Empty project", "");
+
+        boolean emptyHasDatasets = empty.hasDatasets(client);
+        boolean emptyHasImages   = empty.hasImages(client);
+        client.delete(empty);
+
+        assertTrue(project.hasDatasets(client));
+        assertTrue(project.hasImages(client));
+        assertFalse(emptyHasDatasets);
+        assertFalse(emptyHasImages);
+    }
+
+
     @Test
     public void testAddAndRemoveDataset() throws Exception {
         ProjectWrapper project = new ProjectWrapper(client, "To delete", "");
@@ -217,6 +235,15 @@ public class ProjectTest extends UserTest {
     }
 
 
+    @Test
+    public void testGetImagesLikeInProjectIsLiteral() throws Exception {
+        ProjectWrapper project = client.getProject(PROJECT1.id);
+
+        assertTrue(project.getImagesLike(client, ".*").isEmpty());
+        assertTrue(project.getImagesLike(client, "%fake").isEmpty());
+    }
+
+
     @Test
     public void testGetImagesTaggedInProject() throws Exception {
         ProjectWrapper project = client.getProject(PROJECT1.id);